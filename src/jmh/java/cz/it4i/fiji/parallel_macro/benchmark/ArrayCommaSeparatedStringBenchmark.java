@@ -0,0 +1,98 @@
+package cz.it4i.fiji.parallel_macro.benchmark;
+
+import java.nio.DoubleBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.it4i.fiji.parallel_macro.ArrayCommaSeparatedString;
+
+// Both conversion directions of ArrayCommaSeparatedString, next to the
+// Pattern and StringBuilder based implementation it replaced:
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ArrayCommaSeparatedStringBenchmark {
+
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	public int size;
+
+	// Pixel values, measurements with two decimals or full precision doubles:
+	@Param({ "integer", "decimal", "random" })
+	public String values;
+
+	private ArrayCommaSeparatedString converter = new ArrayCommaSeparatedString();
+
+	private double[] array;
+
+	private String string;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		array = new double[size];
+		for (int i = 0; i < size; i++) {
+			if (values.equals("integer")) {
+				array[i] = random.nextInt(65536);
+			}
+			else if (values.equals("decimal")) {
+				array[i] = random.nextInt(25500) / 100.0;
+			}
+			else {
+				array[i] = random.nextDouble() * 255;
+			}
+		}
+		string = converter.convertBufferToCommaSeparatedString(DoubleBuffer.wrap(
+			array), size);
+	}
+
+	@Benchmark
+	public String format() {
+		return converter.convertBufferToCommaSeparatedString(DoubleBuffer.wrap(
+			array), size);
+	}
+
+	@Benchmark
+	public String formatPrevious() {
+		StringBuilder bld = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			bld.append(array[i]);
+			if (i != size - 1) {
+				bld.append(", ");
+			}
+		}
+		return bld.toString();
+	}
+
+	@Benchmark
+	public double[] parse() {
+		return converter.convertCommaSeparatedStringToArray(string);
+	}
+
+	@Benchmark
+	public DoubleBuffer parsePrevious() {
+		Pattern pattern = Pattern.compile(",");
+		double[] tempArray = pattern.splitAsStream(string).mapToDouble(
+			Double::parseDouble).toArray();
+		DoubleBuffer tempBuffer = DoubleBuffer.allocate(tempArray.length);
+		for (int i = 0; i < tempArray.length; i++) {
+			tempBuffer.put(tempArray[i]);
+		}
+		return tempBuffer;
+	}
+}
@@ -0,0 +1,82 @@
+package cz.it4i.fiji.parallel_macro.benchmark;
+
+import cz.it4i.fiji.parallel_macro.Parallelism;
+import cz.it4i.fiji.parallel_macro.ParallelismFactory;
+import cz.it4i.fiji.parallel_macro.ReductionOperation;
+
+// Latency and bandwidth of the collectives of the backend selected by the
+// "backend" setting. JMH cannot start the ranks of a job, so this one runs as
+// a plain program on every rank and rank 0 prints the results, e.g. for the
+// socket backend on one machine:
+//
+// java -cp <class path> cz.it4i.fiji.parallel_macro.SocketLauncher 4
+// cz.it4i.fiji.parallel_macro.benchmark.CollectivesBenchmark
+//
+// and for the MPI backend (with mpi.jar before the stand-in classes):
+//
+// mpirun -np 4 java -cp <mpi.jar>:<class path>
+// cz.it4i.fiji.parallel_macro.benchmark.CollectivesBenchmark
+public class CollectivesBenchmark {
+
+	private static final int[] ELEMENTS = { 1, 1024, 128 * 1024, 1024 * 1024 };
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+		Parallelism parallelism = ParallelismFactory.create();
+		if (parallelism.initialise() != 0) {
+			System.exit(1);
+		}
+		int rank = parallelism.getRank();
+		if (rank == 0) {
+			System.out.println("Ranks: " + parallelism.getSize());
+			System.out.println(String.format("%-10s %10s %14s %12s", "Collective",
+				"Elements", "Latency [us]", "MB/s"));
+		}
+
+		report(rank, "barrier", 0, time(iterations, parallelism::barrier), 0);
+
+		for (int elements : ELEMENTS) {
+			double[] buffer = new double[elements];
+			// Fewer repetitions of the large messages:
+			int repetitions = Math.max(1, iterations * 1024 / Math.max(1024,
+				elements));
+			report(rank, "broadcast", elements, time(repetitions, () -> parallelism
+				.broadcast(buffer, elements, 0)), elements * Double.BYTES);
+			report(rank, "allReduce", elements, time(repetitions, () -> parallelism
+				.allReduce(buffer, ReductionOperation.SUM)), elements * Double.BYTES);
+			int partLength = Math.max(1, elements / parallelism.getSize());
+			double[] parts = new double[partLength * parallelism.getSize()];
+			report(rank, "scatter", elements, time(repetitions, () -> parallelism
+				.scatter(parts, partLength, partLength, 0)), partLength * parallelism
+					.getSize() * Double.BYTES);
+		}
+
+		parallelism.finalise();
+	}
+
+	// Average time of one call in microseconds, after a warm-up of the same
+	// length:
+	private static double time(int iterations, Runnable collective) {
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			collective.run();
+		}
+		long start = System.nanoTime();
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			collective.run();
+		}
+		return (System.nanoTime() - start) / 1000.0 / iterations;
+	}
+
+	private static void report(int rank, String collective, int elements,
+		double microseconds, long bytes)
+	{
+		if (rank != 0) {
+			return;
+		}
+		String bandwidth = bytes > 0 ? String.format("%12.1f", bytes /
+			microseconds) : String.format("%12s", "-");
+		System.out.println(String.format("%-10s %10d %14.2f %s", collective,
+			elements, microseconds, bandwidth));
+	}
+}
@@ -0,0 +1,98 @@
+package cz.it4i.fiji.parallel_macro.benchmark;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.DoubleBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.it4i.fiji.parallel_macro.MpiReflection;
+
+// Compares the bound method handles of MpiReflection with the per-call
+// Method.invoke path it used before, against the stand-in mpi classes:
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MpiReflectionBenchmark {
+
+	private MpiReflection mpiReflection;
+
+	private Object commWorld;
+	private Object mpiDouble;
+	private Method reflectiveGetRank;
+	private Method reflectiveBarrier;
+	private Method reflectiveScatter;
+
+	private DoubleBuffer sendBuffer;
+	private DoubleBuffer receiveBuffer;
+
+	@Setup
+	public void setUp() throws Exception {
+		mpiReflection = new MpiReflection();
+		mpiReflection.loadOpenMpi("");
+		mpiReflection.initialise(new String[] {});
+
+		Class<?> mpiClass = Class.forName("mpi.MPI");
+		commWorld = mpiClass.getDeclaredField("COMM_WORLD").get(null);
+		mpiDouble = mpiClass.getDeclaredField("DOUBLE").get(null);
+		reflectiveGetRank = commWorld.getClass().getMethod("getRank");
+		reflectiveBarrier = commWorld.getClass().getMethod("barrier");
+		reflectiveScatter = commWorld.getClass().getMethod("scatter", Object.class,
+			int.class, mpiDouble.getClass(), Object.class, int.class, mpiDouble
+				.getClass(), int.class);
+
+		sendBuffer = mpiReflection.newDoubleBuffer(4);
+		receiveBuffer = mpiReflection.newDoubleBuffer(4);
+	}
+
+	@Benchmark
+	public int reflectiveGetRank() throws IllegalAccessException,
+		InvocationTargetException
+	{
+		return (int) reflectiveGetRank.invoke(commWorld);
+	}
+
+	@Benchmark
+	public int boundGetRank() throws InvocationTargetException {
+		return mpiReflection.getRank();
+	}
+
+	@Benchmark
+	public void reflectiveBarrier() throws IllegalAccessException,
+		InvocationTargetException
+	{
+		reflectiveBarrier.invoke(commWorld);
+	}
+
+	@Benchmark
+	public void boundBarrier() throws InvocationTargetException {
+		mpiReflection.barrier();
+	}
+
+	@Benchmark
+	public void reflectiveScatter() throws IllegalAccessException,
+		InvocationTargetException
+	{
+		reflectiveScatter.invoke(commWorld, sendBuffer, 4, mpiDouble,
+			receiveBuffer, 4, mpiDouble, 0);
+	}
+
+	@Benchmark
+	public void boundScatter() throws InvocationTargetException {
+		mpiReflection.scatter(sendBuffer, 4, mpiReflection.mpiDoubleInstance,
+			receiveBuffer, 4, mpiReflection.mpiDoubleInstance, 0);
+	}
+}
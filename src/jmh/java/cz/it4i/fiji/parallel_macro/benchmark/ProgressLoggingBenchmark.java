@@ -0,0 +1,69 @@
+package cz.it4i.fiji.parallel_macro.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.it4i.fiji.parallel_macro.BinaryProgressLogging;
+import cz.it4i.fiji.parallel_macro.FileProgressLogging;
+import cz.it4i.fiji.parallel_macro.ProgressLogging;
+import cz.it4i.fiji.parallel_macro.XmlProgressLogging;
+
+// Throughput of reportProgress of the progress logs. A percentage is only
+// written once per task, so every invocation is a whole job: the tasks are
+// added and reported and each one goes from 1 to 100 %. The logs are written
+// to the working directory.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ProgressLoggingBenchmark {
+
+	private static final int TASKS = 10;
+
+	@Param({ "xml", "file", "binary" })
+	public String log;
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS * 100)
+	public int reportProgress() {
+		ProgressLogging progressLogging = log.equals("xml")
+			? new XmlProgressLogging() : log.equals("file")
+				? new FileProgressLogging() : new BinaryProgressLogging();
+		for (int task = 0; task < TASKS; task++) {
+			progressLogging.addTask("Task " + task);
+		}
+		progressLogging.reportTasks(0, 1);
+
+		int result = 0;
+		for (int task = 0; task < TASKS; task++) {
+			for (int progress = 1; progress <= 100; progress++) {
+				result += progressLogging.reportProgress(task, progress, 0);
+			}
+		}
+		progressLogging.finalise();
+		return result;
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(Paths.get("progress_0.plog"));
+		Files.deleteIfExists(Paths.get("progress_0.bplog"));
+	}
+}
@@ -0,0 +1,72 @@
+package cz.it4i.fiji.parallel_macro.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.it4i.fiji.parallel_macro.SharedMemoryParallelism;
+
+// Scatter and gather of the in-process backend across payload sizes. The
+// ranks are threads started by every invocation, so each one repeats the
+// collective to keep the start-up out of the time per call.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SharedMemoryCollectivesBenchmark {
+
+	private static final int REPETITIONS = 100;
+
+	@Param({ "4" })
+	public int ranks;
+
+	// Total number of doubles of all the ranks together:
+	@Param({ "1024", "65536", "1048576" })
+	public int elements;
+
+	private SharedMemoryParallelism parallelism;
+
+	private double[] array;
+
+	private double[] part;
+
+	@Setup
+	public void setUp() {
+		parallelism = new SharedMemoryParallelism(ranks);
+		array = new double[elements];
+		part = new double[elements / ranks];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(REPETITIONS)
+	public void scatter() {
+		parallelism.execute(() -> {
+			for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+				parallelism.scatterEqually(array, elements, 0);
+			}
+		});
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(REPETITIONS)
+	public void gather() {
+		parallelism.execute(() -> {
+			for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+				parallelism.gatherEqually(part, elements, 0);
+			}
+		});
+	}
+}
@@ -0,0 +1,15 @@
+package mpi;
+
+// Stand-in for OpenMPI's datatype handle, used only by the benchmarks.
+public class Datatype {
+
+	private final int size;
+
+	Datatype(int size) {
+		this.size = size;
+	}
+
+	public int getSize() {
+		return size;
+	}
+}
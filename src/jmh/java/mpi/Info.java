@@ -0,0 +1,9 @@
+package mpi;
+
+// Stand-in for OpenMPI's info object, used only by the benchmarks.
+public class Info {
+
+	Info() {
+		// No hints for a single process.
+	}
+}
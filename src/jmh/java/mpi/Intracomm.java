@@ -0,0 +1,114 @@
+package mpi;
+
+import java.nio.Buffer;
+
+// Stand-in for OpenMPI's COMM_WORLD communicator of a single process.
+public class Intracomm {
+
+	public final int getRank() throws MPIException {
+		return 0;
+	}
+
+	public final int getSize() throws MPIException {
+		return 1;
+	}
+
+	public final void barrier() throws MPIException {
+		// Nothing to wait for with a single process.
+	}
+
+	public final void scatter(Object sendbuf, int sendcount, Datatype sendtype,
+		Object recvbuf, int recvcount, Datatype recvtype, int root)
+		throws MPIException
+	{
+		// The only process keeps its own data.
+	}
+
+	public final void scatterv(Object sendbuf, int[] sendcount, int[] displs,
+		Datatype sendtype, Object recvbuf, int recvcount, Datatype recvtype,
+		int root) throws MPIException
+	{
+		// The only process keeps its own data.
+	}
+
+	public final void gather(Object sendbuf, int sendcount, Datatype sendtype,
+		Object recvbuf, int recvcount, Datatype recvtype, int root)
+		throws MPIException
+	{
+		// The only process keeps its own data.
+	}
+
+	public final void gatherv(Object sendbuf, int sendcount, Datatype sendtype,
+		Object recvbuf, int[] recvcount, int[] displs, Datatype recvtype, int root)
+		throws MPIException
+	{
+		// The only process keeps its own data.
+	}
+
+	public final void bcast(Object buf, int count, Datatype type, int root)
+		throws MPIException
+	{
+		// The only process already has the data.
+	}
+
+	public final void reduce(Object sendbuf, Object recvbuf, int count,
+		Datatype type, Op op, int root) throws MPIException
+	{
+		// The only process keeps its own data.
+	}
+
+	public final void allReduce(Object sendbuf, Object recvbuf, int count,
+		Datatype type, Op op) throws MPIException
+	{
+		// The only process keeps its own data.
+	}
+
+	public final void allGather(Object sendbuf, int sendcount, Datatype sendtype,
+		Object recvbuf, int recvcount, Datatype recvtype) throws MPIException
+	{
+		// The only process keeps its own data.
+	}
+
+	public final void allGatherv(Object sendbuf, int sendcount,
+		Datatype sendtype, Object recvbuf, int[] recvcount, int[] displs,
+		Datatype recvtype) throws MPIException
+	{
+		// The only process keeps its own data.
+	}
+
+	public final void allToAll(Object sendbuf, int sendcount, Datatype sendtype,
+		Object recvbuf, int recvcount, Datatype recvtype) throws MPIException
+	{
+		// The only process keeps its own data.
+	}
+
+	public final Request iScatter(Buffer sendbuf, int sendcount,
+		Datatype sendtype, Buffer recvbuf, int recvcount, Datatype recvtype,
+		int root) throws MPIException
+	{
+		return new Request();
+	}
+
+	public final Request iGather(Buffer sendbuf, int sendcount,
+		Datatype sendtype, Buffer recvbuf, int recvcount, Datatype recvtype,
+		int root) throws MPIException
+	{
+		return new Request();
+	}
+
+	public final Request iBcast(Buffer buf, int count, Datatype type, int root)
+		throws MPIException
+	{
+		return new Request();
+	}
+
+	public final Request iAllReduce(Buffer sendbuf, Buffer recvbuf, int count,
+		Datatype type, Op op) throws MPIException
+	{
+		return new Request();
+	}
+
+	public final Request iBarrier() throws MPIException {
+		return new Request();
+	}
+}
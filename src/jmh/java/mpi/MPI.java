@@ -0,0 +1,73 @@
+package mpi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Stand-in for OpenMPI's mpi.MPI with a single process world. It lets the
+ * benchmarks load MpiReflection without an OpenMPI installation, the bodies do
+ * as little as possible so that only the dispatch cost is measured.
+ */
+public class MPI {
+
+	public static Intracomm COMM_WORLD = new Intracomm();
+
+	public static Datatype DOUBLE = new Datatype(Double.BYTES);
+
+	public static Datatype FLOAT = new Datatype(Float.BYTES);
+
+	public static Datatype INT = new Datatype(Integer.BYTES);
+
+	public static Datatype SHORT = new Datatype(Short.BYTES);
+
+	public static Datatype BYTE = new Datatype(Byte.BYTES);
+
+	public static Datatype LONG = new Datatype(Long.BYTES);
+
+	public static Op SUM = new Op();
+
+	public static Op MIN = new Op();
+
+	public static Op MAX = new Op();
+
+	public static Op PROD = new Op();
+
+	public static Op REPLACE = new Op();
+
+	public static Info INFO_NULL = new Info();
+
+	public static final int LOCK_SHARED = 2;
+
+	private static boolean initialized = false;
+
+	private static boolean finalized = false;
+
+	public static String[] Init(String[] args) throws MPIException {
+		initialized = true;
+		return args;
+	}
+
+	public static boolean isInitialized() throws MPIException {
+		return initialized;
+	}
+
+	public static boolean isFinalized() throws MPIException {
+		return finalized;
+	}
+
+	public static void Finalize() throws MPIException {
+		finalized = true;
+	}
+
+	public static DoubleBuffer newDoubleBuffer(int capacity) {
+		return ByteBuffer.allocateDirect(capacity * Double.BYTES).order(ByteOrder
+			.nativeOrder()).asDoubleBuffer();
+	}
+
+	public static LongBuffer newLongBuffer(int capacity) {
+		return ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder
+			.nativeOrder()).asLongBuffer();
+	}
+}
@@ -0,0 +1,11 @@
+package mpi;
+
+// Stand-in for OpenMPI's exception type, used only by the benchmarks.
+public class MPIException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public MPIException(String message) {
+		super(message);
+	}
+}
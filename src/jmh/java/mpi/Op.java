@@ -0,0 +1,10 @@
+package mpi;
+
+// Stand-in for OpenMPI's reduction operation handle, used only by the
+// benchmarks.
+public class Op {
+
+	Op() {
+		// Nothing to hold for a single process.
+	}
+}
@@ -0,0 +1,38 @@
+package mpi;
+
+import java.nio.Buffer;
+import java.nio.LongBuffer;
+
+// Stand-in for OpenMPI's one-sided communication window of a single process,
+// used only by the benchmarks. Only long elements are supported.
+public class Win {
+
+	private final LongBuffer base;
+
+	public Win(Buffer base, int size, int dispUnit, Info info, Intracomm comm)
+		throws MPIException
+	{
+		this.base = (LongBuffer) base;
+	}
+
+	public void lock(int lockType, int rank, int assertion) throws MPIException {
+		// Nobody else can access the window.
+	}
+
+	public void unlock(int rank) throws MPIException {
+		// Nobody else can access the window.
+	}
+
+	public void fetchAndOp(Buffer origin, Buffer resultAddr, Datatype dataType,
+		int targetRank, int targetDisp, Op op) throws MPIException
+	{
+		long previous = base.get(targetDisp);
+		((LongBuffer) resultAddr).put(0, previous);
+		long operand = ((LongBuffer) origin).get(0);
+		base.put(targetDisp, op == MPI.REPLACE ? operand : previous + operand);
+	}
+
+	public void free() throws MPIException {
+		// Nothing to release.
+	}
+}
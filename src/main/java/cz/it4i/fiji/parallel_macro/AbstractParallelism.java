@@ -0,0 +1,1141 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Implements the comma separated string and the typed collectives of
+// Parallelism on top of a few buffer operations provided by each backend. A
+// buffer is either a primitive array or a java.nio buffer.
+public abstract class AbstractParallelism implements Parallelism {
+
+	// Chunks of the work queue shrink towards its end unless they are fixed:
+	private static final boolean GUIDED_QUEUE = !Configuration.getString(
+		"queue.schedule", "guided").equalsIgnoreCase("fixed");
+
+	// The equal scatter and gather spread the remainder one item per rank
+	// instead of giving all of it to rank 0:
+	private static final boolean BALANCED_PARTITION = !Configuration.getString(
+		"scatter.partition", "balanced").equalsIgnoreCase("root_remainder");
+
+	private Logger logger = LoggerFactory.getLogger(AbstractParallelism.class);
+
+	private ArrayCommaSeparatedString converter = new ArrayCommaSeparatedString();
+
+	private RankState rankState = new RankState();
+
+	protected abstract void scatterBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount, int root);
+
+	protected abstract void scattervBuffer(Object sendBuffer, int[] sendCounts,
+		int[] displacements, Object receiveBuffer, int receiveCount, int root);
+
+	protected abstract void gatherBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount, int root);
+
+	protected abstract void gathervBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int[] receiveCounts, int[] displacements, int root);
+
+	protected abstract void broadcastBuffer(Object buffer, int count, int root);
+
+	protected abstract void reduceBuffer(Object sendBuffer, Object receiveBuffer,
+		int count, ReductionOperation operation, int root);
+
+	protected abstract void allReduceBuffer(Object sendBuffer,
+		Object receiveBuffer, int count, ReductionOperation operation);
+
+	protected abstract void allGatherBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount);
+
+	protected abstract void allGathervBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int[] receiveCounts, int[] displacements);
+
+	protected abstract void allToAllBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount);
+
+	// The counter of the work queue is shared by all ranks, creating it is
+	// collective and starts it from zero. Fetching returns the previous value
+	// or -1 on failure:
+
+	protected abstract int createCounter();
+
+	protected abstract long fetchAndIncrementCounter();
+
+	// The non-blocking primitives return a backend specific request, or null
+	// when the transfer has already completed. Unless a backend overrides them
+	// the transfer is done right away by the blocking primitive:
+
+	protected Object iScatterBuffer(DoubleBuffer sendBuffer, int sendCount,
+		DoubleBuffer receiveBuffer, int receiveCount, int root)
+	{
+		scatterBuffer(sendBuffer, sendCount, receiveBuffer, receiveCount, root);
+		return null;
+	}
+
+	protected Object iGatherBuffer(DoubleBuffer sendBuffer, int sendCount,
+		DoubleBuffer receiveBuffer, int receiveCount, int root)
+	{
+		gatherBuffer(sendBuffer, sendCount, receiveBuffer, receiveCount, root);
+		return null;
+	}
+
+	protected Object iBroadcastBuffer(DoubleBuffer buffer, int count, int root) {
+		broadcastBuffer(buffer, count, root);
+		return null;
+	}
+
+	protected Object iAllReduceBuffer(DoubleBuffer sendBuffer,
+		DoubleBuffer receiveBuffer, int count, ReductionOperation operation)
+	{
+		allReduceBuffer(sendBuffer, receiveBuffer, count, operation);
+		return null;
+	}
+
+	protected Object iBarrierRequest() {
+		barrier();
+		return null;
+	}
+
+	protected boolean testRequest(Object request) {
+		return true;
+	}
+
+	protected int waitForRequest(Object request) {
+		// Nothing to wait for.
+		return 0;
+	}
+
+	// Runs a blocking collective of a backend, or a wait for a transfer, with
+	// the heartbeat in its state and the time spent in it in the imbalance
+	// profile. The metrics count the bytes when the call returns 0, a call that
+	// throws is logged as the description's error. Returns the result of the
+	// call, -1 when it threw:
+	protected int instrumented(Metrics.Operation operation, long bytesSent,
+		long bytesReceived, String description, BlockingCall call)
+	{
+		long start = Metrics.start();
+		Heartbeat.enter(operation);
+		try {
+			int result = call.run();
+			if (result == 0) {
+				Metrics.record(operation, start, bytesSent, bytesReceived);
+			}
+			return result;
+		}
+		catch (Exception exc) {
+			logger.error("{} error: {} ", description, exc.getMessage());
+			return -1;
+		}
+		finally {
+			ImbalanceProfiler.waited(operation, start);
+			Heartbeat.leave();
+		}
+	}
+
+	@FunctionalInterface
+	protected interface BlockingCall {
+
+		int run() throws Exception;
+	}
+
+	// Backends that run several ranks in one process keep a state per rank:
+	protected RankState getRankState() {
+		return rankState;
+	}
+
+	@Override
+	public DoubleBuffer newDoubleBuffer(int size) {
+		return DoubleBuffer.allocate(size);
+	}
+
+	// The string collectives are thin wrappers over the typed ones:
+
+	@Override
+	public String scatterEqually(String sendString, int totalSendBufferLength,
+		int root)
+	{
+		return toCommaSeparatedString(scatterEqually(toArray(sendString),
+			totalSendBufferLength, root));
+	}
+
+	@Override
+	public String scatter(String sendString, int sendCount, int receiveCount,
+		int root)
+	{
+		return toCommaSeparatedString(scatter(toArray(sendString), sendCount,
+			receiveCount, root));
+	}
+
+	@Override
+	public String gather(String sendString, int sendCount, int receiveCount,
+		int root)
+	{
+		return toCommaSeparatedString(gather(toArray(sendString), sendCount,
+			receiveCount, root));
+	}
+
+	@Override
+	public String gatherEqually(String sendString, int totalReceiveBufferLength,
+		int root)
+	{
+		return toCommaSeparatedString(gatherEqually(toArray(sendString),
+			totalReceiveBufferLength, root));
+	}
+
+	@Override
+	public String broadcast(String sendString, int count, int root) {
+		// Only the string of the root is converted:
+		double[] buffer = null;
+		if (getRank() == root) {
+			buffer = toArray(sendString);
+		}
+		return toCommaSeparatedString(broadcast(buffer, count, root));
+	}
+
+	@Override
+	public String reduce(String sendString, String operation, int root) {
+		ReductionOperation reductionOperation = toOperation(operation);
+		if (reductionOperation == null) {
+			return "";
+		}
+		return toCommaSeparatedString(reduce(toArray(sendString),
+			reductionOperation, root));
+	}
+
+	@Override
+	public String allReduce(String sendString, String operation) {
+		ReductionOperation reductionOperation = toOperation(operation);
+		if (reductionOperation == null) {
+			return "";
+		}
+		return toCommaSeparatedString(allReduce(toArray(sendString),
+			reductionOperation));
+	}
+
+	@Override
+	public String allGather(String sendString, int sendCount) {
+		return toCommaSeparatedString(allGather(toArray(sendString), sendCount));
+	}
+
+	@Override
+	public String allGatherv(String sendString, int sendCount) {
+		return toCommaSeparatedString(allGatherv(toArray(sendString), sendCount));
+	}
+
+	@Override
+	public String allToAll(String sendString, int sendCount) {
+		return toCommaSeparatedString(allToAll(toArray(sendString), sendCount));
+	}
+
+	@Override
+	public int iScatter(String sendString, int sendCount, int receiveCount,
+		int root)
+	{
+		return iScatter(toBuffer(sendString), sendCount, receiveCount, root);
+	}
+
+	@Override
+	public int iGather(String sendString, int sendCount, int receiveCount,
+		int root)
+	{
+		return iGather(toBuffer(sendString), sendCount, receiveCount, root);
+	}
+
+	@Override
+	public int iBroadcast(String sendString, int count, int root) {
+		// Only the string of the root is converted:
+		DoubleBuffer buffer = null;
+		if (getRank() == root) {
+			buffer = toBuffer(sendString);
+		}
+		return iBroadcast(buffer, count, root);
+	}
+
+	@Override
+	public int iAllReduce(String sendString, String operation) {
+		ReductionOperation reductionOperation = toOperation(operation);
+		if (reductionOperation == null) {
+			return -1;
+		}
+		return iAllReduce(toBuffer(sendString), reductionOperation);
+	}
+
+	private DoubleBuffer toBuffer(String string) {
+		if (string == null || string.isEmpty()) {
+			return newDoubleBuffer(0);
+		}
+		return converter.convertCommaSeparatedStringToBuffer(string,
+			this::newDoubleBuffer);
+	}
+
+	private ReductionOperation toOperation(String operation) {
+		try {
+			return ReductionOperation.fromName(operation);
+		}
+		catch (IllegalArgumentException | NullPointerException exc) {
+			logger.error("Unknown reduction operation: {} ", operation);
+			return null;
+		}
+	}
+
+	private double[] toArray(String string) {
+		if (string == null || string.isEmpty()) {
+			return new double[0];
+		}
+		return converter.convertCommaSeparatedStringToArray(string);
+	}
+
+	private String toCommaSeparatedString(double[] array) {
+		return converter.convertBufferToCommaSeparatedString(DoubleBuffer.wrap(
+			array), array.length);
+	}
+
+	// Typed collectives:
+
+	@Override
+	public double[] scatterEqually(double[] sendBuffer, int totalSendBufferLength,
+		int root)
+	{
+		int length = myEqualAmountOfWork(totalSendBufferLength);
+		return scatterEquallyInto(sendBuffer, totalSendBufferLength,
+			new double[length], root);
+	}
+
+	@Override
+	public float[] scatterEqually(float[] sendBuffer, int totalSendBufferLength,
+		int root)
+	{
+		int length = myEqualAmountOfWork(totalSendBufferLength);
+		return scatterEquallyInto(sendBuffer, totalSendBufferLength,
+			new float[length], root);
+	}
+
+	@Override
+	public int[] scatterEqually(int[] sendBuffer, int totalSendBufferLength,
+		int root)
+	{
+		int length = myEqualAmountOfWork(totalSendBufferLength);
+		return scatterEquallyInto(sendBuffer, totalSendBufferLength,
+			new int[length], root);
+	}
+
+	@Override
+	public short[] scatterEqually(short[] sendBuffer, int totalSendBufferLength,
+		int root)
+	{
+		int length = myEqualAmountOfWork(totalSendBufferLength);
+		return scatterEquallyInto(sendBuffer, totalSendBufferLength,
+			new short[length], root);
+	}
+
+	@Override
+	public byte[] scatterEqually(byte[] sendBuffer, int totalSendBufferLength,
+		int root)
+	{
+		int length = myEqualAmountOfWork(totalSendBufferLength);
+		return scatterEquallyInto(sendBuffer, totalSendBufferLength,
+			new byte[length], root);
+	}
+
+	@Override
+	public DoubleBuffer scatterEqually(DoubleBuffer sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		int length = myEqualAmountOfWork(totalSendBufferLength);
+		return scatterEquallyInto(sendBuffer, totalSendBufferLength,
+			newDoubleBuffer(length), root);
+	}
+
+	@Override
+	public double[] scatter(double[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		return scatterInto(sendBuffer, sendCount, new double[receiveCount],
+			receiveCount, root);
+	}
+
+	@Override
+	public float[] scatter(float[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		return scatterInto(sendBuffer, sendCount, new float[receiveCount],
+			receiveCount, root);
+	}
+
+	@Override
+	public int[] scatter(int[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		return scatterInto(sendBuffer, sendCount, new int[receiveCount],
+			receiveCount, root);
+	}
+
+	@Override
+	public short[] scatter(short[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		return scatterInto(sendBuffer, sendCount, new short[receiveCount],
+			receiveCount, root);
+	}
+
+	@Override
+	public byte[] scatter(byte[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		return scatterInto(sendBuffer, sendCount, new byte[receiveCount],
+			receiveCount, root);
+	}
+
+	@Override
+	public DoubleBuffer scatter(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return scatterInto(sendBuffer, sendCount, newDoubleBuffer(receiveCount),
+			receiveCount, root);
+	}
+
+	@Override
+	public double[] gather(double[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		int length = gatherLength(receiveCount * getSize(), root);
+		return gatherInto(sendBuffer, sendCount, new double[length], receiveCount,
+			root);
+	}
+
+	@Override
+	public float[] gather(float[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		int length = gatherLength(receiveCount * getSize(), root);
+		return gatherInto(sendBuffer, sendCount, new float[length], receiveCount,
+			root);
+	}
+
+	@Override
+	public int[] gather(int[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		int length = gatherLength(receiveCount * getSize(), root);
+		return gatherInto(sendBuffer, sendCount, new int[length], receiveCount,
+			root);
+	}
+
+	@Override
+	public short[] gather(short[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		int length = gatherLength(receiveCount * getSize(), root);
+		return gatherInto(sendBuffer, sendCount, new short[length], receiveCount,
+			root);
+	}
+
+	@Override
+	public byte[] gather(byte[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		int length = gatherLength(receiveCount * getSize(), root);
+		return gatherInto(sendBuffer, sendCount, new byte[length], receiveCount,
+			root);
+	}
+
+	@Override
+	public DoubleBuffer gather(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		int length = gatherLength(receiveCount * getSize(), root);
+		return gatherInto(sendBuffer, sendCount, newDoubleBuffer(length),
+			receiveCount, root);
+	}
+
+	@Override
+	public double[] gatherEqually(double[] sendBuffer,
+		int totalReceiveBufferLength, int root)
+	{
+		int length = gatherLength(totalReceiveBufferLength, root);
+		return gatherEquallyInto(sendBuffer, totalReceiveBufferLength,
+			new double[length], root);
+	}
+
+	@Override
+	public float[] gatherEqually(float[] sendBuffer, int totalReceiveBufferLength,
+		int root)
+	{
+		int length = gatherLength(totalReceiveBufferLength, root);
+		return gatherEquallyInto(sendBuffer, totalReceiveBufferLength,
+			new float[length], root);
+	}
+
+	@Override
+	public int[] gatherEqually(int[] sendBuffer, int totalReceiveBufferLength,
+		int root)
+	{
+		int length = gatherLength(totalReceiveBufferLength, root);
+		return gatherEquallyInto(sendBuffer, totalReceiveBufferLength,
+			new int[length], root);
+	}
+
+	@Override
+	public short[] gatherEqually(short[] sendBuffer, int totalReceiveBufferLength,
+		int root)
+	{
+		int length = gatherLength(totalReceiveBufferLength, root);
+		return gatherEquallyInto(sendBuffer, totalReceiveBufferLength,
+			new short[length], root);
+	}
+
+	@Override
+	public byte[] gatherEqually(byte[] sendBuffer, int totalReceiveBufferLength,
+		int root)
+	{
+		int length = gatherLength(totalReceiveBufferLength, root);
+		return gatherEquallyInto(sendBuffer, totalReceiveBufferLength,
+			new byte[length], root);
+	}
+
+	@Override
+	public DoubleBuffer gatherEqually(DoubleBuffer sendBuffer,
+		int totalReceiveBufferLength, int root)
+	{
+		int length = gatherLength(totalReceiveBufferLength, root);
+		return gatherEquallyInto(sendBuffer, totalReceiveBufferLength,
+			newDoubleBuffer(length), root);
+	}
+
+	@Override
+	public double[] broadcast(double[] buffer, int count, int root) {
+		double[] receiveBuffer;
+		if (getRank() == root && buffer != null) {
+			receiveBuffer = Arrays.copyOf(buffer, count);
+		}
+		else {
+			receiveBuffer = new double[count];
+		}
+		broadcastBuffer(receiveBuffer, count, root);
+		return receiveBuffer;
+	}
+
+	@Override
+	public int[] broadcast(int[] buffer, int count, int root) {
+		int[] receiveBuffer;
+		if (getRank() == root && buffer != null) {
+			receiveBuffer = Arrays.copyOf(buffer, count);
+		}
+		else {
+			receiveBuffer = new int[count];
+		}
+		broadcastBuffer(receiveBuffer, count, root);
+		return receiveBuffer;
+	}
+
+	@Override
+	public double[] reduce(double[] sendBuffer, ReductionOperation operation,
+		int root)
+	{
+		double[] receiveBuffer = new double[gatherLength(sendBuffer.length, root)];
+		reduceBuffer(sendBuffer, receiveBuffer, sendBuffer.length, operation,
+			root);
+		return receiveBuffer;
+	}
+
+	@Override
+	public int[] reduce(int[] sendBuffer, ReductionOperation operation,
+		int root)
+	{
+		int[] receiveBuffer = new int[gatherLength(sendBuffer.length, root)];
+		reduceBuffer(sendBuffer, receiveBuffer, sendBuffer.length, operation,
+			root);
+		return receiveBuffer;
+	}
+
+	@Override
+	public double[] allReduce(double[] sendBuffer,
+		ReductionOperation operation)
+	{
+		double[] receiveBuffer = new double[sendBuffer.length];
+		allReduceBuffer(sendBuffer, receiveBuffer, sendBuffer.length, operation);
+		return receiveBuffer;
+	}
+
+	@Override
+	public int[] allReduce(int[] sendBuffer, ReductionOperation operation) {
+		int[] receiveBuffer = new int[sendBuffer.length];
+		allReduceBuffer(sendBuffer, receiveBuffer, sendBuffer.length, operation);
+		return receiveBuffer;
+	}
+
+	@Override
+	public double[] allGather(double[] sendBuffer, int sendCount) {
+		double[] receiveBuffer = new double[sendCount * getSize()];
+		allGatherBuffer(sendBuffer, sendCount, receiveBuffer, sendCount);
+		return receiveBuffer;
+	}
+
+	@Override
+	public int[] allGather(int[] sendBuffer, int sendCount) {
+		int[] receiveBuffer = new int[sendCount * getSize()];
+		allGatherBuffer(sendBuffer, sendCount, receiveBuffer, sendCount);
+		return receiveBuffer;
+	}
+
+	@Override
+	public double[] allGatherv(double[] sendBuffer, int sendCount) {
+		int[] receiveCounts = allGather(new int[] { sendCount }, 1);
+		int[] displacements = displacementsOf(receiveCounts);
+		double[] receiveBuffer = new double[totalOf(receiveCounts)];
+		allGathervBuffer(sendBuffer, sendCount, receiveBuffer, receiveCounts,
+			displacements);
+		return receiveBuffer;
+	}
+
+	@Override
+	public int[] allGatherv(int[] sendBuffer, int sendCount) {
+		int[] receiveCounts = allGather(new int[] { sendCount }, 1);
+		int[] displacements = displacementsOf(receiveCounts);
+		int[] receiveBuffer = new int[totalOf(receiveCounts)];
+		allGathervBuffer(sendBuffer, sendCount, receiveBuffer, receiveCounts,
+			displacements);
+		return receiveBuffer;
+	}
+
+	@Override
+	public double[] allToAll(double[] sendBuffer, int sendCount) {
+		double[] receiveBuffer = new double[sendCount * getSize()];
+		allToAllBuffer(sendBuffer, sendCount, receiveBuffer, sendCount);
+		return receiveBuffer;
+	}
+
+	@Override
+	public int[] allToAll(int[] sendBuffer, int sendCount) {
+		int[] receiveBuffer = new int[sendCount * getSize()];
+		allToAllBuffer(sendBuffer, sendCount, receiveBuffer, sendCount);
+		return receiveBuffer;
+	}
+
+	@Override
+	public byte[] scatterBytes(byte[] sendBuffer, int[] sendCounts, int root) {
+		// Every backend needs the counts on every rank:
+		int[] counts = broadcast(getRank() == root ? sendCounts
+			: new int[getSize()], getSize(), root);
+		byte[] receiveBuffer = new byte[counts[getRank()]];
+		scattervBuffer(orEmpty(sendBuffer, receiveBuffer), counts,
+			displacementsOf(counts), receiveBuffer, receiveBuffer.length, root);
+		return receiveBuffer;
+	}
+
+	@Override
+	public byte[] gatherBytes(byte[] sendBuffer, int root) {
+		int[] counts = allGather(new int[] { sendBuffer.length }, 1);
+		byte[] receiveBuffer = new byte[gatherLength(totalOf(counts), root)];
+		gathervBuffer(sendBuffer, sendBuffer.length, receiveBuffer, counts,
+			displacementsOf(counts), root);
+		return receiveBuffer;
+	}
+
+	@Override
+	public byte[] broadcastBytes(byte[] buffer, int root) {
+		// A root without a buffer broadcasts an empty one:
+		boolean isRoot = getRank() == root;
+		int length = broadcast(new int[] { isRoot && buffer != null ? buffer.length
+			: 0 }, 1, root)[0];
+		byte[] receiveBuffer = isRoot && buffer != null ? buffer
+			: new byte[length];
+		broadcastBuffer(receiveBuffer, length, root);
+		return receiveBuffer;
+	}
+
+	@Override
+	public String[] scatterStrings(String[] strings, int root) {
+		int[] sendCounts = null;
+		if (getRank() == root) {
+			sendCounts = new int[getSize()];
+			for (int rank = 0; rank < getSize(); rank++) {
+				sendCounts[rank] = Partitioner.blockLength(strings.length, rank,
+					getSize());
+			}
+		}
+		return scattervStrings(strings, sendCounts, root);
+	}
+
+	@Override
+	public String[] scattervStrings(String[] strings, int[] sendCounts,
+		int root)
+	{
+		int size = getSize();
+		byte[] sendBuffer = null;
+		int[] byteCounts = null;
+		if (getRank() == root) {
+			byte[][] parts = new byte[size][];
+			byteCounts = new int[size];
+			int start = 0;
+			for (int rank = 0; rank < size; rank++) {
+				parts[rank] = Utf8Strings.encode(strings, start, start +
+					sendCounts[rank]);
+				byteCounts[rank] = parts[rank].length;
+				start += sendCounts[rank];
+			}
+			sendBuffer = new byte[totalOf(byteCounts)];
+			int[] displacements = displacementsOf(byteCounts);
+			for (int rank = 0; rank < size; rank++) {
+				System.arraycopy(parts[rank], 0, sendBuffer, displacements[rank],
+					byteCounts[rank]);
+			}
+		}
+		return Utf8Strings.decode(scatterBytes(sendBuffer, byteCounts, root));
+	}
+
+	@Override
+	public String[] gatherStrings(String[] strings, int root) {
+		return Utf8Strings.decode(gatherBytes(Utf8Strings.encode(strings, 0,
+			strings.length), root));
+	}
+
+	@Override
+	public String[] broadcastStrings(String[] strings, int root) {
+		byte[] buffer = null;
+		if (getRank() == root && strings != null) {
+			buffer = Utf8Strings.encode(strings, 0, strings.length);
+		}
+		return Utf8Strings.decode(broadcastBytes(buffer, root));
+	}
+
+	@Override
+	public int iScatter(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		// Only the root sends, with a count for each rank:
+		DoubleBuffer send = asDirect(sendBuffer, sendBuffer == null ? 0
+			: sendBuffer.limit());
+		DoubleBuffer receiveBuffer = newDoubleBuffer(receiveCount);
+		return register(iScatterBuffer(send, sendCount, receiveBuffer,
+			receiveCount, root), send, receiveBuffer);
+	}
+
+	@Override
+	public int iGather(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		DoubleBuffer send = asDirect(sendBuffer, sendCount);
+		DoubleBuffer receiveBuffer = newDoubleBuffer(gatherLength(receiveCount *
+			getSize(), root));
+		return register(iGatherBuffer(send, sendCount, receiveBuffer,
+			receiveCount, root), send, receiveBuffer);
+	}
+
+	@Override
+	public int iBroadcast(DoubleBuffer buffer, int count, int root) {
+		DoubleBuffer receiveBuffer;
+		if (getRank() == root) {
+			receiveBuffer = asDirect(buffer, count);
+		}
+		else {
+			receiveBuffer = newDoubleBuffer(count);
+		}
+		return register(iBroadcastBuffer(receiveBuffer, count, root), null,
+			receiveBuffer);
+	}
+
+	@Override
+	public int iAllReduce(DoubleBuffer sendBuffer,
+		ReductionOperation operation)
+	{
+		int count = sendBuffer.limit();
+		DoubleBuffer send = asDirect(sendBuffer, count);
+		DoubleBuffer receiveBuffer = newDoubleBuffer(count);
+		return register(iAllReduceBuffer(send, receiveBuffer, count, operation),
+			send, receiveBuffer);
+	}
+
+	@Override
+	public int iBarrier() {
+		return register(iBarrierRequest(), null, null);
+	}
+
+	@Override
+	public boolean test(int handle) {
+		PendingRequest pending = getRankState().pendingRequests.get(handle);
+		if (pending == null) {
+			logger.error("There is no transfer with handle {} ", handle);
+			return true;
+		}
+		if (!pending.completed && (pending.request == null || testRequest(
+			pending.request)))
+		{
+			pending.completed = true;
+			complete(pending);
+		}
+		return pending.completed;
+	}
+
+	@Override
+	public String waitFor(int handle) {
+		DoubleBuffer buffer = waitForBuffer(handle);
+		if (buffer == null) {
+			return "";
+		}
+		return converter.convertBufferToCommaSeparatedString(buffer, buffer
+			.limit());
+	}
+
+	@Override
+	public DoubleBuffer waitForBuffer(int handle) {
+		RankState state = getRankState();
+		PendingRequest pending = state.pendingRequests.remove(handle);
+		if (pending == null) {
+			// waitAll() forgets the completed transfers without a result:
+			if (handle < 0 || handle >= state.nextHandle) {
+				logger.error("There is no transfer with handle {} ", handle);
+			}
+			return null;
+		}
+		complete(pending);
+		return pending.receiveBuffer;
+	}
+
+	// Completes every transfer, only those with a result are kept until it is
+	// collected by waitFor:
+	@Override
+	public int waitAll() {
+		int result = 0;
+		Iterator<PendingRequest> iterator = getRankState().pendingRequests
+			.values().iterator();
+		while (iterator.hasNext()) {
+			PendingRequest pending = iterator.next();
+			if (complete(pending) != 0) {
+				result = -1;
+			}
+			if (pending.receiveBuffer == null) {
+				iterator.remove();
+			}
+		}
+		return result;
+	}
+
+	// The transfers of the rank of this thread that have not been collected:
+	public int numberOfPendingTransfers() {
+		return getRankState().pendingRequests.size();
+	}
+
+	// A completed transfer only keeps its result:
+	private int complete(PendingRequest pending) {
+		int result = 0;
+		if (!pending.completed && pending.request != null) {
+			result = waitForRequest(pending.request);
+		}
+		pending.completed = true;
+		pending.request = null;
+		pending.sendBuffer = null;
+		return result;
+	}
+
+	private int register(Object request, DoubleBuffer sendBuffer,
+		DoubleBuffer receiveBuffer)
+	{
+		RankState state = getRankState();
+		int handle = state.nextHandle++;
+		state.pendingRequests.put(handle, new PendingRequest(request, sendBuffer,
+			receiveBuffer));
+		return handle;
+	}
+
+	// A transfer may need a direct buffer, the given one is copied only if it
+	// is not direct:
+	private DoubleBuffer asDirect(DoubleBuffer buffer, int length) {
+		if (buffer != null && buffer.isDirect()) {
+			return buffer;
+		}
+		DoubleBuffer direct = newDoubleBuffer(length);
+		if (buffer != null) {
+			for (int index = 0; index < length && index < buffer.limit(); index++) {
+				direct.put(index, buffer.get(index));
+			}
+		}
+		return direct;
+	}
+
+	@Override
+	public double[] scatterChunked(double[] sendBuffer, int receiveCount,
+		int chunkSize, int root)
+	{
+		double[] receiveBuffer = new double[receiveCount];
+		scatterStreaming((rank, offset, chunk) -> chunk.put(sendBuffer,
+			(int) ((long) rank * receiveCount + offset), chunk.remaining()),
+			receiveCount, chunkSize, (rank, offset, chunk) -> chunk.get(
+				receiveBuffer, (int) offset, chunk.remaining()), root);
+		return receiveBuffer;
+	}
+
+	@Override
+	public double[] gatherChunked(double[] sendBuffer, int chunkSize, int root) {
+		int sendCount = sendBuffer.length;
+		if ((long) sendCount * getSize() > Integer.MAX_VALUE) {
+			logger.error("{} elements do not fit an array, use gatherStreaming.",
+				(long) sendCount * getSize());
+			return new double[0];
+		}
+		double[] receiveBuffer = new double[gatherLength(sendCount * getSize(),
+			root)];
+		gatherStreaming((rank, offset, chunk) -> chunk.put(sendBuffer,
+			(int) offset, chunk.remaining()), sendCount, chunkSize, (rank, offset,
+				chunk) -> chunk.get(receiveBuffer, (int) ((long) rank * sendCount +
+					offset), chunk.remaining()), root);
+		return receiveBuffer;
+	}
+
+	@Override
+	public int scatterStreaming(ChunkProducer producer, long receiveCount,
+		int chunkSize, ChunkConsumer consumer, int root)
+	{
+		return pipeline(producer, receiveCount, chunkSize, consumer, root, true);
+	}
+
+	@Override
+	public int gatherStreaming(ChunkProducer producer, long sendCount,
+		int chunkSize, ChunkConsumer consumer, int root)
+	{
+		return pipeline(producer, sendCount, chunkSize, consumer, root, false);
+	}
+
+	// Chunk c is produced and started while chunk c - 1 is still in flight,
+	// then chunk c - 1 is waited for and consumed. Each of the two sets of
+	// buffers is reused every other chunk:
+	private int pipeline(ChunkProducer producer, long count, int chunkSize,
+		ChunkConsumer consumer, int root, boolean scatter)
+	{
+		int size = getSize();
+		int rank = getRank();
+		if (chunkSize <= 0 || (long) chunkSize * size > Integer.MAX_VALUE) {
+			logger.error("Chunks of {} elements can not be sent to {} ranks.",
+				chunkSize, size);
+			return -1;
+		}
+		boolean isRoot = rank == root;
+		int gathered = isRoot ? chunkSize * size : 0;
+		DoubleBuffer[] sendBuffers = new DoubleBuffer[2];
+		DoubleBuffer[] receiveBuffers = new DoubleBuffer[2];
+		for (int set = 0; set < 2; set++) {
+			sendBuffers[set] = newDoubleBuffer(scatter ? gathered : chunkSize);
+			receiveBuffers[set] = newDoubleBuffer(scatter ? chunkSize : gathered);
+		}
+
+		long chunks = (count + chunkSize - 1) / chunkSize;
+		Object previousRequest = null;
+		int result = 0;
+		for (long chunk = 0; chunk <= chunks; chunk++) {
+			int set = (int) (chunk % 2);
+			long offset = chunk * chunkSize;
+			int length = (int) Math.min(chunkSize, count - offset);
+			Object request = null;
+			if (chunk < chunks) {
+				DoubleBuffer send = sendBuffers[set];
+				DoubleBuffer receive = receiveBuffers[set];
+				if (scatter) {
+					if (isRoot) {
+						for (int destination = 0; destination < size; destination++) {
+							producer.produce(destination, offset, part(send, destination *
+								length, length));
+						}
+					}
+					request = iScatterBuffer(send, length, receive, length, root);
+				}
+				else {
+					producer.produce(rank, offset, part(send, 0, length));
+					request = iGatherBuffer(send, length, receive, length, root);
+				}
+			}
+			if (chunk > 0) {
+				if (previousRequest != null && waitForRequest(previousRequest) != 0) {
+					result = -1;
+				}
+				long previousOffset = offset - chunkSize;
+				int previousLength = (int) Math.min(chunkSize, count -
+					previousOffset);
+				DoubleBuffer received = receiveBuffers[1 - set];
+				if (scatter) {
+					consumer.consume(rank, previousOffset, part(received, 0,
+						previousLength));
+				}
+				else if (isRoot) {
+					for (int source = 0; source < size; source++) {
+						consumer.consume(source, previousOffset, part(received, source *
+							previousLength, previousLength));
+					}
+				}
+			}
+			previousRequest = request;
+		}
+		return result;
+	}
+
+	// A view of a part of the buffer, starting at its position 0:
+	private static DoubleBuffer part(DoubleBuffer buffer, int from, int length) {
+		DoubleBuffer part = buffer.duplicate();
+		part.limit(from + length).position(from);
+		return part.slice();
+	}
+
+	@Override
+	public int queueInitialise(int numberOfItems, int chunkSize) {
+		RankState state = getRankState();
+		state.workQueue = null;
+		if (createCounter() != 0) {
+			return -1;
+		}
+		state.workQueue = new WorkQueue(numberOfItems, chunkSize, getSize(),
+			GUIDED_QUEUE);
+		return 0;
+	}
+
+	@Override
+	public int nextItem() {
+		WorkQueue workQueue = getRankState().workQueue;
+		if (workQueue == null) {
+			logger.error("The work queue was not initialised.");
+			return -1;
+		}
+		return workQueue.nextItem(this::fetchAndIncrementCounter);
+	}
+
+	// Each rank's part starts right after the part of the previous rank:
+	private static int[] displacementsOf(int[] counts) {
+		int[] displacements = new int[counts.length];
+		for (int index = 1; index < counts.length; index++) {
+			displacements[index] = displacements[index - 1] + counts[index - 1];
+		}
+		return displacements;
+	}
+
+	protected static int totalOf(int[] counts) {
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+		return total;
+	}
+
+	private <T> T scatterInto(T sendBuffer, int sendCount, T receiveBuffer,
+		int receiveCount, int root)
+	{
+		scatterBuffer(orEmpty(sendBuffer, receiveBuffer), sendCount, receiveBuffer,
+			receiveCount, root);
+		return receiveBuffer;
+	}
+
+	private <T> T gatherInto(T sendBuffer, int sendCount, T receiveBuffer,
+		int receiveCount, int root)
+	{
+		gatherBuffer(orEmpty(sendBuffer, receiveBuffer), sendCount, receiveBuffer,
+			receiveCount, root);
+		return receiveBuffer;
+	}
+
+	private <T> T scatterEquallyInto(T sendBuffer, int totalSendBufferLength,
+		T receiveBuffer, int root)
+	{
+		int size = getSize();
+		int[] sendCounts = new int[size];
+		int[] displacements = new int[size];
+		equalAmountsOfWork(totalSendBufferLength, sendCounts, displacements);
+
+		scattervBuffer(orEmpty(sendBuffer, receiveBuffer), sendCounts,
+			displacements, receiveBuffer, sendCounts[getRank()], root);
+		return receiveBuffer;
+	}
+
+	private <T> T gatherEquallyInto(T sendBuffer, int totalReceiveBufferLength,
+		T receiveBuffer, int root)
+	{
+		int size = getSize();
+		int[] receiveCounts = new int[size];
+		int[] displacements = new int[size];
+		equalAmountsOfWork(totalReceiveBufferLength, receiveCounts, displacements);
+
+		gathervBuffer(orEmpty(sendBuffer, receiveBuffer), receiveCounts[getRank()],
+			receiveBuffer, receiveCounts, displacements, root);
+		return receiveBuffer;
+	}
+
+	// Only the root receives the gathered elements:
+	private int gatherLength(int length, int root) {
+		if (getRank() == root) {
+			return length;
+		}
+		return 0;
+	}
+
+	// Non-root ranks do not need to provide a send buffer to scatter:
+	@SuppressWarnings("unchecked")
+	private static <T> T orEmpty(T buffer, T template) {
+		if (buffer != null) {
+			return buffer;
+		}
+		return (T) PrimitiveBuffers.allocate(template, 0);
+	}
+
+	private void equalAmountsOfWork(int totalSizeOfWork, int[] counts,
+		int[] displacements)
+	{
+		int size = counts.length;
+		int offset = 0;
+		for (int destination = 0; destination < size; destination++) {
+			counts[destination] = getEqualAmountOfWork(destination, size,
+				totalSizeOfWork);
+			displacements[destination] = offset;
+			offset += counts[destination];
+		}
+	}
+
+	private int myEqualAmountOfWork(int totalSizeOfWork) {
+		return getEqualAmountOfWork(getRank(), getSize(), totalSizeOfWork);
+	}
+
+	private int getEqualAmountOfWork(int myRank, int size,
+		int totalSizeOfWork)
+	{
+		if (BALANCED_PARTITION) {
+			return Partitioner.blockLength(totalSizeOfWork, myRank, size);
+		}
+
+		// Divide work to equal parts:
+		int sizeOfWorkPart = totalSizeOfWork / size;
+
+		// Any additional remaining items should be given to rank 0:
+		if (myRank == 0) {
+			sizeOfWorkPart += totalSizeOfWork % size;
+		}
+		return sizeOfWorkPart;
+	}
+
+	// What a rank remembers between the calls, apart from the backend:
+	protected static class RankState {
+
+		// Transfers started by the non-blocking collectives by their handle:
+		private Map<Integer, PendingRequest> pendingRequests = new HashMap<>();
+
+		private int nextHandle = 0;
+
+		private WorkQueue workQueue = null;
+	}
+
+	// A started transfer, it keeps its buffers referenced until completion:
+	private static class PendingRequest {
+
+		private Object request;
+		private DoubleBuffer sendBuffer;
+		private final DoubleBuffer receiveBuffer;
+		private boolean completed = false;
+
+		PendingRequest(Object request, DoubleBuffer sendBuffer,
+			DoubleBuffer receiveBuffer)
+		{
+			this.request = request;
+			this.sendBuffer = sendBuffer;
+			this.receiveBuffer = receiveBuffer;
+		}
+	}
+}
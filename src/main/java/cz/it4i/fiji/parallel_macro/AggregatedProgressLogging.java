@@ -0,0 +1,225 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Progress of all the ranks in the single file progress_job.plog instead of a
+// file per rank, so a tick of a large job updates one file on the shared file
+// system instead of one per rank. Every rank puts the percentages of its tasks
+// on the board of rank 0, whose writer thread rewrites the file at most once
+// per flush interval and only when something has changed.
+//
+// The file has the number of ranks, the time-stamp of the last update and the
+// tasks like the text progress log, followed by a line per rank with the rank
+// and the percentage of every task, -1 before its first report. Durations are
+// not collected, only the percentages are on the board. The ranks may have
+// different numbers of tasks, every rank has as many slots on the board as
+// the rank with the most tasks and a task is described by the first rank
+// that has it.
+public class AggregatedProgressLogging extends ProgressLoggingRestrictions
+	implements ProgressLogging
+{
+
+	static final String JOB_PROGRESS_FILE = LOG_FILE_PROGRESS_PREFIX + "job" +
+		LOG_FILE_PROGRESS_POSTFIX;
+
+	// Minimal time between two writes of the progress file in milliseconds:
+	private static final long FLUSH_INTERVAL = Configuration.getLong(
+		"progress.flush_interval", 1000);
+
+	private Logger logger = LoggerFactory.getLogger(ParallelMacro.class
+		.getName());
+
+	private final Parallelism parallelism;
+
+	private Map<Integer, String> tasks = new HashMap<>();
+
+	private Integer numberOfTasks = 0;
+
+	private boolean tasksWereReported = false;
+
+	private Map<Integer, Integer> lastWrittenTaskPercentage = new HashMap<>();
+
+	private int size;
+
+	// The number of slots of every rank on the board:
+	private int boardTasks = 0;
+
+	// Only on rank 0:
+	private ScheduledExecutorService writer = null;
+	private String[] descriptions = null;
+	private long[] lastWrittenBoard = null;
+
+	public AggregatedProgressLogging(Parallelism parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	@Override
+	public int addTask(String description) {
+		if (!super.followsAddTaskRestrictions(tasksWereReported)) {
+			return -1;
+		}
+
+		tasks.put(numberOfTasks, description);
+		return numberOfTasks++;
+	}
+
+	// Collective, every rank creates its part of the board, also a rank
+	// without any tasks:
+	@Override
+	public void reportTasks(int rank, int size) {
+		// The tasks should not be reported twice:
+		if (tasksWereReported) {
+			return;
+		}
+		tasksWereReported = true;
+		if (tasks.isEmpty()) {
+			logger.info("There are no tasks to report on rank {}.", rank);
+		}
+
+		this.size = size;
+		int[] taskCounts = parallelism.allGather(new int[] { numberOfTasks }, 1);
+		String[] ownDescriptions = new String[numberOfTasks];
+		for (int task = 0; task < numberOfTasks; task++) {
+			ownDescriptions[task] = tasks.get(task);
+		}
+		String[] allDescriptions = parallelism.gatherStrings(ownDescriptions, 0);
+		boardTasks = Arrays.stream(taskCounts).max().orElse(0);
+		if (parallelism.boardInitialise(size * boardTasks) != 0) {
+			logger.error("The progress board could not be created.");
+			return;
+		}
+		if (rank == 0) {
+			descriptions = describeTasks(taskCounts, allDescriptions);
+			writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "progress-logging-aggregator");
+				thread.setDaemon(true);
+				return thread;
+			});
+			writer.scheduleWithFixedDelay(this::writeIfChanged, 0, FLUSH_INTERVAL,
+				TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// The description of every task from the first rank that has it, the
+	// descriptions are gathered in rank order:
+	private String[] describeTasks(int[] taskCounts, String[] allDescriptions) {
+		String[] result = new String[boardTasks];
+		int start = 0;
+		for (int taskCount : taskCounts) {
+			for (int task = 0; task < taskCount; task++) {
+				if (result[task] == null) {
+					result[task] = allDescriptions[start + task];
+				}
+			}
+			start += taskCount;
+		}
+		return result;
+	}
+
+	@Override
+	public int reportProgress(int taskId, int progress, int rank) {
+		if (!super.followsReportProgressRestrictions(tasks, taskId, progress,
+			lastWrittenTaskPercentage))
+		{
+			return -1;
+		}
+
+		// Ignore impossible new progress percentages:
+		if (progress > 100 || progress < 0) {
+			return lastWrittenTaskPercentage.get(taskId);
+		}
+
+		if (!tasksWereReported) {
+			logger.error("The tasks have to be reported before their progress.");
+			return -1;
+		}
+
+		lastWrittenTaskPercentage.put(taskId, progress);
+		return parallelism.boardPut(rank * boardTasks + taskId, progress);
+	}
+
+	@Override
+	public void enableTiming() {
+		// Only the percentages are collected.
+	}
+
+	// Collective, so that rank 0 writes the last progress of every rank. Every
+	// rank enters the barrier, also one that did not report its tasks:
+	@Override
+	public void finalise() {
+		parallelism.barrier();
+		if (writer != null) {
+			writer.shutdown();
+			try {
+				writer.awaitTermination(FLUSH_INTERVAL * 10, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			}
+			writeIfChanged();
+			writer = null;
+		}
+	}
+
+	private synchronized void writeIfChanged() {
+		long[] board = parallelism.boardRead();
+		if (board == null || Arrays.equals(board, lastWrittenBoard)) {
+			return;
+		}
+
+		StringBuilder text = new StringBuilder();
+		text.append(size).append(System.lineSeparator());
+		text.append(Instant.now().toEpochMilli()).append(System.lineSeparator());
+		for (int task = 0; task < boardTasks; task++) {
+			text.append(task).append(',').append(descriptions[task]).append(System
+				.lineSeparator());
+		}
+		for (int rank = 0; rank < size; rank++) {
+			text.append(rank);
+			for (int task = 0; task < boardTasks; task++) {
+				text.append(',').append(board[rank * boardTasks + task]);
+			}
+			text.append(System.lineSeparator());
+		}
+
+		// Replace the file at once, so that a reader never sees a partial one:
+		long start = Metrics.start();
+		Path progressFilePath = Paths.get(JOB_PROGRESS_FILE);
+		Path temporaryFilePath = Paths.get(JOB_PROGRESS_FILE + ".tmp");
+		try {
+			byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+			Files.write(temporaryFilePath, bytes);
+			try {
+				Files.move(temporaryFilePath, progressFilePath,
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException exc) {
+				Files.move(temporaryFilePath, progressFilePath,
+					StandardCopyOption.REPLACE_EXISTING);
+			}
+			Metrics.record(Metrics.Operation.PROGRESS_WRITE, start, bytes.length,
+				0);
+			lastWrittenBoard = board;
+		}
+		catch (IOException exc) {
+			logger.error("Error can not save the job progress file {} ", exc
+				.getMessage());
+		}
+	}
+}
@@ -1,37 +1,263 @@
-
 package cz.it4i.fiji.parallel_macro;
 
 import java.nio.DoubleBuffer;
-import java.util.regex.Pattern;
+import java.util.function.IntFunction;
 
 public class ArrayCommaSeparatedString {
 
+	private static final String SEPARATOR = ", ";
+
+	// Double.toString() prints integers below this limit without an exponent:
+	private static final double PLAIN_INTEGER_LIMIT = 1e7;
+
+	// Doubles represent every integer below 2^53 and every power of ten up to
+	// 10^22 exactly, so their quotient is correctly rounded:
+	private static final long EXACT_MANTISSA_LIMIT = 1L << 53;
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+		1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+		1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Double.toString() prints numbers from this limit on without an exponent:
+	private static final double PLAIN_FRACTION_LIMIT = 1e-3;
+
+	// Measurements usually have only a few decimals, those are printed without
+	// the general floating point algorithm:
+	private static final int MAXIMUM_SHORT_DECIMALS = 3;
+
+	// Guess for the length of a number that is not an integer:
+	private static final int FRACTION_LENGTH_ESTIMATE = 8;
+
 	public String convertBufferToCommaSeparatedString(DoubleBuffer buffer,
 		int length)
 	{
 		if (buffer != null) {
-			StringBuilder bld = new StringBuilder();
+			StringBuilder bld = new StringBuilder(estimateLength(buffer, length));
 			for (int i = 0; i < length; i++) {
-				bld.append(buffer.get(i));
-				if (i != length - 1) {
-					bld.append(", ");
+				if (i != 0) {
+					bld.append(SEPARATOR);
 				}
+				appendDouble(bld, buffer.get(i));
 			}
 			return bld.toString();
 		}
 		return "";
 	}
 
+	public String convertArrayToCommaSeparatedString(int[] array) {
+		int estimate = 0;
+		for (int value : array) {
+			estimate += numberOfDigits(value) + SEPARATOR.length();
+		}
+		StringBuilder bld = new StringBuilder(estimate);
+		for (int i = 0; i < array.length; i++) {
+			if (i != 0) {
+				bld.append(SEPARATOR);
+			}
+			bld.append(array[i]);
+		}
+		return bld.toString();
+	}
+
 	public DoubleBuffer convertCommaSeparatedStringToBuffer(String string,
 		MpiReflection mpiReflection)
 	{
-		Pattern pattern = Pattern.compile(",");
-		double[] tempArray = pattern.splitAsStream(string).mapToDouble(
-			Double::parseDouble).toArray();
-		DoubleBuffer tempBuffer = mpiReflection.newDoubleBuffer(tempArray.length);
-		for (int i = 0; i < tempArray.length; i++) {
-			tempBuffer.put(tempArray[i]);
-		}
-		return tempBuffer;
+		return convertCommaSeparatedStringToBuffer(string,
+			mpiReflection::newDoubleBuffer);
+	}
+
+	// The allocator creates a buffer of the given length, e.g. a direct one:
+	public DoubleBuffer convertCommaSeparatedStringToBuffer(String string,
+		IntFunction<DoubleBuffer> allocator)
+	{
+		int end = lengthWithoutTrailingSeparators(string);
+		DoubleBuffer buffer = allocator.apply(countElements(string, end));
+		parseInto(string, end, buffer);
+		return buffer;
+	}
+
+	public double[] convertCommaSeparatedStringToArray(String string) {
+		int end = lengthWithoutTrailingSeparators(string);
+		double[] array = new double[countElements(string, end)];
+		parseInto(string, end, DoubleBuffer.wrap(array));
+		return array;
+	}
+
+	public int[] convertCommaSeparatedStringToIntArray(String string) {
+		int end = lengthWithoutTrailingSeparators(string);
+		int[] array = new int[countElements(string, end)];
+		int start = 0;
+		for (int i = 0; i < array.length; i++) {
+			int separator = indexOfSeparator(string, start, end);
+			array[i] = (int) parseDouble(string, start, separator);
+			start = separator + 1;
+		}
+		return array;
+	}
+
+	// Parses the elements one after the other straight into the destination:
+	private void parseInto(String string, int end, DoubleBuffer destination) {
+		int start = 0;
+		int index = 0;
+		while (start < end) {
+			int separator = indexOfSeparator(string, start, end);
+			destination.put(index++, parseDouble(string, start, separator));
+			start = separator + 1;
+		}
+	}
+
+	private static double parseDouble(String string, int start, int end) {
+		int position = skipWhitespace(string, start, end);
+		int last = end;
+		while (last > position && Character.isWhitespace(string.charAt(last -
+			1)))
+		{
+			last--;
+		}
+
+		boolean negative = false;
+		if (position < last && (string.charAt(position) == '-' || string.charAt(
+			position) == '+'))
+		{
+			negative = string.charAt(position) == '-';
+			position++;
+		}
+
+		// Read the digits of the form 123 or 123.456 into a single mantissa:
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean pointSeen = false;
+		for (; position < last; position++) {
+			char character = string.charAt(position);
+			if (character >= '0' && character <= '9') {
+				if (mantissa >= EXACT_MANTISSA_LIMIT / 10) {
+					// Too many digits for the exact path.
+					return Double.parseDouble(string.substring(start, end));
+				}
+				mantissa = mantissa * 10 + (character - '0');
+				digits++;
+				if (pointSeen) {
+					fractionDigits++;
+				}
+			}
+			else if (character == '.' && !pointSeen) {
+				pointSeen = true;
+			}
+			else {
+				// Exponents, NaN, Infinity etc. are left to the JDK:
+				return Double.parseDouble(string.substring(start, end));
+			}
+		}
+		if (digits == 0 || fractionDigits >= POWERS_OF_TEN.length) {
+			return Double.parseDouble(string.substring(start, end));
+		}
+
+		double value = fractionDigits == 0 ? (double) mantissa : mantissa /
+			POWERS_OF_TEN[fractionDigits];
+		return negative ? -value : value;
+	}
+
+	private static void appendDouble(StringBuilder bld, double value) {
+		// Same text as Double.toString() without the floating point algorithm:
+		if (isPlainInteger(value)) {
+			bld.append((long) value).append(".0");
+			return;
+		}
+		double magnitude = Math.abs(value);
+		if (magnitude >= PLAIN_FRACTION_LIMIT && magnitude < PLAIN_INTEGER_LIMIT) {
+			// The fewest decimals that give back the same double are exactly the
+			// digits Double.toString() prints:
+			for (int decimals = 1; decimals <= MAXIMUM_SHORT_DECIMALS; decimals++) {
+				long scaled = Math.round(magnitude * POWERS_OF_TEN[decimals]);
+				if (scaled / POWERS_OF_TEN[decimals] == magnitude) {
+					appendShortDecimal(bld, value < 0, scaled, decimals);
+					return;
+				}
+			}
+		}
+		bld.append(value);
+	}
+
+	private static void appendShortDecimal(StringBuilder bld, boolean negative,
+		long scaled, int decimals)
+	{
+		long divisor = (long) POWERS_OF_TEN[decimals];
+		if (negative) {
+			bld.append('-');
+		}
+		bld.append(scaled / divisor).append('.');
+		long fraction = scaled % divisor;
+		// Leading zeros of the fraction:
+		long digit = divisor / 10;
+		while (digit > 1 && digit > fraction) {
+			bld.append('0');
+			digit /= 10;
+		}
+		bld.append(fraction);
+	}
+
+	private static int estimateLength(DoubleBuffer buffer, int length) {
+		int estimate = 0;
+		for (int i = 0; i < length; i++) {
+			double value = buffer.get(i);
+			if (isPlainInteger(value)) {
+				estimate += numberOfDigits((long) value) + ".0".length();
+			}
+			else {
+				estimate += FRACTION_LENGTH_ESTIMATE;
+			}
+			estimate += SEPARATOR.length();
+		}
+		return estimate;
+	}
+
+	private static boolean isPlainInteger(double value) {
+		return value == (long) value && Math.abs(value) < PLAIN_INTEGER_LIMIT &&
+			(value != 0 || Double.doubleToRawLongBits(value) == 0);
+	}
+
+	private static int numberOfDigits(long value) {
+		int digits = value < 0 ? 2 : 1;
+		long remaining = Math.abs(value);
+		while (remaining >= 10) {
+			remaining /= 10;
+			digits++;
+		}
+		return digits;
+	}
+
+	private static int countElements(String string, int end) {
+		if (end == 0) {
+			return 0;
+		}
+		int count = 1;
+		for (int i = 0; i < end; i++) {
+			if (string.charAt(i) == ',') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// Trailing empty elements are ignored, as String.split() does:
+	private static int lengthWithoutTrailingSeparators(String string) {
+		int end = string.length();
+		while (end > 0 && string.charAt(end - 1) == ',') {
+			end--;
+		}
+		return end;
+	}
+
+	private static int indexOfSeparator(String string, int start, int end) {
+		int separator = string.indexOf(',', start);
+		return separator < 0 || separator > end ? end : separator;
+	}
+
+	private static int skipWhitespace(String string, int start, int end) {
+		int position = start;
+		while (position < end && Character.isWhitespace(string.charAt(position))) {
+			position++;
+		}
+		return position;
 	}
 }
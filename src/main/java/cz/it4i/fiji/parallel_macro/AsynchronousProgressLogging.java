@@ -0,0 +1,286 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Decorator that moves the disk I/O of another progress logging to a
+// background writer thread, so a slow shared file system does not stall the
+// macro. Several updates of the same task that are waiting to be written are
+// merged into the latest one. The reports are checked on the caller's thread,
+// so the macro gets the same return codes as from the wrapped logging, and
+// carry the time they were made, so the writer does not skew the durations.
+public class AsynchronousProgressLogging extends ProgressLoggingRestrictions
+	implements ProgressLogging
+{
+
+	// What to do when the queue of tasks waiting to be written is full:
+	public enum Backpressure {
+		// Drop the update unless the task is finished:
+		DROP,
+		// Wait until the writer catches up:
+		BLOCK
+	}
+
+	// How long the writer sleeps when there is nothing to write:
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(
+		100);
+
+	// How long a producer waits between checks of a full queue:
+	private static final long FULL_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private Logger logger = LoggerFactory.getLogger(ParallelMacro.class);
+
+	private final ProgressLogging progressLogging;
+
+	private final int capacity;
+
+	private final Backpressure backpressure;
+
+	// Latest progress of each task that is waiting to be written, and the ids
+	// of those tasks in the order they started waiting:
+	private final Map<Integer, PendingProgress> pendingProgress =
+		new ConcurrentHashMap<>();
+	private final Queue<Integer> pendingTasks = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger numberOfPendingTasks = new AtomicInteger();
+
+	// What the macro reported, to check its reports on its own thread:
+	private final Map<Integer, String> tasks = new HashMap<>();
+	private final Map<Integer, Integer> lastReportedTaskPercentage =
+		new HashMap<>();
+	private boolean tasksWereReported = false;
+
+	private volatile boolean timingIsEnabled = false;
+
+	private volatile int lastRank = 0;
+
+	private volatile boolean running = true;
+
+	private final Thread writer;
+
+	private final Thread shutdownHook;
+
+	public AsynchronousProgressLogging(ProgressLogging progressLogging,
+		int capacity, Backpressure backpressure)
+	{
+		this.progressLogging = progressLogging;
+		this.capacity = capacity;
+		this.backpressure = backpressure;
+
+		writer = new Thread(this::writePendingProgress, "progress-logging-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		// Do not lose progress when the macro ends without finalise():
+		shutdownHook = new Thread(this::drain, "progress-logging-drain");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	@Override
+	public int addTask(String description) {
+		int taskId;
+		synchronized (progressLogging) {
+			taskId = progressLogging.addTask(description);
+		}
+		if (taskId >= 0) {
+			tasks.put(taskId, description);
+		}
+		return taskId;
+	}
+
+	@Override
+	public void reportTasks(int rank, int size) {
+		synchronized (progressLogging) {
+			progressLogging.reportTasks(rank, size);
+		}
+		if (super.followsReportTasksRestrictions(tasks, tasksWereReported)) {
+			tasksWereReported = true;
+		}
+	}
+
+	@Override
+	public int reportProgress(int taskId, int progress, int rank) {
+		long reportNanos = System.nanoTime();
+		lastRank = rank;
+
+		if (!super.followsReportProgressRestrictions(tasks, taskId, progress,
+			lastReportedTaskPercentage))
+		{
+			return -1;
+		}
+
+		// Ignore impossible new progress percentages:
+		if (progress > 100 || progress < 0) {
+			return lastReportedTaskPercentage.get(taskId);
+		}
+
+		if (!tasksWereReported) {
+			logger.error("The tasks have to be reported before their progress.");
+			return -1;
+		}
+
+		// The wrapped logging starts the timer of a task on its 0 % or first
+		// update, which must not be merged into a later one:
+		boolean startsTimer = timingIsEnabled && (progress == 0 ||
+			!lastReportedTaskPercentage.containsKey(taskId));
+		lastReportedTaskPercentage.put(taskId, progress);
+
+		// A task that is already waiting only gets its progress updated, a new
+		// one needs a place in the queue, reserved while its entry is locked so
+		// that the count of waiting tasks stays exact:
+		while (running) {
+			boolean[] added = { false };
+			boolean[] full = { false };
+			pendingProgress.compute(taskId, (id, pending) -> {
+				if (pending != null) {
+					return pending.updatedTo(progress, reportNanos);
+				}
+				if (!tryReserve()) {
+					full[0] = true;
+					return null;
+				}
+				added[0] = true;
+				return new PendingProgress(startsTimer ? progress : -1, reportNanos,
+					progress, reportNanos);
+			});
+			if (added[0]) {
+				pendingTasks.offer(taskId);
+				LockSupport.unpark(writer);
+			}
+			if (!full[0]) {
+				return 0;
+			}
+
+			// Finished tasks are never dropped:
+			if (backpressure == Backpressure.DROP && progress < 100) {
+				return 0;
+			}
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(this, FULL_PARK_NANOS);
+		}
+
+		// Once the writer has stopped progress is written right away:
+		synchronized (progressLogging) {
+			return progressLogging.reportProgress(taskId, progress, rank,
+				reportNanos);
+		}
+	}
+
+	// Takes a place in the queue if there is one, without waiting, as it is
+	// called while the task's entry is locked:
+	private boolean tryReserve() {
+		if (numberOfPendingTasks.incrementAndGet() > capacity) {
+			numberOfPendingTasks.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void enableTiming() {
+		timingIsEnabled = true;
+		synchronized (progressLogging) {
+			progressLogging.enableTiming();
+		}
+	}
+
+	@Override
+	public void finalise() {
+		drain();
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		}
+		catch (IllegalStateException exc) {
+			// The JVM is already shutting down and runs the hook anyway.
+		}
+	}
+
+	// Stops the writer after everything that is waiting has been written:
+	private void drain() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (progressLogging) {
+			writeBatch();
+			progressLogging.finalise();
+		}
+	}
+
+	private void writePendingProgress() {
+		while (running) {
+			synchronized (progressLogging) {
+				writeBatch();
+			}
+			if (running && pendingTasks.isEmpty()) {
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	// Writes all the tasks that are waiting, the caller holds the lock:
+	private void writeBatch() {
+		Integer taskId;
+		while ((taskId = pendingTasks.poll()) != null) {
+			PendingProgress pending = pendingProgress.remove(taskId);
+			numberOfPendingTasks.decrementAndGet();
+			if (pending == null) {
+				continue;
+			}
+			if (pending.startProgress >= 0 &&
+				pending.startProgress != pending.progress)
+			{
+				write(taskId, pending.startProgress, pending.startNanos);
+			}
+			write(taskId, pending.progress, pending.reportNanos);
+		}
+	}
+
+	private void write(int taskId, int progress, long reportNanos) {
+		if (progressLogging.reportProgress(taskId, progress, lastRank,
+			reportNanos) != 0)
+		{
+			logger.debug("Progress {} of task {} was not written.", progress,
+				taskId);
+		}
+	}
+
+	// The update of a task that is waiting to be written, with the update that
+	// starts its timer, if any, kept apart from the latest one:
+	private static class PendingProgress {
+
+		private final int startProgress;
+		private final long startNanos;
+		private final int progress;
+		private final long reportNanos;
+
+		private PendingProgress(int startProgress, long startNanos, int progress,
+			long reportNanos)
+		{
+			this.startProgress = startProgress;
+			this.startNanos = startNanos;
+			this.progress = progress;
+			this.reportNanos = reportNanos;
+		}
+
+		private PendingProgress updatedTo(int newProgress, long newReportNanos) {
+			if (newProgress <= progress) {
+				return this;
+			}
+			return new PendingProgress(startProgress, startNanos, newProgress,
+				newReportNanos);
+		}
+	}
+}
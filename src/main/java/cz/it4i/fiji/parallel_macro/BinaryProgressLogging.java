@@ -0,0 +1,250 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Progress log of fixed size binary records in progress_<rank>.bplog, read
+// with BinaryProgressReader and converted to the text or XML progress log
+// with ProgressLogConverter.
+//
+// The big-endian header is the magic number, the format version, the length
+// of a record, the rank, the number of ranks, the time-stamp in milliseconds
+// at reportTasks and the number of tasks followed by each task description as
+// its UTF-8 length and bytes. A record is the task id (int), the percentage
+// (short), the flags (short, TIMED when timing was enabled) and the
+// nanoseconds since the time-stamp of the header (long). The time of the last
+// update is that of the last record, so nothing is ever rewritten in place.
+public class BinaryProgressLogging extends ProgressLoggingRestrictions
+	implements ProgressLogging
+{
+
+	static final String LOG_FILE_BINARY_PROGRESS_POSTFIX = ".bplog";
+
+	static final int MAGIC = 0x504C4F47;
+
+	static final short VERSION = 1;
+
+	// The header without the task descriptions:
+	static final int FIXED_HEADER_LENGTH = 28;
+
+	static final int RECORD_LENGTH = 16;
+
+	static final short TIMED = 1;
+
+	// Minimal time between two writes of the buffered records in milliseconds:
+	private static final long FLUSH_INTERVAL = Configuration.getLong(
+		"progress.flush_interval", 1000);
+
+	// The records are collected in one buffer that is reused for every write:
+	private static final int BUFFERED_RECORDS = 256;
+
+	private Logger logger = LoggerFactory.getLogger(ParallelMacro.class);
+
+	private Map<Integer, String> tasks = new HashMap<>();
+
+	private Integer numberOfTasks = 0;
+
+	private Map<Integer, Integer> lastWrittenTaskPercentage = new HashMap<>();
+
+	private boolean tasksWereReported = false;
+
+	private boolean timingIsEnabled = false;
+
+	private FileChannel channel = null;
+	private long appendPosition = 0;
+	private long startNanos;
+	private long lastFlushTime = 0;
+	private ByteBuffer recordBuffer = ByteBuffer.allocateDirect(
+		BUFFERED_RECORDS * RECORD_LENGTH);
+
+	// Writes the records that were kept back by the flush interval, while the
+	// macro computes without reporting:
+	private ScheduledExecutorService flusher = null;
+
+	@Override
+	public synchronized int addTask(String description) {
+		if (!super.followsAddTaskRestrictions(tasksWereReported)) {
+			return -1;
+		}
+
+		tasks.put(numberOfTasks, description);
+		return numberOfTasks++;
+	}
+
+	@Override
+	public synchronized void reportTasks(int rank, int size) {
+		if (!super.followsReportTasksRestrictions(tasks, tasksWereReported)) {
+			return;
+		}
+
+		try {
+			closeChannel();
+			channel = FileChannel.open(progressLogFilePath(rank),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+
+			byte[][] descriptions = new byte[numberOfTasks][];
+			int length = FIXED_HEADER_LENGTH;
+			for (int counter = 0; counter < numberOfTasks; counter++) {
+				descriptions[counter] = tasks.get(counter).getBytes(
+					StandardCharsets.UTF_8);
+				length += Integer.BYTES + descriptions[counter].length;
+			}
+			ByteBuffer header = ByteBuffer.allocate(length);
+			header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_LENGTH)
+				.putInt(rank).putInt(size).putLong(Instant.now().toEpochMilli())
+				.putInt(numberOfTasks);
+			for (byte[] description : descriptions) {
+				header.putInt(description.length).put(description);
+			}
+			header.flip();
+			startNanos = System.nanoTime();
+			appendPosition = writeFully(header, 0);
+			lastFlushTime = System.currentTimeMillis();
+			startFlusher();
+		}
+		catch (IOException exc) {
+			logger.error(" Error occurred during reporting tasks: {} ", exc
+				.getMessage());
+			closeChannel();
+			return;
+		}
+
+		// The tasks should not be reported twice:
+		tasksWereReported = true;
+	}
+
+	@Override
+	public int reportProgress(int taskId, int progress, int rank) {
+		return reportProgress(taskId, progress, rank, System.nanoTime());
+	}
+
+	@Override
+	public synchronized int reportProgress(int taskId, int progress, int rank,
+		long reportNanos)
+	{
+		if (!super.followsReportProgressRestrictions(tasks, taskId, progress,
+			lastWrittenTaskPercentage))
+		{
+			return -1;
+		}
+
+		// Ignore impossible new progress percentages:
+		if (progress > 100 || progress < 0) {
+			return lastWrittenTaskPercentage.get(taskId);
+		}
+
+		if (channel == null) {
+			logger.error("The tasks have to be reported before their progress.");
+			return -1;
+		}
+
+		lastWrittenTaskPercentage.put(taskId, progress);
+		recordBuffer.putInt(taskId).putShort((short) progress).putShort(
+			timingIsEnabled ? TIMED : 0).putLong(reportNanos - startNanos);
+
+		// Finished tasks are written right away, the others once the buffer is
+		// full or enough time has passed since the last write, by the flusher
+		// when no report follows:
+		if (progress == 100 || !recordBuffer.hasRemaining() || System
+			.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL)
+		{
+			return flush();
+		}
+		return 0;
+	}
+
+	private synchronized void flushIfPending() {
+		if (channel != null && recordBuffer.position() > 0) {
+			flush();
+		}
+	}
+
+	private void startFlusher() {
+		if (flusher != null || FLUSH_INTERVAL <= 0) {
+			return;
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "binary-progress-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushIfPending, FLUSH_INTERVAL,
+			FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized int flush() {
+		recordBuffer.flip();
+		long start = Metrics.start();
+		try {
+			int written = writeFully(recordBuffer, appendPosition);
+			appendPosition += written;
+			Metrics.record(Metrics.Operation.PROGRESS_WRITE, start, written, 0);
+			return 0;
+		}
+		catch (IOException exc) {
+			logger.error(" Error occurred during report progress error: {} ", exc
+				.getMessage());
+			return -1;
+		}
+		finally {
+			recordBuffer.clear();
+			lastFlushTime = System.currentTimeMillis();
+		}
+	}
+
+	private int writeFully(ByteBuffer buffer, long position) throws IOException {
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+
+	static Path progressLogFilePath(int rank) {
+		return Paths.get(LOG_FILE_PROGRESS_PREFIX + String.valueOf(rank) +
+			LOG_FILE_BINARY_PROGRESS_POSTFIX);
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (IOException exc) {
+				logger.error("Error occurred while closing the progress log: {} ", exc
+					.getMessage());
+			}
+			channel = null;
+		}
+	}
+
+	@Override
+	public synchronized void enableTiming() {
+		this.timingIsEnabled = true;
+	}
+
+	@Override
+	public synchronized void finalise() {
+		if (flusher != null) {
+			flusher.shutdown();
+			flusher = null;
+		}
+		flushIfPending();
+		closeChannel();
+	}
+}
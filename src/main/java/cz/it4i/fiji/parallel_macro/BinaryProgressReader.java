@@ -0,0 +1,227 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Reads a binary progress log while it is being written. Every poll only
+// reads the bytes appended since the previous one and passes the complete
+// records to the listener, a partially written header or record is read again
+// by the next poll. The latest percentage and the duration of every task are
+// kept, so the state of the job is known without reading the file again.
+public class BinaryProgressReader implements Closeable {
+
+	public interface RecordListener {
+
+		// The duration is -1 unless the task finished with timing enabled:
+		void record(int taskId, int progress, long duration);
+	}
+
+	private final FileChannel channel;
+
+	private ByteBuffer pending = ByteBuffer.allocate(4096);
+	private long filePosition = 0;
+
+	private boolean headerWasRead = false;
+	private int recordLength;
+	private int rank;
+	private int size;
+	private long startTimestamp;
+	private List<String> tasks = new ArrayList<>();
+
+	private int[] progress;
+	private long[] startNanos;
+	private long[] durations;
+	private long lastNanos = 0;
+
+	public BinaryProgressReader(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+	}
+
+	// Returns the number of new records, the header is read first:
+	public int poll(RecordListener listener) throws IOException {
+		if (channel.size() < filePosition) {
+			// The log was written again from its start:
+			reset();
+		}
+		readAppendedBytes();
+
+		pending.flip();
+		int records = 0;
+		try {
+			if (!headerWasRead && !readHeader()) {
+				return 0;
+			}
+			while (pending.remaining() >= recordLength) {
+				int start = pending.position();
+				readRecord(listener);
+				pending.position(start + recordLength);
+				records++;
+			}
+		}
+		finally {
+			pending.compact();
+		}
+		return records;
+	}
+
+	private void readAppendedBytes() throws IOException {
+		int read;
+		do {
+			if (!pending.hasRemaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+				pending.flip();
+				larger.put(pending);
+				pending = larger;
+			}
+			read = channel.read(pending, filePosition);
+			if (read > 0) {
+				filePosition += read;
+			}
+		}
+		while (read > 0);
+	}
+
+	private boolean readHeader() throws IOException {
+		if (pending.remaining() < BinaryProgressLogging.FIXED_HEADER_LENGTH) {
+			return false;
+		}
+		int start = pending.position();
+		if (pending.getInt() != BinaryProgressLogging.MAGIC || pending
+			.getShort() != BinaryProgressLogging.VERSION)
+		{
+			throw new IOException("Not a binary progress log of version " +
+				BinaryProgressLogging.VERSION + ".");
+		}
+		int headerRecordLength = pending.getShort();
+		if (headerRecordLength < BinaryProgressLogging.RECORD_LENGTH) {
+			throw new IOException("Records of " + headerRecordLength +
+				" bytes are too short.");
+		}
+		int headerRank = pending.getInt();
+		int headerSize = pending.getInt();
+		long timestamp = pending.getLong();
+		int numberOfTasks = pending.getInt();
+		List<String> descriptions = new ArrayList<>(numberOfTasks);
+		for (int counter = 0; counter < numberOfTasks; counter++) {
+			if (pending.remaining() < Integer.BYTES) {
+				pending.position(start);
+				return false;
+			}
+			int length = pending.getInt();
+			if (pending.remaining() < length) {
+				pending.position(start);
+				return false;
+			}
+			descriptions.add(new String(pending.array(), pending.arrayOffset() +
+				pending.position(), length, StandardCharsets.UTF_8));
+			pending.position(pending.position() + length);
+		}
+
+		recordLength = headerRecordLength;
+		rank = headerRank;
+		size = headerSize;
+		startTimestamp = timestamp;
+		tasks = descriptions;
+		progress = new int[numberOfTasks];
+		Arrays.fill(progress, -1);
+		startNanos = new long[numberOfTasks];
+		Arrays.fill(startNanos, -1);
+		durations = new long[numberOfTasks];
+		Arrays.fill(durations, -1);
+		headerWasRead = true;
+		return true;
+	}
+
+	private void readRecord(RecordListener listener) throws IOException {
+		int taskId = pending.getInt();
+		int percentage = pending.getShort();
+		short flags = pending.getShort();
+		long nanos = pending.getLong();
+		if (taskId < 0 || taskId >= progress.length) {
+			throw new IOException("Progress of the unknown task " + taskId + ".");
+		}
+
+		// The same rule as the other progress logs, the time from the first
+		// report or from 0 % to 100 %:
+		long duration = -1;
+		if ((flags & BinaryProgressLogging.TIMED) != 0) {
+			if (percentage == 0 || startNanos[taskId] < 0) {
+				startNanos[taskId] = nanos;
+			}
+			else if (percentage == 100) {
+				duration = nanos - startNanos[taskId];
+				durations[taskId] = duration;
+			}
+		}
+		progress[taskId] = percentage;
+		lastNanos = Math.max(lastNanos, nanos);
+		if (listener != null) {
+			listener.record(taskId, percentage, duration);
+		}
+	}
+
+	private void reset() {
+		pending.clear();
+		filePosition = 0;
+		headerWasRead = false;
+		tasks = new ArrayList<>();
+		lastNanos = 0;
+	}
+
+	public boolean hasHeader() {
+		return headerWasRead;
+	}
+
+	public int getRank() {
+		return rank;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public List<String> getTasks() {
+		return Collections.unmodifiableList(tasks);
+	}
+
+	// The latest percentage, -1 before the first report:
+	public int getProgress(int taskId) {
+		return progress[taskId];
+	}
+
+	// In nanoseconds, -1 unless the task finished with timing enabled:
+	public long getDuration(int taskId) {
+		return durations[taskId];
+	}
+
+	// The time-stamp of the last record in milliseconds:
+	public long getLastUpdated() {
+		return startTimestamp + lastNanos / 1000000;
+	}
+
+	public boolean allTasksFinished() {
+		if (!headerWasRead) {
+			return false;
+		}
+		for (int percentage : progress) {
+			if (percentage != 100) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,215 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Keys of the work items that are done, e.g. the paths of processed files, so
+// that a job that is submitted again after it ran out of time or lost a node
+// skips them. Every rank appends a line per item to its checkpoint_<rank>.jnl
+// as soon as the item is done. At initialise rank 0 reads the journals of all
+// the ranks of the earlier runs, whatever their number was, and broadcasts
+// the keys. A line cut by a failure is ignored and overwritten.
+//
+// Checkpointing is enabled by the "checkpoint.directory" setting. Without it
+// the items that are done are only kept in memory and initialise does not
+// communicate.
+public class CheckpointJournal {
+
+	static final String JOURNAL_PREFIX = "checkpoint_";
+	static final String JOURNAL_POSTFIX = ".jnl";
+
+	private Logger logger = LoggerFactory.getLogger(ParallelMacro.class);
+
+	// Directory of the journals, they are kept between the runs of the job,
+	// null when checkpointing is disabled:
+	private final String directory;
+
+	// Force every line to the disk, so that the failure of a node loses none:
+	private final boolean fsync;
+
+	private final Set<String> done = ConcurrentHashMap.newKeySet();
+
+	// The ranks of the shared memory backend are threads of one JVM:
+	private final Map<Integer, FileChannel> journals = new ConcurrentHashMap<>();
+
+	public CheckpointJournal() {
+		this(Configuration.getString("checkpoint.directory", null), Configuration
+			.getBoolean("checkpoint.fsync", false));
+	}
+
+	public CheckpointJournal(String directory, boolean fsync) {
+		this.directory = directory;
+		this.fsync = fsync;
+	}
+
+	public boolean isEnabled() {
+		return directory != null;
+	}
+
+	// Collective, merges the journals of the earlier runs:
+	public int initialise(Parallelism parallelism) {
+		if (!isEnabled()) {
+			return 0;
+		}
+		String[] keys = null;
+		if (parallelism.getRank() == 0) {
+			try {
+				keys = readJournals(Paths.get(directory)).toArray(new String[0]);
+			}
+			catch (IOException exc) {
+				logger.error("Checkpoint journals could not be read: {} ", exc
+					.getMessage());
+				keys = new String[0];
+			}
+		}
+		keys = parallelism.broadcastStrings(keys, 0);
+		for (String key : keys) {
+			done.add(key);
+		}
+		return 0;
+	}
+
+	public boolean isDone(String key) {
+		return done.contains(key);
+	}
+
+	public int markDone(String key, int rank) {
+		if (!done.add(key) || !isEnabled()) {
+			return 0;
+		}
+		try {
+			FileChannel journal = journal(rank);
+			ByteBuffer line = ByteBuffer.wrap((escape(key) + "\n").getBytes(
+				StandardCharsets.UTF_8));
+			while (line.hasRemaining()) {
+				journal.write(line);
+			}
+			if (fsync) {
+				journal.force(false);
+			}
+			return 0;
+		}
+		catch (IOException exc) {
+			logger.error("Checkpoint journal error: {} ", exc.getMessage());
+			done.remove(key);
+			return -1;
+		}
+	}
+
+	public void finalise(int rank) {
+		FileChannel journal = journals.remove(rank);
+		if (journal != null) {
+			try {
+				journal.close();
+			}
+			catch (IOException exc) {
+				logger.error("Checkpoint journal error: {} ", exc.getMessage());
+			}
+		}
+	}
+
+	private FileChannel journal(int rank) throws IOException {
+		FileChannel journal = journals.get(rank);
+		if (journal != null) {
+			return journal;
+		}
+		journal = FileChannel.open(Paths.get(directory, JOURNAL_PREFIX + rank +
+			JOURNAL_POSTFIX), StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+
+		// Drop a line cut by a failure, the new lines are appended after the last
+		// complete one:
+		long size = journal.size();
+		long end = lastLineEnd(journal, size);
+		if (end < size) {
+			journal.truncate(end);
+		}
+		journal.position(end);
+		journals.put(rank, journal);
+		return journal;
+	}
+
+	private static long lastLineEnd(FileChannel journal, long size)
+		throws IOException
+	{
+		ByteBuffer chunk = ByteBuffer.allocate(4096);
+		long chunkEnd = size;
+		while (chunkEnd > 0) {
+			long start = Math.max(chunkEnd - chunk.capacity(), 0);
+			chunk.clear().limit((int) (chunkEnd - start));
+			while (chunk.hasRemaining()) {
+				if (journal.read(chunk, start + chunk.position()) < 0) {
+					break;
+				}
+			}
+			for (int index = chunk.position() - 1; index >= 0; index--) {
+				if (chunk.get(index) == '\n') {
+					return start + index + 1;
+				}
+			}
+			chunkEnd = start;
+		}
+		return 0;
+	}
+
+	static Set<String> readJournals(Path directory) throws IOException {
+		Set<String> keys = new HashSet<>();
+		if (!Files.isDirectory(directory)) {
+			return keys;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+			JOURNAL_PREFIX + "*" + JOURNAL_POSTFIX))
+		{
+			for (Path path : stream) {
+				String text = new String(Files.readAllBytes(path),
+					StandardCharsets.UTF_8);
+				// Only the complete lines, the last one may have been cut:
+				int start = 0;
+				int end = text.indexOf('\n');
+				while (end >= 0) {
+					if (end > start) {
+						keys.add(unescape(text.substring(start, end)));
+					}
+					start = end + 1;
+					end = text.indexOf('\n', start);
+				}
+			}
+		}
+		return keys;
+	}
+
+	// A key is one line, its line breaks are escaped:
+	private static String escape(String key) {
+		return key.replace("\\", "\\\\").replace("\n", "\\n").replace("\r",
+			"\\r");
+	}
+
+	private static String unescape(String line) {
+		StringBuilder key = new StringBuilder(line.length());
+		for (int index = 0; index < line.length(); index++) {
+			char character = line.charAt(index);
+			if (character == '\\' && index + 1 < line.length()) {
+				char next = line.charAt(++index);
+				key.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			}
+			else {
+				key.append(character);
+			}
+		}
+		return key.toString();
+	}
+}
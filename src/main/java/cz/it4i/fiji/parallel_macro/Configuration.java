@@ -0,0 +1,80 @@
+package cz.it4i.fiji.parallel_macro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Settings of Parallel-Macro, each one is read from the system property
+// "parallel_macro.<name>" or else from the environment variable
+// "PARALLEL_MACRO_<NAME>" (upper case with dots replaced by underscores):
+public final class Configuration {
+
+	private static Logger logger = LoggerFactory.getLogger(Configuration.class);
+
+	private static final String PROPERTY_PREFIX = "parallel_macro.";
+	private static final String VARIABLE_PREFIX = "PARALLEL_MACRO_";
+
+	public static String getString(String name, String defaultValue) {
+		String value = System.getProperty(PROPERTY_PREFIX + name);
+		if (value == null) {
+			value = System.getenv(VARIABLE_PREFIX + name.toUpperCase().replace('.',
+				'_'));
+		}
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	public static long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException exc) {
+			logger.error("Setting {} is not a number: {} ", name, value);
+			return defaultValue;
+		}
+	}
+
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value);
+	}
+
+	// Rank and size of this process as set by the launcher of the job (mpirun,
+	// a PMI launcher or srun), rank 0 of 1 when there is none:
+	public static long getLauncherRank() {
+		return getLauncherValue(0, "OMPI_COMM_WORLD_RANK", "PMI_RANK",
+			"SLURM_PROCID");
+	}
+
+	public static long getLauncherSize() {
+		return getLauncherValue(1, "OMPI_COMM_WORLD_SIZE", "PMI_SIZE",
+			"SLURM_NTASKS");
+	}
+
+	private static long getLauncherValue(long defaultValue, String... names) {
+		for (String name : names) {
+			String value = System.getenv(name);
+			if (value != null && !value.trim().isEmpty()) {
+				try {
+					return Long.parseLong(value.trim());
+				}
+				catch (NumberFormatException exc) {
+					// Try the next launcher.
+				}
+			}
+		}
+		return defaultValue;
+	}
+
+	private Configuration() {
+		// Empty private constructor to hide default public one.
+	}
+}
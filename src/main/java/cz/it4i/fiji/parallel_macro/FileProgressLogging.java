@@ -3,6 +3,8 @@ package cz.it4i.fiji.parallel_macro;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -18,6 +20,21 @@ public class FileProgressLogging extends ProgressLoggingRestrictions implements
 	ProgressLogging
 {
 
+	// Keep one channel to the progress file open for the whole job instead of
+	// opening the file twice for every progress update:
+	private static final boolean KEEP_FILE_OPEN = Configuration.getBoolean(
+		"progress.file.keep_open", true);
+
+	// The "last updated" time-stamp is zero padded to a fixed length, so it can
+	// be overwritten in place:
+	private static final int TIMESTAMP_DIGITS = 13;
+
+	// Enough for "taskId,progress,duration" and the line separator:
+	private static final int RECORD_CAPACITY = 64;
+
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator()
+		.getBytes();
+
 	private Logger logger = LoggerFactory.getLogger(ParallelMacro.class);
 
 	private Map<Integer, String> tasks = new HashMap<>();
@@ -32,6 +49,13 @@ public class FileProgressLogging extends ProgressLoggingRestrictions implements
 	private boolean timingIsEnabled = false;
 	private Map<Integer, Long> startTime = new HashMap<>();
 
+	private FileChannel channel = null;
+	private long timestampOffset = -1;
+	private long appendPosition = 0;
+	private ByteBuffer recordBuffer = ByteBuffer.allocateDirect(RECORD_CAPACITY);
+	private ByteBuffer timestampBuffer = ByteBuffer.allocateDirect(
+		TIMESTAMP_DIGITS);
+
 	@Override
 	public int addTask(String description) {
 		if (!super.followsAddTaskRestrictions(tasksWereReported)) {
@@ -48,34 +72,11 @@ public class FileProgressLogging extends ProgressLoggingRestrictions implements
 			return;
 		}
 
-		try {
-			String text = "";
-
-			Path progressLogFilePath = Paths.get(LOG_FILE_PROGRESS_PREFIX + String
-				.valueOf(rank) + LOG_FILE_PROGRESS_POSTFIX);
-
-			// Write the number of nodes on the first line of the progress log
-			Files.write(progressLogFilePath, Integer.toString(size).concat(System
-				.lineSeparator()).getBytes(), StandardOpenOption.TRUNCATE_EXISTING,
-				StandardOpenOption.CREATE);
-
-			// Write the first time-stamp:
-			Files.write(progressLogFilePath, Long.toString(java.time.Instant.now()
-				.toEpochMilli()).concat(System.lineSeparator()).getBytes(),
-				StandardOpenOption.APPEND, StandardOpenOption.CREATE);
-
-			// Report the tasks one by ones id each along with its description:
-			for (Integer counter = 0; counter < numberOfTasks; counter++) {
-				text = String.valueOf(counter).concat(",").concat(tasks.get(counter))
-					.concat(System.lineSeparator());
-				Files.write(progressLogFilePath, text.getBytes(),
-					StandardOpenOption.APPEND, StandardOpenOption.CREATE);
-			}
-
+		if (KEEP_FILE_OPEN) {
+			writeHeaderToChannel(rank, size);
 		}
-		catch (IOException exc) {
-			logger.error(" Error occurred during reporting tasks: {} ", exc
-				.getMessage());
+		else {
+			writeHeaderToFile(rank, size);
 		}
 
 		// The tasks should not be reported twice:
@@ -84,6 +85,13 @@ public class FileProgressLogging extends ProgressLoggingRestrictions implements
 
 	@Override
 	public int reportProgress(int taskId, int progress, int rank) {
+		return reportProgress(taskId, progress, rank, System.nanoTime());
+	}
+
+	@Override
+	public int reportProgress(int taskId, int progress, int rank,
+		long reportNanos)
+	{
 		if (!super.followsReportProgressRestrictions(tasks, taskId, progress,
 			lastWrittenTaskPercentage))
 		{
@@ -97,29 +105,27 @@ public class FileProgressLogging extends ProgressLoggingRestrictions implements
 
 		lastWrittenTaskPercentage.put(taskId, progress);
 
-		try {
-			Path progressLogFilePath = Paths.get(LOG_FILE_PROGRESS_PREFIX + String
-				.valueOf(rank) + LOG_FILE_PROGRESS_POSTFIX);
-			String text = String.valueOf(taskId).concat(",").concat(String.valueOf(
-				progress));
-
-			// Note time that a task took to finish (first % noted to 100%).
-			if (timingIsEnabled) {
-				long endTime;
-				if (progress == 0 || !startTime.containsKey(taskId)) {
-					startTime.put(taskId, System.nanoTime());
-				}
-				else if (progress == 100) {
-					endTime = System.nanoTime() - startTime.get(taskId);
-					text = text.concat(",").concat(String.valueOf(endTime));
-				}
+		// Note time that a task took to finish (first % noted to 100%).
+		long duration = -1;
+		if (timingIsEnabled) {
+			if (progress == 0 || !startTime.containsKey(taskId)) {
+				startTime.put(taskId, reportNanos);
 			}
+			else if (progress == 100) {
+				duration = reportNanos - startTime.get(taskId);
+			}
+		}
 
-			text = text.concat(System.lineSeparator());
-
-			Files.write(progressLogFilePath, text.getBytes(),
-				StandardOpenOption.APPEND, StandardOpenOption.CREATE);
-			updateLastUpdatedTimestamp(rank); // Note the time-stamp of the update
+		try {
+			long start = Metrics.start();
+			long written;
+			if (KEEP_FILE_OPEN) {
+				written = appendRecordToChannel(taskId, progress, duration, rank);
+			}
+			else {
+				written = appendRecordToFile(taskId, progress, duration, rank);
+			}
+			Metrics.record(Metrics.Operation.PROGRESS_WRITE, start, written, 0);
 		}
 		catch (IOException exc) {
 			logger.error(" Error occurred during report progress error: {} ", exc
@@ -129,6 +135,181 @@ public class FileProgressLogging extends ProgressLoggingRestrictions implements
 		return 0;
 	}
 
+	private void writeHeaderToChannel(int rank, int size) {
+		try {
+			closeChannel();
+			channel = FileChannel.open(progressLogFilePath(rank),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+
+			// The number of nodes, the first time-stamp and the tasks:
+			byte[] nodes = Integer.toString(size).concat(System.lineSeparator())
+				.getBytes();
+			StringBuilder header = new StringBuilder();
+			header.append(zeroPaddedTimestamp()).append(System.lineSeparator());
+			for (Integer counter = 0; counter < numberOfTasks; counter++) {
+				header.append(counter).append(',').append(tasks.get(counter)).append(
+					System.lineSeparator());
+			}
+			byte[] rest = header.toString().getBytes();
+
+			ByteBuffer headerBuffer = ByteBuffer.allocate(nodes.length +
+				rest.length);
+			headerBuffer.put(nodes).put(rest).flip();
+			writeFully(headerBuffer, 0);
+
+			timestampOffset = nodes.length;
+			appendPosition = headerBuffer.limit();
+		}
+		catch (IOException exc) {
+			logger.error(" Error occurred during reporting tasks: {} ", exc
+				.getMessage());
+		}
+	}
+
+	private long appendRecordToChannel(int taskId, int progress, long duration,
+		int rank) throws IOException
+	{
+		if (channel == null) {
+			// The tasks were not reported, so there is no header to update:
+			channel = FileChannel.open(progressLogFilePath(rank),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			appendPosition = channel.size();
+		}
+
+		recordBuffer.clear();
+		putNumber(recordBuffer, taskId);
+		recordBuffer.put((byte) ',');
+		putNumber(recordBuffer, progress);
+		if (duration >= 0) {
+			recordBuffer.put((byte) ',');
+			putNumber(recordBuffer, duration);
+		}
+		recordBuffer.put(LINE_SEPARATOR);
+		recordBuffer.flip();
+		int written = writeFully(recordBuffer, appendPosition);
+		appendPosition += written;
+
+		// Note the time-stamp of the update in its fixed slot:
+		if (timestampOffset >= 0) {
+			timestampBuffer.clear();
+			long timestamp = Instant.now().toEpochMilli();
+			for (int index = TIMESTAMP_DIGITS - 1; index >= 0; index--) {
+				timestampBuffer.put(index, (byte) ('0' + timestamp % 10));
+				timestamp /= 10;
+			}
+			written += writeFully(timestampBuffer, timestampOffset);
+		}
+		return written;
+	}
+
+	private int writeFully(ByteBuffer buffer, long position) throws IOException {
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+
+	// Writes the decimal digits of a number without creating a string:
+	private static void putNumber(ByteBuffer buffer, long number) {
+		long remaining = number;
+		if (remaining < 0) {
+			buffer.put((byte) '-');
+			remaining = -remaining;
+		}
+		int first = buffer.position();
+		do {
+			buffer.put((byte) ('0' + remaining % 10));
+			remaining /= 10;
+		}
+		while (remaining != 0);
+
+		// The digits were written from the last one, reverse them:
+		for (int left = first, right = buffer.position() - 1; left < right; left++,
+			right--)
+		{
+			byte digit = buffer.get(left);
+			buffer.put(left, buffer.get(right));
+			buffer.put(right, digit);
+		}
+	}
+
+	private static String zeroPaddedTimestamp() {
+		String timestamp = Long.toString(Instant.now().toEpochMilli());
+		StringBuilder padded = new StringBuilder(TIMESTAMP_DIGITS);
+		while (padded.length() + timestamp.length() < TIMESTAMP_DIGITS) {
+			padded.append('0');
+		}
+		return padded.append(timestamp).toString();
+	}
+
+	private static Path progressLogFilePath(int rank) {
+		return Paths.get(LOG_FILE_PROGRESS_PREFIX + String.valueOf(rank) +
+			LOG_FILE_PROGRESS_POSTFIX);
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (IOException exc) {
+				logger.error("Error occurred while closing the progress log: {} ", exc
+					.getMessage());
+			}
+			channel = null;
+		}
+	}
+
+	private void writeHeaderToFile(int rank, int size) {
+		try {
+			String text = "";
+
+			Path progressLogFilePath = progressLogFilePath(rank);
+
+			// Write the number of nodes on the first line of the progress log
+			Files.write(progressLogFilePath, Integer.toString(size).concat(System
+				.lineSeparator()).getBytes(), StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.CREATE);
+
+			// Write the first time-stamp:
+			Files.write(progressLogFilePath, Long.toString(java.time.Instant.now()
+				.toEpochMilli()).concat(System.lineSeparator()).getBytes(),
+				StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+
+			// Report the tasks one by ones id each along with its description:
+			for (Integer counter = 0; counter < numberOfTasks; counter++) {
+				text = String.valueOf(counter).concat(",").concat(tasks.get(counter))
+					.concat(System.lineSeparator());
+				Files.write(progressLogFilePath, text.getBytes(),
+					StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+			}
+		}
+		catch (IOException exc) {
+			logger.error(" Error occurred during reporting tasks: {} ", exc
+				.getMessage());
+		}
+	}
+
+	private long appendRecordToFile(int taskId, int progress, long duration,
+		int rank) throws IOException
+	{
+		Path progressLogFilePath = progressLogFilePath(rank);
+		String text = String.valueOf(taskId).concat(",").concat(String.valueOf(
+			progress));
+		if (duration >= 0) {
+			text = text.concat(",").concat(String.valueOf(duration));
+		}
+		text = text.concat(System.lineSeparator());
+
+		byte[] record = text.getBytes();
+		Files.write(progressLogFilePath, record, StandardOpenOption.APPEND,
+			StandardOpenOption.CREATE);
+		updateLastUpdatedTimestamp(rank); // Note the time-stamp of the update
+		return record.length;
+	}
+
 	private void updateLastUpdatedTimestamp(int rank) {
 		try (RandomAccessFile writer = new RandomAccessFile(
 			LOG_FILE_PROGRESS_PREFIX + String.valueOf(rank) +
@@ -150,4 +331,9 @@ public class FileProgressLogging extends ProgressLoggingRestrictions implements
 		this.timingIsEnabled = true;
 	}
 
+	@Override
+	public void finalise() {
+		// Every progress update is written right away, only the channel is left:
+		closeChannel();
+	}
 }
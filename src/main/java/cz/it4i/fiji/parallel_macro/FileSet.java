@@ -0,0 +1,125 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// The files of a directory tree whose names match a glob pattern such as
+// "*.tif", with their sizes. The subdirectories are listed in parallel since
+// on a shared file system each listing waits mostly for the metadata server.
+public class FileSet {
+
+	private static Logger logger = LoggerFactory.getLogger(FileSet.class);
+
+	private final String[] paths;
+	private final long[] sizes;
+
+	private FileSet(List<FileEntry> entries) {
+		Collections.sort(entries, (first, second) -> first.path.compareTo(
+			second.path));
+		paths = new String[entries.size()];
+		sizes = new long[entries.size()];
+		for (int index = 0; index < entries.size(); index++) {
+			paths[index] = entries.get(index).path;
+			sizes[index] = entries.get(index).size;
+		}
+	}
+
+	public static FileSet scan(Path root, String pattern, int threads) {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" +
+			(pattern == null || pattern.isEmpty() ? "*" : pattern));
+		ForkJoinPool pool = new ForkJoinPool(Math.max(threads, 1));
+		try {
+			return new FileSet(pool.invoke(new DirectoryScan(root, matcher)));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	// The paths in lexicographic order:
+	public String[] getPaths() {
+		return paths;
+	}
+
+	public long[] getSizes() {
+		return sizes;
+	}
+
+	public double[] getSizesAsCosts() {
+		double[] costs = new double[sizes.length];
+		for (int index = 0; index < sizes.length; index++) {
+			costs[index] = sizes[index];
+		}
+		return costs;
+	}
+
+	private static class DirectoryScan extends RecursiveTask<List<FileEntry>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+		private final PathMatcher matcher;
+
+		DirectoryScan(Path directory, PathMatcher matcher) {
+			this.directory = directory;
+			this.matcher = matcher;
+		}
+
+		@Override
+		protected List<FileEntry> compute() {
+			List<FileEntry> entries = new ArrayList<>();
+			List<DirectoryScan> subdirectories = new ArrayList<>();
+			try (DirectoryStream<Path> children = Files.newDirectoryStream(
+				directory))
+			{
+				for (Path child : children) {
+					BasicFileAttributes attributes = Files.readAttributes(child,
+						BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					if (attributes.isDirectory()) {
+						DirectoryScan scan = new DirectoryScan(child, matcher);
+						scan.fork();
+						subdirectories.add(scan);
+					}
+					else if (attributes.isRegularFile() && matcher.matches(child
+						.getFileName()))
+					{
+						entries.add(new FileEntry(child.toString(), attributes.size()));
+					}
+				}
+			}
+			catch (IOException exc) {
+				logger.error("Could not list the directory {}: {} ", directory, exc
+					.getMessage());
+			}
+			for (DirectoryScan scan : subdirectories) {
+				entries.addAll(scan.join());
+			}
+			return entries;
+		}
+	}
+
+	private static class FileEntry {
+
+		private final String path;
+		private final long size;
+
+		FileEntry(String path, long size) {
+			this.path = path;
+			this.size = size;
+		}
+	}
+}
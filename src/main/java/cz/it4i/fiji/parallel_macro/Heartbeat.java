@@ -0,0 +1,278 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A daemon thread rewrites heartbeat_<rank>.hb of every rank once per
+// interval, whatever the macro does, so a rank that is busy for a long time
+// can be told from a dead one, whose heartbeat gets old. The file is one line
+// of a fixed length, "time-stamp,collectives,state", where state is
+// "computing", the blocking collective the rank waits in or "finalised".
+// Enabled by the "heartbeat.interval" setting, the collectives of MPI and the
+// barriers of all the backends are followed, like in the imbalance profile.
+//
+// When a rank waits in a collective for longer than "heartbeat.timeout" the
+// ranks that have not entered it yet are logged, found in their heartbeat
+// files, and with "heartbeat.abort" the job is ended.
+public final class Heartbeat {
+
+	// Time between two heartbeats in milliseconds, 0 for none:
+	private static long interval = Configuration.getLong("heartbeat.interval",
+		0);
+
+	// Time in milliseconds a rank may wait in a collective, 0 for no limit:
+	private static final long TIMEOUT = Configuration.getLong(
+		"heartbeat.timeout", 0);
+
+	private static final boolean ABORT = Configuration.getBoolean(
+		"heartbeat.abort", false);
+
+	static final String HEARTBEAT_PREFIX = "heartbeat_";
+	static final String HEARTBEAT_POSTFIX = ".hb";
+
+	// The line is padded with spaces, so it is always overwritten whole:
+	private static final int LINE_LENGTH = 64;
+
+	private static final String COMPUTING = "computing";
+	private static final String FINALISED = "finalised";
+
+	private static Logger logger = LoggerFactory.getLogger(Heartbeat.class);
+
+	// The ranks of the shared memory backend are threads of one JVM:
+	private static final List<Slot> slots = new CopyOnWriteArrayList<>();
+
+	private static final ThreadLocal<Slot> slot = new ThreadLocal<>();
+
+	private static ScheduledExecutorService beater = null;
+
+	public static boolean isEnabled() {
+		return interval > 0;
+	}
+
+	// Sets the interval for the whole JVM before the first heartbeat is
+	// started, e.g. in a test:
+	public static void setInterval(long interval) {
+		Heartbeat.interval = interval;
+	}
+
+	// Starts the heartbeat of the rank of this thread, e.g. at initialise():
+	public static void start(int rank, int size) {
+		if (!isEnabled()) {
+			return;
+		}
+		try {
+			Slot started = new Slot(rank, size, FileChannel.open(heartbeatFilePath(
+				rank), StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+			slot.set(started);
+			slots.add(started);
+			started.beat();
+			startBeater();
+		}
+		catch (IOException exc) {
+			logger.error("The heartbeat could not be started: {} ", exc
+				.getMessage());
+		}
+	}
+
+	// The rank of this thread starts waiting in a blocking collective:
+	public static void enter(Metrics.Operation operation) {
+		if (!isEnabled()) {
+			return;
+		}
+		Slot current = slot.get();
+		if (current != null) {
+			current.waitingSince = System.currentTimeMillis();
+			// Every rank takes part in the same collectives, not in the same waits:
+			if (operation != Metrics.Operation.NON_BLOCKING_WAIT) {
+				current.collectives++;
+			}
+			current.state = operation.name().toLowerCase();
+			current.timeoutWasReported = false;
+		}
+	}
+
+	public static void leave() {
+		if (!isEnabled()) {
+			return;
+		}
+		Slot current = slot.get();
+		if (current != null) {
+			current.state = COMPUTING;
+		}
+	}
+
+	// The last heartbeat of the rank of this thread, e.g. at finalise():
+	public static void stop() {
+		if (!isEnabled()) {
+			return;
+		}
+		Slot current = slot.get();
+		if (current == null) {
+			return;
+		}
+		slot.remove();
+		slots.remove(current);
+		current.state = FINALISED;
+		synchronized (current) {
+			current.beat();
+			try {
+				current.channel.close();
+			}
+			catch (IOException exc) {
+				logger.error("Heartbeat error: {} ", exc.getMessage());
+			}
+		}
+	}
+
+	private static synchronized void startBeater() {
+		if (beater != null) {
+			return;
+		}
+		beater = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		beater.scheduleAtFixedRate(Heartbeat::beatAll, interval, interval,
+			TimeUnit.MILLISECONDS);
+	}
+
+	private static void beatAll() {
+		for (Slot current : slots) {
+			synchronized (current) {
+				if (current.channel.isOpen()) {
+					current.beat();
+					checkTimeout(current);
+				}
+			}
+		}
+	}
+
+	private static void checkTimeout(Slot current) {
+		if (TIMEOUT <= 0 || current.timeoutWasReported || current.state.equals(
+			COMPUTING))
+		{
+			return;
+		}
+		long waited = System.currentTimeMillis() - current.waitingSince;
+		if (waited < TIMEOUT) {
+			return;
+		}
+		current.timeoutWasReported = true;
+		logger.error("Rank {} has waited in {} for {} s, not arrived: {}",
+			current.rank, current.state, waited / 1000, notArrived(current));
+		if (ABORT) {
+			logger.error("Rank {} ends the job.", current.rank);
+			System.exit(1);
+		}
+	}
+
+	// The ranks that have entered fewer collectives, with their state or the
+	// age of their heartbeat when it is older than a few intervals:
+	private static String notArrived(Slot current) {
+		List<String> ranks = new ArrayList<>();
+		long now = Instant.now().toEpochMilli();
+		for (int rank = 0; rank < current.size; rank++) {
+			if (rank == current.rank) {
+				continue;
+			}
+			String[] fields = readHeartbeat(rank);
+			if (fields == null) {
+				ranks.add(rank + " (no heartbeat)");
+				continue;
+			}
+			long age = now - Long.parseLong(fields[0]);
+			if (Long.parseLong(fields[1]) >= current.collectives) {
+				continue;
+			}
+			ranks.add(age > 3 * interval ? String.format(Locale.ROOT,
+				"%d (no heartbeat for %d s)", rank, age / 1000) : rank + " (" +
+					fields[2] + ")");
+		}
+		return ranks.isEmpty() ? "none" : String.join(", ", ranks);
+	}
+
+	private static String[] readHeartbeat(int rank) {
+		try {
+			String line = new String(Files.readAllBytes(heartbeatFilePath(rank)),
+				StandardCharsets.UTF_8).trim();
+			String[] fields = line.split(",");
+			if (fields.length != 3) {
+				return null;
+			}
+			Long.parseLong(fields[0]);
+			Long.parseLong(fields[1]);
+			return fields;
+		}
+		catch (IOException | NumberFormatException exc) {
+			// Missing or being written:
+			return null;
+		}
+	}
+
+	private static Path heartbeatFilePath(int rank) {
+		return Paths.get(HEARTBEAT_PREFIX + rank + HEARTBEAT_POSTFIX);
+	}
+
+	private static class Slot {
+
+		private final int rank;
+		private final int size;
+		private final FileChannel channel;
+		private final ByteBuffer line = ByteBuffer.allocate(LINE_LENGTH);
+
+		// Written by the rank, read by the heartbeat thread:
+		private volatile String state = COMPUTING;
+		private volatile long collectives = 0;
+		private volatile long waitingSince = 0;
+		private volatile boolean timeoutWasReported = false;
+
+		private Slot(int rank, int size, FileChannel channel) {
+			this.rank = rank;
+			this.size = size;
+			this.channel = channel;
+		}
+
+		// The rank and the heartbeat thread share the line, so they never write
+		// it at the same time:
+		private synchronized void beat() {
+			String text = Instant.now().toEpochMilli() + "," + collectives + "," +
+				state;
+			line.clear();
+			line.put(text.getBytes(StandardCharsets.UTF_8));
+			while (line.position() < LINE_LENGTH - 1) {
+				line.put((byte) ' ');
+			}
+			line.put((byte) '\n').flip();
+			try {
+				while (line.hasRemaining()) {
+					channel.write(line, line.position());
+				}
+			}
+			catch (IOException exc) {
+				logger.error("Heartbeat error: {} ", exc.getMessage());
+			}
+		}
+	}
+
+	private Heartbeat() {
+		// Empty private constructor to hide default public one.
+	}
+}
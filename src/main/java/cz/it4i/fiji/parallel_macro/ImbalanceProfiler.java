@@ -0,0 +1,196 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Splits the time of a rank into phases that end with a blocking collective,
+// e.g. parBarrier(). The time before the collective is computation, the time
+// in it is mostly waiting for the slowest rank. A phase is named by the label
+// set with setLabel or by the collective. Enabled by the "profile.imbalance"
+// setting, the collectives of MPI and the barriers of all the backends are
+// measured.
+//
+// At finalise rank 0 writes imbalance.txt with the computation and waiting
+// time of every rank and, for every phase, the imbalance factor: the longest
+// computation of a rank divided by the mean one. A factor close to 1 means
+// more ranks would help, a large one that the partitioning should change.
+public final class ImbalanceProfiler {
+
+	private static boolean enabled = Configuration.getBoolean(
+		"profile.imbalance", false);
+
+	private static Logger logger = LoggerFactory.getLogger(
+		ImbalanceProfiler.class);
+
+	// Per thread, the ranks of the shared memory backend are threads:
+	private static final ThreadLocal<Profile> profile = ThreadLocal.withInitial(
+		Profile::new);
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	// Switches the profile for the whole JVM before a job, e.g. in a test:
+	public static void setEnabled(boolean enabled) {
+		ImbalanceProfiler.enabled = enabled;
+	}
+
+	// The start of the first phase, e.g. at initialise():
+	public static void start() {
+		if (enabled) {
+			Profile current = profile.get();
+			current.phases.clear();
+			current.phaseStart = System.nanoTime();
+		}
+	}
+
+	// Names the following phases until the next label, null for the names of
+	// the collectives:
+	public static void setLabel(String label) {
+		if (enabled) {
+			profile.get().label = label == null || label.isEmpty() ? null : label;
+		}
+	}
+
+	// Ends a phase, start is the time the blocking collective was entered:
+	public static void waited(Metrics.Operation operation, long start) {
+		if (!enabled) {
+			return;
+		}
+		long end = System.nanoTime();
+		Profile current = profile.get();
+		String key = current.label != null ? current.label : operation.name()
+			.toLowerCase();
+		long[] phase = current.phases.get(key);
+		if (phase == null) {
+			phase = new long[3];
+			current.phases.put(key, phase);
+		}
+		phase[0]++;
+		phase[1] += Math.max(start - current.phaseStart, 0);
+		phase[2] += end - start;
+		current.phaseStart = end;
+	}
+
+	// Collective, every rank has to call it before the backend is finalised:
+	public static void report(Parallelism parallelism) {
+		if (!enabled) {
+			return;
+		}
+		Profile current = profile.get();
+		long tail = System.nanoTime() - current.phaseStart;
+
+		// One line per phase: label, calls, computation and waiting nanoseconds,
+		// the computation after the last collective counts in the total only:
+		List<String> lines = new ArrayList<>();
+		lines.add("\t0\t" + tail + "\t0");
+		for (Map.Entry<String, long[]> phase : current.phases.entrySet()) {
+			long[] values = phase.getValue();
+			lines.add(phase.getKey().replace('\t', ' ') + "\t" + values[0] + "\t" +
+				values[1] + "\t" + values[2]);
+		}
+		String[] gathered = parallelism.gatherStrings(lines.toArray(
+			new String[lines.size()]), 0);
+		if (parallelism.getRank() == 0) {
+			writeReport(summarise(gathered, parallelism.getSize()));
+		}
+	}
+
+	// The lines of all the ranks in rank order, each rank starts with the line
+	// of its tail:
+	static String summarise(String[] lines, int size) {
+		double[] computation = new double[size];
+		double[] waiting = new double[size];
+		Map<String, double[][]> phases = new LinkedHashMap<>();
+		int rank = -1;
+		for (String line : lines) {
+			String[] fields = line.split("\t", -1);
+			if (fields[0].isEmpty()) {
+				rank++;
+				computation[rank] += Long.parseLong(fields[2]) / 1e9;
+				continue;
+			}
+			double[][] phase = phases.get(fields[0]);
+			if (phase == null) {
+				// Calls, computation and waiting of every rank:
+				phase = new double[3][size];
+				phases.put(fields[0], phase);
+			}
+			phase[0][rank] = Long.parseLong(fields[1]);
+			phase[1][rank] = Long.parseLong(fields[2]) / 1e9;
+			phase[2][rank] = Long.parseLong(fields[3]) / 1e9;
+			computation[rank] += phase[1][rank];
+			waiting[rank] += phase[2][rank];
+		}
+
+		StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+			"ranks %d%n%n%-6s %14s %14s%n", size, "rank", "computation_s",
+			"waiting_s"));
+		for (int index = 0; index < size; index++) {
+			report.append(String.format(Locale.ROOT, "%-6d %14.3f %14.3f%n", index,
+				computation[index], waiting[index]));
+		}
+		report.append(String.format(Locale.ROOT,
+			"%n%-24s %8s %14s %14s %10s %14s%n", "phase", "calls", "mean_comp_s",
+			"max_comp_s", "imbalance", "max_wait_s"));
+		for (Map.Entry<String, double[][]> phase : phases.entrySet()) {
+			double[][] values = phase.getValue();
+			double meanComputation = mean(values[1]);
+			double maximumComputation = maximum(values[1]);
+			report.append(String.format(Locale.ROOT,
+				"%-24s %8.0f %14.3f %14.3f %10.2f %14.3f%n", phase.getKey(), maximum(
+					values[0]), meanComputation, maximumComputation, meanComputation > 0
+						? maximumComputation / meanComputation : 1, maximum(values[2])));
+		}
+		return report.toString();
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double value : values) {
+			sum += value;
+		}
+		return sum / values.length;
+	}
+
+	private static double maximum(double[] values) {
+		double maximum = 0;
+		for (double value : values) {
+			maximum = Math.max(maximum, value);
+		}
+		return maximum;
+	}
+
+	private static void writeReport(String report) {
+		try {
+			Files.write(Paths.get("imbalance.txt"), report.getBytes(
+				StandardCharsets.UTF_8));
+		}
+		catch (IOException exc) {
+			logger.error("Could not write the imbalance report: {} ", exc
+				.getMessage());
+		}
+	}
+
+	private static class Profile {
+
+		private long phaseStart = System.nanoTime();
+		private String label = null;
+		// Calls, computation and waiting nanoseconds of every phase:
+		private final Map<String, long[]> phases = new LinkedHashMap<>();
+	}
+
+	private ImbalanceProfiler() {
+		// Empty private constructor to hide default public one.
+	}
+}
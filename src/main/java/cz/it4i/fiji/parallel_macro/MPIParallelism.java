@@ -3,31 +3,72 @@ package cz.it4i.fiji.parallel_macro;
 
 import java.lang.reflect.InvocationTargetException;
 import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MPIParallelism implements Parallelism {
+import cz.it4i.fiji.parallel_macro.Metrics.Operation;
 
-	private static MpiReflection mpiReflection;
+public class MPIParallelism extends AbstractParallelism {
 
-	// Find and load the mpi.jar from OpenMPI:
-	static {
-		mpiReflection = new MpiReflection();
-		String path = mpiReflection.findMpiJarFile();
-		mpiReflection.loadOpenMpi(path);
-	}
+	// OpenMPI is found and loaded by the first call that needs it, once per JVM
+	// and shared by all the instances. Creating the backend, reporting text or
+	// asking for the rank before initialise() does not load it:
+	private static volatile MpiReflection mpiReflection;
+	private static boolean mpiLoadAttempted = false;
+	private static volatile boolean mpiInitialised = false;
 
 	Logger logger = LoggerFactory.getLogger(MPIParallelism.class);
 
-	private ArrayCommaSeparatedString converter = new ArrayCommaSeparatedString();
+	private static MpiReflection mpi() throws InvocationTargetException {
+		MpiReflection loaded = mpiReflection;
+		if (loaded == null) {
+			loaded = loadOpenMpi();
+		}
+		return loaded;
+	}
+
+	// A failed attempt is not repeated, every later call reports the error:
+	private static synchronized MpiReflection loadOpenMpi()
+		throws InvocationTargetException
+	{
+		if (mpiReflection == null && !mpiLoadAttempted) {
+			mpiLoadAttempted = true;
+			MpiReflection reflection = new MpiReflection();
+			String path = reflection.findMpiJarFile();
+			if (path != null && reflection.loadOpenMpi(path) == 0) {
+				mpiReflection = reflection;
+			}
+		}
+		if (mpiReflection == null) {
+			throw new InvocationTargetException(new IllegalStateException(
+				"OpenMPI could not be loaded."), "OpenMPI could not be loaded.");
+		}
+		return mpiReflection;
+	}
+
+	// The counter of the work queue lives in a window of rank 0:
+	private Object counterWindow = null;
+	private LongBuffer counterBuffer;
+	private LongBuffer incrementBuffer;
+	private LongBuffer previousBuffer;
+
+	// And so does the board:
+	private Object boardWindow = null;
+	private volatile LongBuffer boardBuffer;
+	private boolean boardIsOnThisRank = false;
+	private LongBuffer boardValueBuffer;
+	private LongBuffer boardPreviousBuffer;
 
 	@Override
 	public int initialise() {
 		String[] arg0 = { "one", "two" };
 		try {
-			if (!mpiReflection.isInitialised()) {
-				mpiReflection.initialise(arg0);				
+			if (!mpi().isInitialised()) {
+				mpi().initialise(arg0);				
 			}
+			mpiInitialised = true;
 			return 0;
 		}
 		catch (Exception exc) {
@@ -38,9 +79,15 @@ public class MPIParallelism implements Parallelism {
 
 	@Override
 	public int finalise() {
+		if (mpiReflection == null) {
+			// MPI has never been used, there is nothing to finalise.
+			return 0;
+		}
 		try {
-			if(!mpiReflection.isFinalised()) {
-				mpiReflection.finalise();
+			if(!mpi().isFinalised()) {
+				freeCounter();
+				freeBoard();
+				mpi().finalise();
 			}
 			return 0;
 		}
@@ -54,7 +101,10 @@ public class MPIParallelism implements Parallelism {
 	public int getRank() {
 		int rank = -1;
 		try {
-			rank = mpiReflection.getRank();
+			// Before initialise() the launcher knows the rank, e.g. for the
+			// reports of ranks that only do local work:
+			rank = mpiInitialised ? mpi().getRank() : (int) Configuration
+				.getLauncherRank();
 		}
 		catch (Exception exc) {
 			logger.error("MPI get rank error: {} ", exc.getMessage());
@@ -66,7 +116,8 @@ public class MPIParallelism implements Parallelism {
 	public int getSize() {
 		int size = -1;
 		try {
-			size = mpiReflection.getSize();
+			size = mpiInitialised ? mpi().getSize() : (int) Configuration
+				.getLauncherSize();
 		}
 		catch (Exception exc) {
 			logger.error("MPI get size error: {} ", exc.getMessage());
@@ -76,202 +127,345 @@ public class MPIParallelism implements Parallelism {
 
 	@Override
 	public int barrier() {
-		try {
-			mpiReflection.barrier();
+		return instrumented(Operation.BARRIER, 0, 0, "MPI barrier", () -> {
+			mpi().barrier();
 			return 0;
+		});
+	}
+
+	@Override
+	public DoubleBuffer newDoubleBuffer(int size) {
+		try {
+			return mpi().newDoubleBuffer(size);
 		}
-		catch (Exception exc) {
-			logger.error("MPI barrier error: {} ", exc.getMessage());
+		catch (InvocationTargetException exc) {
+			logger.error("MPI new double buffer error: {} ", exc.getMessage());
 		}
-		return -1;
+		return super.newDoubleBuffer(size);
 	}
 
-	// Simple scatter which attempts to split the send buffer to equal parts among
-	// the nodes:
 	@Override
-	public String scatterEqually(String sendString, int totalSendBufferLength,
-		int sender)
+	protected void scatterBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount, int root)
 	{
-		// Convert comma separated string to double buffer:
-		DoubleBuffer sendBuffer = converter.convertCommaSeparatedStringToBuffer(
-			sendString, mpiReflection);
-
-		int size = getSize();
-		int myRank = getRank();
-
-		// Divide work to equal parts:
-		int receiveCount = getEqualAmountOfWork(myRank, size,
-			totalSendBufferLength);
-
-		// The sender should send the correct amount of elements to each node:
-		int[] sendCounts = new int[size];
-		int[] displacements = new int[size];
-		if (myRank == sender) {
-			int sendCount = 0;
-			int offset = 0;
-			for (int destination = 0; destination < size; destination++) {
-				sendCount = getEqualAmountOfWork(destination, size,
-					totalSendBufferLength);
-				sendCounts[destination] = sendCount;
-				displacements[destination] = offset;
-				offset += sendCount;
-			}
-		}
+		instrumented(Operation.SCATTER, getRank() == root ? bytes(receiveBuffer,
+			(long) sendCount * getSize()) : 0, bytes(receiveBuffer, receiveCount),
+			"MPI scatter", () -> {
+				Object datatype = mpi().getDatatype(receiveBuffer);
+				mpi().scatter(sendBuffer, sendCount, datatype, receiveBuffer,
+					receiveCount, datatype, root);
+				return 0;
+			});
+	}
 
-		DoubleBuffer receiveBuffer = mpiReflection.newDoubleBuffer(receiveCount);
-		try {
-			mpiReflection.scatterv(sendBuffer, sendCounts, displacements,
-				mpiReflection.mpiDoubleInstance, receiveBuffer, receiveCount,
-				mpiReflection.mpiDoubleInstance, sender);
-		}
-		catch (IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException exc)
-		{
-			logger.error("MPI scatterv error: {} ", exc.getMessage());
-		}
+	@Override
+	protected void scattervBuffer(Object sendBuffer, int[] sendCounts,
+		int[] displacements, Object receiveBuffer, int receiveCount, int root)
+	{
+		instrumented(Operation.SCATTER, getRank() == root ? bytes(receiveBuffer,
+			totalOf(sendCounts)) : 0, bytes(receiveBuffer, receiveCount),
+			"MPI scatterv", () -> {
+				Object datatype = mpi().getDatatype(receiveBuffer);
+				mpi().scatterv(sendBuffer, sendCounts, displacements, datatype,
+					receiveBuffer, receiveCount, datatype, root);
+				return 0;
+			});
+	}
 
-		// Convert back to string and return:
-		return converter.convertBufferToCommaSeparatedString(receiveBuffer,
-			receiveCount);
+	@Override
+	protected void gatherBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount, int root)
+	{
+		instrumented(Operation.GATHER, bytes(sendBuffer, sendCount),
+			getRank() == root ? bytes(sendBuffer, (long) receiveCount * getSize())
+				: 0, "MPI gather", () -> {
+					Object datatype = mpi().getDatatype(sendBuffer);
+					mpi().gather(sendBuffer, sendCount, datatype, receiveBuffer,
+						receiveCount, datatype, root);
+					return 0;
+				});
 	}
 
 	@Override
-	public String scatter(String sendString, int sendCount, int receiveCount,
-		int root)
+	protected void gathervBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int[] receiveCounts, int[] displacements, int root)
 	{
-		DoubleBuffer sendBuffer;
-		if (!sendString.isEmpty()) {
-			sendBuffer = converter.convertCommaSeparatedStringToBuffer(sendString,
-				mpiReflection);
-		}
-		else {
-			sendBuffer = mpiReflection.newDoubleBuffer(0);
-		}
+		instrumented(Operation.GATHER, bytes(sendBuffer, sendCount),
+			getRank() == root ? bytes(sendBuffer, totalOf(receiveCounts)) : 0,
+			"MPI gatherv", () -> {
+				Object datatype = mpi().getDatatype(sendBuffer);
+				mpi().gatherv(sendBuffer, sendCount, datatype, receiveBuffer,
+					receiveCounts, displacements, datatype, root);
+				return 0;
+			});
+	}
+
+	@Override
+	protected void broadcastBuffer(Object buffer, int count, int root) {
+		boolean isRoot = getRank() == root;
+		instrumented(Operation.BROADCAST, isRoot ? bytes(buffer, count) : 0,
+			isRoot ? 0 : bytes(buffer, count), "MPI broadcast", () -> {
+				mpi().bcast(buffer, count, mpi().getDatatype(buffer), root);
+				return 0;
+			});
+	}
+
+	@Override
+	protected void reduceBuffer(Object sendBuffer, Object receiveBuffer,
+		int count, ReductionOperation operation, int root)
+	{
+		instrumented(Operation.REDUCE, bytes(sendBuffer, count),
+			getRank() == root ? bytes(sendBuffer, count) : 0, "MPI reduce", () -> {
+				mpi().reduce(sendBuffer, receiveBuffer, count, mpi().getDatatype(
+					sendBuffer), mpi().getOperation(operation), root);
+				return 0;
+			});
+	}
 
-		DoubleBuffer receiveBuffer = scatterArray(sendBuffer, sendCount,
-			receiveCount, root);
-		return converter.convertBufferToCommaSeparatedString(receiveBuffer,
-			receiveCount);
+	@Override
+	protected void allReduceBuffer(Object sendBuffer, Object receiveBuffer,
+		int count, ReductionOperation operation)
+	{
+		instrumented(Operation.ALL_REDUCE, bytes(sendBuffer, count), bytes(
+			sendBuffer, count), "MPI all reduce", () -> {
+				mpi().allReduce(sendBuffer, receiveBuffer, count, mpi().getDatatype(
+					sendBuffer), mpi().getOperation(operation));
+				return 0;
+			});
 	}
 
-	private DoubleBuffer scatterArray(DoubleBuffer sendBuffer, int sendCount,
-		int receiveCount, int root)
+	@Override
+	protected void allGatherBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount)
+	{
+		instrumented(Operation.ALL_GATHER, bytes(receiveBuffer, sendCount), bytes(
+			receiveBuffer, (long) receiveCount * getSize()), "MPI all gather",
+			() -> {
+				Object datatype = mpi().getDatatype(receiveBuffer);
+				mpi().allGather(sendBuffer, sendCount, datatype, receiveBuffer,
+					receiveCount, datatype);
+				return 0;
+			});
+	}
+
+	@Override
+	protected void allGathervBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int[] receiveCounts, int[] displacements)
+	{
+		instrumented(Operation.ALL_GATHER, bytes(receiveBuffer, sendCount), bytes(
+			receiveBuffer, totalOf(receiveCounts)), "MPI all gatherv", () -> {
+				Object datatype = mpi().getDatatype(receiveBuffer);
+				mpi().allGatherv(sendBuffer, sendCount, datatype, receiveBuffer,
+					receiveCounts, displacements, datatype);
+				return 0;
+			});
+	}
+
+	@Override
+	protected void allToAllBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount)
 	{
-		// The receive buffer will be of the same type as the send buffer:
-		DoubleBuffer receiveBuffer = mpiReflection.newDoubleBuffer(receiveCount);
+		instrumented(Operation.ALL_TO_ALL, bytes(receiveBuffer, (long) sendCount *
+			getSize()), bytes(receiveBuffer, (long) receiveCount * getSize()),
+			"MPI all to all", () -> {
+				Object datatype = mpi().getDatatype(receiveBuffer);
+				mpi().allToAll(sendBuffer, sendCount, datatype, receiveBuffer,
+					receiveCount, datatype);
+				return 0;
+			});
+	}
 
+	@Override
+	protected Object iScatterBuffer(DoubleBuffer sendBuffer, int sendCount,
+		DoubleBuffer receiveBuffer, int receiveCount, int root)
+	{
 		try {
-			mpiReflection.scatter(sendBuffer, sendCount,
-				mpiReflection.mpiDoubleInstance, receiveBuffer, receiveCount,
-				mpiReflection.mpiDoubleInstance, root);
+			return mpi().iScatter(sendBuffer, sendCount,
+				mpi().mpiDoubleInstance, receiveBuffer, receiveCount,
+				mpi().mpiDoubleInstance, root);
 		}
-		catch (IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException exc)
-		{
-			logger.error("MPI scatter error: {} ", exc.getMessage());
+		catch (InvocationTargetException exc) {
+			logger.error("MPI iScatter error: {} ", exc.getMessage());
 		}
-		return receiveBuffer;
+		return null;
 	}
 
-	private DoubleBuffer gatherArray(DoubleBuffer sendBuffer, int sendCount,
-		int receiveCount, int root)
+	@Override
+	protected Object iGatherBuffer(DoubleBuffer sendBuffer, int sendCount,
+		DoubleBuffer receiveBuffer, int receiveCount, int root)
 	{
-		// The receive buffer will be of the same type as the send buffer:
-		DoubleBuffer receiveBuffer = null;
-		// Only the specified node will gather the send items:
-		if (getRank() == root) {
-			receiveBuffer = mpiReflection.newDoubleBuffer(receiveCount * getSize());
+		try {
+			return mpi().iGather(sendBuffer, sendCount,
+				mpi().mpiDoubleInstance, receiveBuffer, receiveCount,
+				mpi().mpiDoubleInstance, root);
+		}
+		catch (InvocationTargetException exc) {
+			logger.error("MPI iGather error: {} ", exc.getMessage());
 		}
+		return null;
+	}
 
+	@Override
+	protected Object iBroadcastBuffer(DoubleBuffer buffer, int count, int root) {
 		try {
-			mpiReflection.gather(sendBuffer, sendCount,
-				mpiReflection.mpiDoubleInstance, receiveBuffer, receiveCount,
-				mpiReflection.mpiDoubleInstance, root);
+			return mpi().iBcast(buffer, count,
+				mpi().mpiDoubleInstance, root);
 		}
-		catch (IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException exc)
-		{
-			logger.error("MPI gather error: {} ", exc.getMessage());
+		catch (InvocationTargetException exc) {
+			logger.error("MPI iBcast error: {} ", exc.getMessage());
 		}
-		return receiveBuffer;
+		return null;
 	}
 
 	@Override
-	public String gather(String sendString, int sendCount, int receiveCount,
-		int root)
+	protected Object iAllReduceBuffer(DoubleBuffer sendBuffer,
+		DoubleBuffer receiveBuffer, int count, ReductionOperation operation)
 	{
-		DoubleBuffer sendBuffer;
-		if (!sendString.isEmpty()) {
-			sendBuffer = converter.convertCommaSeparatedStringToBuffer(sendString,
-				mpiReflection);
+		try {
+			return mpi().iAllReduce(sendBuffer, receiveBuffer, count,
+				mpi().mpiDoubleInstance, mpi().getOperation(
+					operation));
 		}
-		else {
-			sendBuffer = mpiReflection.newDoubleBuffer(0);
+		catch (InvocationTargetException exc) {
+			logger.error("MPI iAllReduce error: {} ", exc.getMessage());
 		}
+		return null;
+	}
 
-		DoubleBuffer receiveBuffer = gatherArray(sendBuffer, sendCount,
-			receiveCount, root);
-		return converter.convertBufferToCommaSeparatedString(receiveBuffer,
-			receiveCount * getSize());
+	@Override
+	protected Object iBarrierRequest() {
+		try {
+			return mpi().iBarrier();
+		}
+		catch (InvocationTargetException exc) {
+			logger.error("MPI iBarrier error: {} ", exc.getMessage());
+		}
+		return null;
 	}
 
 	@Override
-	public String gatherEqually(String sendString, int totalReceiveBufferLength,
-		int receiver)
-	{
-		// Convert comma separated string to array:
-		DoubleBuffer sendBuffer = converter.convertCommaSeparatedStringToBuffer(
-			sendString, mpiReflection);
+	protected boolean testRequest(Object request) {
+		try {
+			return mpi().test(request);
+		}
+		catch (InvocationTargetException exc) {
+			logger.error("MPI test error: {} ", exc.getMessage());
+		}
+		return true;
+	}
 
-		int size = getSize();
+	@Override
+	protected int waitForRequest(Object request) {
+		return instrumented(Operation.NON_BLOCKING_WAIT, 0, 0, "MPI wait", () -> {
+			mpi().waitFor(request);
+			return 0;
+		});
+	}
 
-		int[] receiveCounts = new int[size];
-		int[] displacements = new int[size];
-		int sendCount = 0;
-		int offset = 0;
-		for (int destination = 0; destination < size; destination++) {
-			sendCount = getEqualAmountOfWork(destination, size,
-				totalReceiveBufferLength);
-			receiveCounts[destination] = sendCount;
-			displacements[destination] = offset;
-			offset += sendCount;
+	@Override
+	protected int createCounter() {
+		try {
+			freeCounter();
+			counterBuffer = mpi().newLongBuffer(1);
+			incrementBuffer = mpi().newLongBuffer(1);
+			incrementBuffer.put(0, 1);
+			previousBuffer = mpi().newLongBuffer(1);
+			counterWindow = mpi().createWindow(counterBuffer, 1, Long.BYTES);
+			return 0;
+		}
+		catch (InvocationTargetException exc) {
+			logger.error("MPI create counter error: {} ", exc.getMessage());
 		}
+		return -1;
+	}
 
-		DoubleBuffer receivedBuffer;
-		if (getRank() == receiver) {
-			receivedBuffer = mpiReflection.newDoubleBuffer(totalReceiveBufferLength);
+	@Override
+	protected long fetchAndIncrementCounter() {
+		try {
+			long start = Metrics.start();
+			mpi().fetchAndAdd(counterWindow, incrementBuffer,
+				previousBuffer, 0);
+			Metrics.record(Operation.COUNTER, start, Long.BYTES, Long.BYTES);
+			return previousBuffer.get(0);
 		}
-		else {
-			receivedBuffer = mpiReflection.newDoubleBuffer(0);
+		catch (InvocationTargetException exc) {
+			logger.error("MPI fetch and add error: {} ", exc.getMessage());
 		}
+		return -1;
+	}
+
+	@Override
+	public int boardInitialise(int length) {
+		try {
+			freeBoard();
+			boardBuffer = mpi().newLongBuffer(length);
+			for (int index = 0; index < length; index++) {
+				boardBuffer.put(index, -1);
+			}
+			boardValueBuffer = mpi().newLongBuffer(1);
+			boardPreviousBuffer = mpi().newLongBuffer(1);
+			boardWindow = mpi().createWindow(boardBuffer, length, Long.BYTES);
+			boardIsOnThisRank = getRank() == 0;
+			return 0;
+		}
+		catch (InvocationTargetException exc) {
+			logger.error("MPI create board error: {} ", exc.getMessage());
+		}
+		return -1;
+	}
 
+	@Override
+	public int boardPut(int index, long value) {
+		if (boardWindow == null) {
+			logger.error("The board was not initialised.");
+			return -1;
+		}
 		try {
-			mpiReflection.gatherv(sendBuffer, sendCount,
-				mpiReflection.mpiDoubleInstance, receivedBuffer, receiveCounts,
-				displacements, mpiReflection.mpiDoubleInstance, receiver);
+			boardValueBuffer.put(0, value);
+			mpi().fetchAndReplace(boardWindow, boardValueBuffer,
+				boardPreviousBuffer, 0, index);
+			return 0;
 		}
-		catch (IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException exc)
-		{
-			logger.error("MPI gatherv error: {} ", exc.getMessage());
+		catch (InvocationTargetException exc) {
+			logger.error("MPI board put error: {} ", exc.getMessage());
 		}
+		return -1;
+	}
 
-		// Convert back to string and return:
-		if (getRank() == receiver) {
-			return converter.convertBufferToCommaSeparatedString(receivedBuffer,
-				totalReceiveBufferLength);
+	// The window memory of rank 0 is read directly, without MPI calls, so that
+	// another thread can do it. With the unified memory model of OpenMPI's
+	// windows the values put by the other ranks appear there:
+	@Override
+	public long[] boardRead() {
+		LongBuffer buffer = boardBuffer;
+		if (buffer == null || !boardIsOnThisRank) {
+			return null;
+		}
+		long[] values = new long[buffer.capacity()];
+		for (int index = 0; index < values.length; index++) {
+			values[index] = buffer.get(index);
 		}
-		return "";
+		return values;
+	}
+
+	// Bytes of a number of elements of the type of the buffer, for the metrics:
+	private static long bytes(Object buffer, long count) {
+		return buffer == null ? 0 : count * PrimitiveBuffers.elementSize(buffer);
 	}
 
-	private int getEqualAmountOfWork(int myRank, int size, int totalSizeOfWork) {
-		// Divide work to equal parts:
-		int sizeOfWorkPart = totalSizeOfWork / size;
+	// Freeing the window is collective as well:
+	private void freeCounter() throws InvocationTargetException {
+		if (counterWindow != null) {
+			mpi().freeWindow(counterWindow);
+			counterWindow = null;
+		}
+	}
 
-		// Any additional remaining items should be given to rank 0:
-		if (myRank == 0) {
-			sizeOfWorkPart += totalSizeOfWork % size;
+	private void freeBoard() throws InvocationTargetException {
+		if (boardWindow != null) {
+			mpi().freeWindow(boardWindow);
+			boardWindow = null;
+			boardBuffer = null;
 		}
-		return sizeOfWorkPart;
 	}
 }
@@ -0,0 +1,273 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Calls, bytes and time of the communication and of the progress log writes.
+// Every thread counts in its own arrays, so recording neither allocates nor
+// synchronises. The arrays belong to the rank of the thread, the ranks of the
+// shared memory backend are threads of one JVM. A thread started by a rank,
+// e.g. the background writer of its progress log, counts for that rank. The
+// threads of no rank, e.g. all of an OpenMPI rank, count for the rank that
+// reports from such a thread. When the "metrics.enabled" setting is off
+// nothing is measured, setEnabled switches it for the whole JVM before a job,
+// e.g. in a test.
+//
+// At finalise every rank writes metrics_<rank>.txt and rank 0 writes
+// metrics_summary.txt with the minimum, mean and maximum over the ranks.
+public final class Metrics {
+
+	private static boolean enabled = Configuration.getBoolean("metrics.enabled",
+		false);
+
+	public enum Operation {
+			BARRIER, BROADCAST, SCATTER, GATHER, REDUCE, ALL_REDUCE, ALL_GATHER,
+			ALL_TO_ALL, NON_BLOCKING_WAIT, COUNTER, PROGRESS_WRITE
+	}
+
+	// Latency histogram of power of two buckets, bucket b counts the calls that
+	// took less than 2^b microseconds, the last one all the longer ones:
+	static final int BUCKETS = 32;
+
+	private static final int OPERATIONS = Operation.values().length;
+
+	private static Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+	private static final int NO_RANK = -1;
+
+	// The recorders of the threads of every rank:
+	private static final Map<Integer, List<Recorder>> recorders =
+		new HashMap<>();
+
+	// The rank of a thread, inherited by the threads it starts:
+	private static final InheritableThreadLocal<Integer> owner =
+		new InheritableThreadLocal<Integer>()
+		{
+
+			@Override
+			protected Integer initialValue() {
+				return NO_RANK;
+			}
+		};
+
+	private static final ThreadLocal<Recorder> recorder = ThreadLocal
+		.withInitial(() -> newRecorder(owner.get()));
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	// Switching the metrics on starts their counts from zero:
+	public static synchronized void setEnabled(boolean enabled) {
+		if (enabled && !Metrics.enabled) {
+			for (List<Recorder> rankRecorders : recorders.values()) {
+				for (Recorder threadRecorder : rankRecorders) {
+					threadRecorder.clear();
+				}
+			}
+		}
+		Metrics.enabled = enabled;
+	}
+
+	// The following calls of this thread and the threads it starts count for
+	// the rank, e.g. a thread of the shared memory backend:
+	public static void setRank(int rank) {
+		owner.set(rank);
+		if (recorder.get().rank != rank) {
+			recorder.set(newRecorder(rank));
+		}
+	}
+
+	// The time to pass to record, 0 when neither the metrics nor the imbalance
+	// profiler are enabled:
+	public static long start() {
+		return enabled || ImbalanceProfiler.isEnabled() ? System.nanoTime() : 0;
+	}
+
+	public static void record(Operation operation, long start, long bytesSent,
+		long bytesReceived)
+	{
+		if (!enabled) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		Recorder current = recorder.get();
+		int index = operation.ordinal();
+		current.calls[index]++;
+		current.bytesSent[index] += bytesSent;
+		current.bytesReceived[index] += bytesReceived;
+		current.nanos[index] += nanos;
+		current.histogram[index * BUCKETS + bucketOf(nanos)]++;
+	}
+
+	static int bucketOf(long nanos) {
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	// Writes the files, collectively, every rank has to call it before the
+	// backend is finalised:
+	public static void report(Parallelism parallelism) {
+		if (!enabled) {
+			return;
+		}
+		int rank = parallelism.getRank();
+		Recorder total = snapshot(rank);
+		writeFile("metrics_" + rank + ".txt", rankReport(total));
+
+		// Calls, bytes sent, bytes received and seconds of every operation:
+		double[] values = new double[OPERATIONS * 4];
+		for (int index = 0; index < OPERATIONS; index++) {
+			values[index * 4] = total.calls[index];
+			values[index * 4 + 1] = total.bytesSent[index];
+			values[index * 4 + 2] = total.bytesReceived[index];
+			values[index * 4 + 3] = total.nanos[index] / 1e9;
+		}
+		double[] minimum = parallelism.reduce(values, ReductionOperation.MIN, 0);
+		double[] sum = parallelism.reduce(values, ReductionOperation.SUM, 0);
+		double[] maximum = parallelism.reduce(values, ReductionOperation.MAX, 0);
+		if (rank == 0) {
+			writeFile("metrics_summary.txt", summary(minimum, sum, maximum,
+				parallelism.getSize()));
+		}
+	}
+
+	private static synchronized Recorder newRecorder(int rank) {
+		Recorder created = new Recorder(rank);
+		recorders.computeIfAbsent(rank, key -> new ArrayList<>()).add(created);
+		return created;
+	}
+
+	// The sum of the threads of the rank. Their arrays are read without
+	// locking, the counts of calls still running may be missing:
+	private static synchronized Recorder snapshot(int rank) {
+		Recorder total = new Recorder(rank);
+		add(total, recorders.get(rank));
+		if (owner.get() == NO_RANK) {
+			add(total, recorders.get(NO_RANK));
+		}
+		return total;
+	}
+
+	private static void add(Recorder total, List<Recorder> threadRecorders) {
+		if (threadRecorders == null) {
+			return;
+		}
+		for (Recorder threadRecorder : threadRecorders) {
+			for (int index = 0; index < OPERATIONS; index++) {
+				total.calls[index] += threadRecorder.calls[index];
+				total.bytesSent[index] += threadRecorder.bytesSent[index];
+				total.bytesReceived[index] += threadRecorder.bytesReceived[index];
+				total.nanos[index] += threadRecorder.nanos[index];
+			}
+			for (int index = 0; index < total.histogram.length; index++) {
+				total.histogram[index] += threadRecorder.histogram[index];
+			}
+		}
+	}
+
+	static String rankReport(Recorder total) {
+		StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+			"%-18s %10s %14s %14s %12s %10s %10s %10s%n", "operation", "calls",
+			"bytes_sent", "bytes_received", "total_ms", "mean_us", "p50_us",
+			"p99_us"));
+		for (Operation operation : Operation.values()) {
+			int index = operation.ordinal();
+			if (total.calls[index] == 0) {
+				continue;
+			}
+			report.append(String.format(Locale.ROOT,
+				"%-18s %10d %14d %14d %12.3f %10.1f %10d %10d%n", operation.name()
+					.toLowerCase(), total.calls[index], total.bytesSent[index],
+				total.bytesReceived[index], total.nanos[index] / 1e6,
+				total.nanos[index] / 1e3 / total.calls[index], percentile(total,
+					index, 0.5), percentile(total, index, 0.99)));
+		}
+		return report.toString();
+	}
+
+	// The upper bound of the bucket of the percentile in microseconds:
+	private static long percentile(Recorder total, int index, double fraction) {
+		long rank = (long) Math.ceil(total.calls[index] * fraction);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += total.histogram[index * BUCKETS + bucket];
+			if (seen >= rank) {
+				return 1L << bucket;
+			}
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	private static String summary(double[] minimum, double[] sum,
+		double[] maximum, int size)
+	{
+		String[] quantities = { "calls", "bytes_sent", "bytes_received",
+			"seconds" };
+		StringBuilder summary = new StringBuilder(String.format(Locale.ROOT,
+			"ranks %d%n%-18s %-15s %16s %16s %16s%n", size, "operation", "quantity",
+			"min", "mean", "max"));
+		for (Operation operation : Operation.values()) {
+			int index = operation.ordinal();
+			if (maximum[index * 4] == 0) {
+				continue;
+			}
+			for (int quantity = 0; quantity < quantities.length; quantity++) {
+				int value = index * 4 + quantity;
+				summary.append(String.format(Locale.ROOT,
+					"%-18s %-15s %16.6g %16.6g %16.6g%n", operation.name().toLowerCase(),
+					quantities[quantity], minimum[value], sum[value] / size,
+					maximum[value]));
+			}
+		}
+		return summary.toString();
+	}
+
+	private static void writeFile(String name, String text) {
+		try {
+			Files.write(Paths.get(name), text.getBytes(StandardCharsets.UTF_8));
+		}
+		catch (IOException exc) {
+			logger.error("Could not write the metrics {}: {} ", name, exc
+				.getMessage());
+		}
+	}
+
+	static class Recorder {
+
+		final int rank;
+		final long[] calls = new long[OPERATIONS];
+		final long[] bytesSent = new long[OPERATIONS];
+		final long[] bytesReceived = new long[OPERATIONS];
+		final long[] nanos = new long[OPERATIONS];
+		final long[] histogram = new long[OPERATIONS * BUCKETS];
+
+		Recorder(int rank) {
+			this.rank = rank;
+		}
+
+		void clear() {
+			Arrays.fill(calls, 0);
+			Arrays.fill(bytesSent, 0);
+			Arrays.fill(bytesReceived, 0);
+			Arrays.fill(nanos, 0);
+			Arrays.fill(histogram, 0);
+		}
+	}
+
+	private Metrics() {
+		// Empty private constructor to hide default public one.
+	}
+}
@@ -0,0 +1,194 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Finds OpenMPI's mpi.jar without starting a shell. The cheap places come
+// first: the "mpi.jar" setting, the path cached by an earlier run, the
+// directories of LD_LIBRARY_PATH and their "lib" siblings (also those of the
+// "bin" directories on PATH). Only then the library directories are walked,
+// to a limited depth, because every rank of a job does this at start-up and a
+// full walk of a large shared file system takes seconds.
+public final class MpiJarLocator {
+
+	private static Logger logger = LoggerFactory.getLogger(MpiJarLocator.class);
+
+	private static final String JAR_NAME = "mpi.jar";
+
+	// Returns the path of mpi.jar or null when it was not found:
+	public static String find() {
+		File cacheFile = new File(Configuration.getString("mpi.jar_cache", System
+			.getProperty("user.home") + File.separator + ".parallel_macro" +
+			File.separator + "mpi-jar.cache"));
+		return find(Configuration.getString("mpi.jar", null), getenv(
+			"LD_LIBRARY_PATH"), getenv("PATH"), cacheFile, (int) Configuration
+				.getLong("mpi.jar_search_depth", 4));
+	}
+
+	public static String find(String override, String libraryPath,
+		String executablePath, File cacheFile, int searchDepth)
+	{
+		if (override != null) {
+			if (new File(override).isFile()) {
+				return override;
+			}
+			logger.error("The mpi.jar set by the settings does not exist: {}",
+				override);
+		}
+
+		// The cache is only valid for the same library path and while the jar
+		// has not changed:
+		String cached = readCache(cacheFile, libraryPath);
+		if (cached != null) {
+			return cached;
+		}
+
+		List<File> candidates = new ArrayList<>();
+		for (String directory : split(libraryPath)) {
+			candidates.add(new File(directory, JAR_NAME));
+			candidates.add(inLibSibling(directory));
+		}
+		for (String directory : split(executablePath)) {
+			candidates.add(inLibSibling(directory));
+		}
+		for (File candidate : candidates) {
+			if (candidate != null && candidate.isFile()) {
+				return remember(candidate, cacheFile, libraryPath);
+			}
+		}
+
+		List<File> directories = new ArrayList<>();
+		for (String directory : split(libraryPath)) {
+			directories.add(new File(directory));
+		}
+		File found = walk(directories, searchDepth);
+		return found == null ? null : remember(found, cacheFile, libraryPath);
+	}
+
+	private static String getenv(String name) {
+		String value = System.getenv(name);
+		return value == null ? "" : value;
+	}
+
+	private static File inLibSibling(String directory) {
+		File parent = new File(directory).getAbsoluteFile().getParentFile();
+		if (parent == null) {
+			return null;
+		}
+		return new File(new File(parent, "lib"), JAR_NAME);
+	}
+
+	private static List<String> split(String paths) {
+		List<String> directories = new ArrayList<>();
+		for (String directory : paths.split(File.pathSeparator)) {
+			if (!directory.trim().isEmpty()) {
+				directories.add(directory.trim());
+			}
+		}
+		return directories;
+	}
+
+	// Breadth first over all the directories together, so that a jar close to
+	// the top of one is found without reading the depths of the others:
+	private static File walk(List<File> directories, int searchDepth) {
+		List<File> level = directories;
+		for (int depth = 0; depth <= searchDepth && !level.isEmpty(); depth++) {
+			List<File> nextLevel = new ArrayList<>();
+			for (File current : level) {
+				String[] names = current.list();
+				if (names == null) {
+					// Not a directory or not readable.
+					continue;
+				}
+				for (String name : names) {
+					File child = new File(current, name);
+					if (name.equals(JAR_NAME) && child.isFile()) {
+						return child;
+					}
+					if (depth < searchDepth && child.isDirectory() && !Files
+						.isSymbolicLink(child.toPath()))
+					{
+						nextLevel.add(child);
+					}
+				}
+			}
+			level = nextLevel;
+		}
+		return null;
+	}
+
+	// The cache holds the path of the jar, its modification time and the
+	// library path it was found for, one per line:
+	private static String readCache(File cacheFile, String libraryPath) {
+		if (!cacheFile.isFile()) {
+			return null;
+		}
+		try {
+			List<String> lines = Files.readAllLines(cacheFile.toPath(),
+				StandardCharsets.UTF_8);
+			if (lines.size() < 3 || !lines.get(2).equals(libraryPath)) {
+				return null;
+			}
+			File jar = new File(lines.get(0));
+			if (jar.isFile() && jar.lastModified() == Long.parseLong(lines.get(1))) {
+				return jar.getPath();
+			}
+		}
+		catch (IOException | NumberFormatException exc) {
+			logger.debug("Ignoring the mpi.jar cache {}: {}", cacheFile, exc
+				.getMessage());
+		}
+		return null;
+	}
+
+	private static String remember(File jar, File cacheFile,
+		String libraryPath)
+	{
+		// Many ranks may write it at once, each one writes its own file and
+		// renames it over the cache:
+		Path temporary = null;
+		try {
+			File directory = cacheFile.getAbsoluteFile().getParentFile();
+			Files.createDirectories(directory.toPath());
+			temporary = Files.createTempFile(directory.toPath(), cacheFile
+				.getName(), ".tmp");
+			Files.write(temporary, (jar.getPath() + "\n" + jar.lastModified() +
+				"\n" + libraryPath + "\n").getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary, cacheFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException | UnsupportedOperationException exc) {
+			logger.debug("Could not write the mpi.jar cache {}: {}", cacheFile, exc
+				.getMessage());
+		}
+		finally {
+			deleteQuietly(temporary);
+		}
+		return jar.getPath();
+	}
+
+	private static void deleteQuietly(Path file) {
+		if (file == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(file);
+		}
+		catch (IOException exc) {
+			// A stale temporary file does no harm.
+		}
+	}
+
+	private MpiJarLocator() {
+		// Empty private constructor to hide default public one.
+	}
+}
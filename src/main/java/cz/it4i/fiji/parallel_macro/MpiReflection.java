@@ -1,18 +1,24 @@
 
 package cz.it4i.fiji.parallel_macro;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,236 +27,656 @@ public class MpiReflection {
 
 	Logger logger = LoggerFactory.getLogger(MpiReflection.class);
 
-	private Method mpiInit;
-	private Method mpiIsInitialized;
-	private Method mpiFinalize;
-	private Method mpiBarrier;
-	private Method mpiGetRank;
-	private Method mpiGetSize;
-	private Method mpiNewDoubleBuffer;
-	private Method mpiScatterv;
-	private Method mpiScatter;
-	private Method mpiGather;
-	private Method mpiGatherv;
-	private Method mpiIsFinalized;
-
-	private Object mpiInstance;
+	// The OpenMPI methods are resolved once and bound to COMM_WORLD, so each
+	// call is a direct invokeExact without boxing or varargs arrays:
+	private MethodHandle mpiInit;
+	private MethodHandle mpiIsInitialized;
+	private MethodHandle mpiFinalize;
+	private MethodHandle mpiBarrier;
+	private MethodHandle mpiGetRank;
+	private MethodHandle mpiGetSize;
+	private MethodHandle mpiNewDoubleBuffer;
+	private MethodHandle mpiScatterv;
+	private MethodHandle mpiScatter;
+	private MethodHandle mpiGather;
+	private MethodHandle mpiGatherv;
+	private MethodHandle mpiIsFinalized;
+	private MethodHandle mpiBcast;
+	private MethodHandle mpiReduce;
+	private MethodHandle mpiAllReduce;
+	private MethodHandle mpiAllGather;
+	private MethodHandle mpiAllGatherv;
+	private MethodHandle mpiAllToAll;
+	private MethodHandle mpiIScatter;
+	private MethodHandle mpiIGather;
+	private MethodHandle mpiIBcast;
+	private MethodHandle mpiIAllReduce;
+	private MethodHandle mpiIBarrier;
+	private MethodHandle mpiRequestTest;
+	private MethodHandle mpiRequestWaitFor;
+	private MethodHandle mpiNewLongBuffer;
+	private MethodHandle mpiNewWin;
+	private MethodHandle mpiWinLock;
+	private MethodHandle mpiWinUnlock;
+	private MethodHandle mpiWinFetchAndOp;
+	private MethodHandle mpiWinFree;
+
 	private Object commWorldInstance;
 	public Object mpiDoubleInstance;
+	public Object mpiFloatInstance;
+	public Object mpiIntInstance;
+	public Object mpiShortInstance;
+	public Object mpiByteInstance;
+	public Object mpiSumInstance;
+	public Object mpiMinInstance;
+	public Object mpiMaxInstance;
+	public Object mpiProductInstance;
+	private Object mpiReplaceInstance;
+	public Object mpiLongInstance;
+	private Object mpiInfoNullInstance;
+	private int mpiLockShared;
 
-	public String findMpiJarFile() {
-		// Surround script with parenthesis
-		// to run multiline command:
-		String script = "(" + '\n';
-		String jarPath = "";
-		try {
-			// Read script file:
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-				MPIParallelism.class.getClassLoader().getResourceAsStream(
-					"findMpiJar.sh")));
-			String line = reader.readLine();
-			StringBuilder bld = new StringBuilder();
-			while (line != null) {
-				bld.append(line + '\n');
-				line = reader.readLine();
-			}
-			script = bld.toString();
-		}
-		catch (IOException exception) {
-			logger.error("Could not read script in resources! \n {} ", exception
-				.getMessage());
-		}
-		script += '\n' + ")";
-
-		logger.debug("Loaded the script:\n {} ", script);
-
-		try {
-			// Execute the script:
-			Process p = Runtime.getRuntime().exec(new String[] { "bash", "-c",
-				script });
-
-			// Read the output of the script:
-			BufferedReader output = new BufferedReader(new InputStreamReader(p
-				.getInputStream()));
-			List<String> files = new ArrayList<>();
-			String line = "";
-			logger.debug("Standard output of the find mpi.jar script.");
-			while ((line = output.readLine()) != null) {
-				files.add(line);
-				logger.debug("{} \n", line);
-			}
-
-			// Read the error of the script:
-			logger.debug("Error output of the find mpi.jar script.");
-			BufferedReader error = new BufferedReader(new InputStreamReader(p
-				.getErrorStream()));
-			while ((line = error.readLine()) != null) {
-				logger.debug("{} \n", line);
-			}
+	// Rank and size of COMM_WORLD can not change once MPI is initialised:
+	private int rank = -1;
+	private int size = -1;
 
-			// Dynamically link the files.
-			if (!files.isEmpty()) {
-				jarPath = files.get(0);
-			}
-			else {
-				logger.error("No OpenMPI was found on your system." +
-					" Please install OpenMPI before using Parallel-Macro.");
-				System.exit(0);
-			}
-		}
-		catch (IOException exc) {
-			logger.error("OpenMPI's mpi.jar was not found on this system. \n {}", exc
-				.getMessage());
-			System.exit(0);
+	// Returns the path of mpi.jar or null when OpenMPI was not found:
+	public String findMpiJarFile() {
+		String jarPath = MpiJarLocator.find();
+		if (jarPath == null) {
+			logger.error("No OpenMPI was found on your system." +
+				" Please install OpenMPI before using Parallel-Macro.");
 		}
-
 		return jarPath;
 	}
 
-	public void loadOpenMpi(String path) {
+	// Returns 0 when all the OpenMPI methods were bound, -1 otherwise:
+	public int loadOpenMpi(String path) {
+		if (path == null) {
+			return -1;
+		}
 		logger.info("The path of MPI.jar is: {}", path);
 		try {
 			URLClassLoader child;
 			child = new URLClassLoader(new URL[] { new URL("file://" + path) },
 				MPIParallelism.class.getClassLoader());
 			Class<?> mpiClass = Class.forName("mpi.MPI", true, child);
-			mpiInstance = mpiClass.newInstance();
 
-			// Methods:
-			mpiInit = mpiClass.getDeclaredMethod("Init", String[].class);
-			mpiIsInitialized = mpiClass.getDeclaredMethod("isInitialized");
-			mpiIsFinalized = mpiClass.getDeclaredMethod("isFinalized");
-			mpiFinalize = mpiClass.getDeclaredMethod("Finalize");
+			// Static fields:
 			Field commWorld = mpiClass.getDeclaredField("COMM_WORLD");
 			Field mpiDoubleField = mpiClass.getDeclaredField("DOUBLE");
 			Class<?> mpiDoubleClass = mpiDoubleField.getType();
-			mpiDoubleInstance = mpiDoubleField.get(mpiInstance);
-			commWorldInstance = commWorld.get(mpiInstance);
-			mpiBarrier = commWorldInstance.getClass().getMethod("barrier",
-				new Class[] {});
-			mpiGetRank = commWorldInstance.getClass().getMethod("getRank",
-				new Class[] {});
-			mpiGetSize = commWorldInstance.getClass().getMethod("getSize",
-				new Class[] {});
-			mpiNewDoubleBuffer = mpiClass.getMethod("newDoubleBuffer", int.class);
-
-			mpiScatterv = commWorldInstance.getClass().getMethod("scatterv",
-				Object.class, int[].class, int[].class, mpiDoubleClass, Object.class,
-				int.class, mpiDoubleClass, int.class);
-
-			mpiScatter = commWorldInstance.getClass().getMethod("scatter",
-				Object.class, int.class, mpiDoubleClass, Object.class, int.class,
-				mpiDoubleClass, int.class);
-			mpiGather = commWorldInstance.getClass().getMethod("gather", Object.class,
-				int.class, mpiDoubleClass, Object.class, int.class, mpiDoubleClass,
-				int.class);
-			mpiGatherv = commWorldInstance.getClass().getMethod("gatherv",
-				Object.class, int.class, mpiDoubleClass, Object.class, int[].class,
-				int[].class, mpiDoubleClass, int.class);
+			mpiDoubleInstance = mpiDoubleField.get(null);
+			mpiFloatInstance = mpiClass.getDeclaredField("FLOAT").get(null);
+			mpiIntInstance = mpiClass.getDeclaredField("INT").get(null);
+			mpiShortInstance = mpiClass.getDeclaredField("SHORT").get(null);
+			mpiByteInstance = mpiClass.getDeclaredField("BYTE").get(null);
+			Field mpiSumField = mpiClass.getDeclaredField("SUM");
+			Class<?> mpiOpClass = mpiSumField.getType();
+			mpiSumInstance = mpiSumField.get(null);
+			mpiMinInstance = mpiClass.getDeclaredField("MIN").get(null);
+			mpiMaxInstance = mpiClass.getDeclaredField("MAX").get(null);
+			mpiProductInstance = mpiClass.getDeclaredField("PROD").get(null);
+			mpiReplaceInstance = mpiClass.getDeclaredField("REPLACE").get(null);
+			commWorldInstance = commWorld.get(null);
+			Class<?> commClass = commWorldInstance.getClass();
+
+			// Methods of the MPI class:
+			mpiInit = bind(mpiClass.getDeclaredMethod("Init", String[].class), null,
+				MethodType.methodType(void.class, String[].class));
+			mpiIsInitialized = bind(mpiClass.getDeclaredMethod("isInitialized"),
+				null, MethodType.methodType(boolean.class));
+			mpiIsFinalized = bind(mpiClass.getDeclaredMethod("isFinalized"), null,
+				MethodType.methodType(boolean.class));
+			mpiFinalize = bind(mpiClass.getDeclaredMethod("Finalize"), null,
+				MethodType.methodType(void.class));
+			mpiNewDoubleBuffer = bind(mpiClass.getMethod("newDoubleBuffer",
+				int.class), null, MethodType.methodType(DoubleBuffer.class,
+					int.class));
+
+			// Methods of COMM_WORLD:
+			mpiBarrier = bind(commClass.getMethod("barrier"), commWorldInstance,
+				MethodType.methodType(void.class));
+			mpiGetRank = bind(commClass.getMethod("getRank"), commWorldInstance,
+				MethodType.methodType(int.class));
+			mpiGetSize = bind(commClass.getMethod("getSize"), commWorldInstance,
+				MethodType.methodType(int.class));
+
+			mpiScatterv = bind(commClass.getMethod("scatterv", Object.class,
+				int[].class, int[].class, mpiDoubleClass, Object.class, int.class,
+				mpiDoubleClass, int.class), commWorldInstance, MethodType.methodType(
+					void.class, Object.class, int[].class, int[].class, Object.class,
+					Object.class, int.class, Object.class, int.class));
+			mpiScatter = bind(commClass.getMethod("scatter", Object.class, int.class,
+				mpiDoubleClass, Object.class, int.class, mpiDoubleClass, int.class),
+				commWorldInstance, MethodType.methodType(void.class, Object.class,
+					int.class, Object.class, Object.class, int.class, Object.class,
+					int.class));
+			mpiGather = bind(commClass.getMethod("gather", Object.class, int.class,
+				mpiDoubleClass, Object.class, int.class, mpiDoubleClass, int.class),
+				commWorldInstance, MethodType.methodType(void.class, Object.class,
+					int.class, Object.class, Object.class, int.class, Object.class,
+					int.class));
+			mpiGatherv = bind(commClass.getMethod("gatherv", Object.class, int.class,
+				mpiDoubleClass, Object.class, int[].class, int[].class, mpiDoubleClass,
+				int.class), commWorldInstance, MethodType.methodType(void.class,
+					Object.class, int.class, Object.class, Object.class, int[].class,
+					int[].class, Object.class, int.class));
+			mpiBcast = bind(commClass.getMethod("bcast", Object.class, int.class,
+				mpiDoubleClass, int.class), commWorldInstance, MethodType.methodType(
+					void.class, Object.class, int.class, Object.class, int.class));
+			mpiReduce = bind(commClass.getMethod("reduce", Object.class,
+				Object.class, int.class, mpiDoubleClass, mpiOpClass, int.class),
+				commWorldInstance, MethodType.methodType(void.class, Object.class,
+					Object.class, int.class, Object.class, Object.class, int.class));
+			mpiAllReduce = bind(commClass.getMethod("allReduce", Object.class,
+				Object.class, int.class, mpiDoubleClass, mpiOpClass),
+				commWorldInstance, MethodType.methodType(void.class, Object.class,
+					Object.class, int.class, Object.class, Object.class));
+			mpiAllGather = bind(commClass.getMethod("allGather", Object.class,
+				int.class, mpiDoubleClass, Object.class, int.class, mpiDoubleClass),
+				commWorldInstance, MethodType.methodType(void.class, Object.class,
+					int.class, Object.class, Object.class, int.class, Object.class));
+			mpiAllGatherv = bind(commClass.getMethod("allGatherv", Object.class,
+				int.class, mpiDoubleClass, Object.class, int[].class, int[].class,
+				mpiDoubleClass), commWorldInstance, MethodType.methodType(void.class,
+					Object.class, int.class, Object.class, Object.class, int[].class,
+					int[].class, Object.class));
+			mpiAllToAll = bind(commClass.getMethod("allToAll", Object.class,
+				int.class, mpiDoubleClass, Object.class, int.class, mpiDoubleClass),
+				commWorldInstance, MethodType.methodType(void.class, Object.class,
+					int.class, Object.class, Object.class, int.class, Object.class));
+
+			// Non-blocking collectives of COMM_WORLD and their requests:
+			Method iBarrier = commClass.getMethod("iBarrier");
+			Class<?> requestClass = iBarrier.getReturnType();
+			mpiIBarrier = bind(iBarrier, commWorldInstance, MethodType.methodType(
+				Object.class));
+			mpiIScatter = bind(commClass.getMethod("iScatter", Buffer.class,
+				int.class, mpiDoubleClass, Buffer.class, int.class, mpiDoubleClass,
+				int.class), commWorldInstance, MethodType.methodType(Object.class,
+					Buffer.class, int.class, Object.class, Buffer.class, int.class,
+					Object.class, int.class));
+			mpiIGather = bind(commClass.getMethod("iGather", Buffer.class,
+				int.class, mpiDoubleClass, Buffer.class, int.class, mpiDoubleClass,
+				int.class), commWorldInstance, MethodType.methodType(Object.class,
+					Buffer.class, int.class, Object.class, Buffer.class, int.class,
+					Object.class, int.class));
+			mpiIBcast = bind(commClass.getMethod("iBcast", Buffer.class, int.class,
+				mpiDoubleClass, int.class), commWorldInstance, MethodType.methodType(
+					Object.class, Buffer.class, int.class, Object.class, int.class));
+			mpiIAllReduce = bind(commClass.getMethod("iAllReduce", Buffer.class,
+				Buffer.class, int.class, mpiDoubleClass, mpiOpClass),
+				commWorldInstance, MethodType.methodType(Object.class, Buffer.class,
+					Buffer.class, int.class, Object.class, Object.class));
+			mpiRequestTest = bind(requestClass.getMethod("test"), null, MethodType
+				.methodType(boolean.class, Object.class));
+			mpiRequestWaitFor = bind(requestClass.getMethod("waitFor"), null,
+				MethodType.methodType(void.class, Object.class));
+
+			// One-sided communication through a window, used for shared counters:
+			mpiLongInstance = mpiClass.getDeclaredField("LONG").get(null);
+			mpiInfoNullInstance = mpiClass.getDeclaredField("INFO_NULL").get(null);
+			mpiLockShared = mpiClass.getDeclaredField("LOCK_SHARED").getInt(null);
+			mpiNewLongBuffer = bind(mpiClass.getMethod("newLongBuffer", int.class),
+				null, MethodType.methodType(LongBuffer.class, int.class));
+			Class<?> winClass = Class.forName("mpi.Win", true, child);
+			for (Constructor<?> constructor : winClass.getConstructors()) {
+				Class<?>[] parameters = constructor.getParameterTypes();
+				if (parameters.length == 5 && parameters[0] == Buffer.class) {
+					mpiNewWin = MethodHandles.publicLookup().unreflectConstructor(
+						constructor).asType(MethodType.methodType(Object.class,
+							Buffer.class, int.class, int.class, Object.class,
+							Object.class));
+				}
+			}
+			mpiWinLock = bind(winClass.getMethod("lock", int.class, int.class,
+				int.class), null, MethodType.methodType(void.class, Object.class,
+					int.class, int.class, int.class));
+			mpiWinUnlock = bind(winClass.getMethod("unlock", int.class), null,
+				MethodType.methodType(void.class, Object.class, int.class));
+			mpiWinFetchAndOp = bind(winClass.getMethod("fetchAndOp", Buffer.class,
+				Buffer.class, mpiDoubleClass, int.class, int.class, mpiOpClass), null,
+				MethodType.methodType(void.class, Object.class, Buffer.class,
+					Buffer.class, Object.class, int.class, int.class, Object.class));
+			mpiWinFree = bind(winClass.getMethod("free"), null, MethodType
+				.methodType(void.class, Object.class));
 		}
 		catch (MalformedURLException | ClassNotFoundException
 				| NoSuchMethodException | SecurityException | IllegalAccessException
-				| IllegalArgumentException | InstantiationException
-				| NoSuchFieldException exc)
+				| IllegalArgumentException | NoSuchFieldException | LinkageError exc)
 		{
-			exc.printStackTrace();
+			logger.error("OpenMPI's mpi.jar could not be loaded: {} ", exc
+				.toString());
+			return -1;
 		}
+		return 0;
 	}
 
-	public void initialise(String[] arg0) throws IllegalAccessException,
-		IllegalArgumentException, InvocationTargetException
+	// Convert a reflected method to a method handle, bind it to its receiver (if
+	// it is not static) and adapt it to the exact type used at the call site:
+	private static MethodHandle bind(Method method, Object receiver,
+		MethodType callSiteType) throws IllegalAccessException
 	{
-		Object[] args = { arg0 };
-		mpiInit.invoke(mpiInstance, args);
+		MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+		if (receiver != null) {
+			handle = handle.bindTo(receiver);
+		}
+		return handle.asType(callSiteType);
 	}
 
-	public void finalise() throws IllegalAccessException,
-		IllegalArgumentException, InvocationTargetException
-	{
-		mpiFinalize.invoke(mpiInstance);
+	// Errors raised by the MPI call itself are reported as before, wrapped in an
+	// InvocationTargetException:
+	private static InvocationTargetException wrap(Throwable exc) {
+		if (exc instanceof Error) {
+			throw (Error) exc;
+		}
+		return new InvocationTargetException(exc);
 	}
 
-	public boolean isInitialised() throws IllegalAccessException,
-		IllegalArgumentException, InvocationTargetException
-	{
-		Object isInitialized = mpiIsInitialized.invoke(mpiInstance);
-		return (boolean) isInitialized;
+	public void initialise(String[] arg0) throws InvocationTargetException {
+		try {
+			mpiInit.invokeExact(arg0);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+		rank = getRank();
+		size = getSize();
 	}
 
-	public boolean isFinalised() throws IllegalAccessException,
-		IllegalArgumentException, InvocationTargetException
-	{
-		Object isFinalized = mpiIsFinalized.invoke(mpiInstance);
-		return (boolean) isFinalized;
+	public void finalise() throws InvocationTargetException {
+		try {
+			mpiFinalize.invokeExact();
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
 	}
 
-	public int getRank() throws IllegalAccessException, IllegalArgumentException,
-		InvocationTargetException
-	{
-		Object tempRank = mpiGetRank.invoke(commWorldInstance);
-		return (int) tempRank;
+	public boolean isInitialised() throws InvocationTargetException {
+		try {
+			return (boolean) mpiIsInitialized.invokeExact();
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
 	}
 
-	public int getSize() throws IllegalAccessException, IllegalArgumentException,
-		InvocationTargetException
-	{
-		Object tempSize = mpiGetSize.invoke(commWorldInstance);
-		return (int) tempSize;
+	public boolean isFinalised() throws InvocationTargetException {
+		try {
+			return (boolean) mpiIsFinalized.invokeExact();
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
 	}
 
-	public void barrier() throws IllegalAccessException, IllegalArgumentException,
-		InvocationTargetException
-	{
-		mpiBarrier.invoke(commWorldInstance);
+	public int getRank() throws InvocationTargetException {
+		// Only ask MPI until the first successful answer:
+		if (rank < 0) {
+			try {
+				rank = (int) mpiGetRank.invokeExact();
+			}
+			catch (Throwable exc) {
+				throw wrap(exc);
+			}
+		}
+		return rank;
+	}
+
+	public int getSize() throws InvocationTargetException {
+		// Only ask MPI until the first successful answer:
+		if (size < 0) {
+			try {
+				size = (int) mpiGetSize.invokeExact();
+			}
+			catch (Throwable exc) {
+				throw wrap(exc);
+			}
+		}
+		return size;
+	}
+
+	public void barrier() throws InvocationTargetException {
+		try {
+			mpiBarrier.invokeExact();
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	// The MPI datatype matching the elements of an array or a buffer:
+	public Object getDatatype(Object buffer) {
+		if (buffer instanceof double[] || buffer instanceof DoubleBuffer) {
+			return mpiDoubleInstance;
+		}
+		if (buffer instanceof float[] || buffer instanceof FloatBuffer) {
+			return mpiFloatInstance;
+		}
+		if (buffer instanceof int[] || buffer instanceof IntBuffer) {
+			return mpiIntInstance;
+		}
+		if (buffer instanceof short[] || buffer instanceof ShortBuffer) {
+			return mpiShortInstance;
+		}
+		if (buffer instanceof byte[] || buffer instanceof ByteBuffer) {
+			return mpiByteInstance;
+		}
+		throw PrimitiveBuffers.unsupported(buffer);
+	}
+
+	// The MPI operation of a reduction:
+	public Object getOperation(ReductionOperation operation) {
+		switch (operation) {
+			case SUM:
+				return mpiSumInstance;
+			case MIN:
+				return mpiMinInstance;
+			case MAX:
+				return mpiMaxInstance;
+			default:
+				return mpiProductInstance;
+		}
 	}
 
 	public DoubleBuffer newDoubleBuffer(int size) {
-		Object temp;
 		try {
-			temp = mpiNewDoubleBuffer.invoke(mpiInstance, size);
+			return (DoubleBuffer) mpiNewDoubleBuffer.invokeExact(size);
 		}
-		catch (IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException exc)
-		{
-			// In case of error allocate a 0 size double buffer.
-			return DoubleBuffer.allocate(0);
+		catch (Throwable exc) {
+			// Without MPI a direct buffer of the same layout still holds the data:
+			logger.error("MPI new double buffer error: {} ", exc.getMessage());
+			return newDirectBuffer(size, Double.BYTES).asDoubleBuffer();
 		}
-		return (DoubleBuffer) temp;
 	}
 
 	public void scatterv(Object sendBuffer, int[] sendCounts, int[] displacements,
 		Object mpiSendDataType, Object receiveBuffer, int receiveCount,
-		Object mpiReceiveDataType, int sender) throws IllegalAccessException,
-		IllegalArgumentException, InvocationTargetException
+		Object mpiReceiveDataType, int sender) throws InvocationTargetException
 	{
-		mpiScatterv.invoke(commWorldInstance, sendBuffer, sendCounts, displacements,
-			mpiSendDataType, receiveBuffer, receiveCount, mpiReceiveDataType, sender);
+		try {
+			mpiScatterv.invokeExact(sendBuffer, sendCounts, displacements,
+				mpiSendDataType, receiveBuffer, receiveCount, mpiReceiveDataType,
+				sender);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
 	}
 
 	public void scatter(Object sendBuffer, int sendCount, Object mpiSendDataType,
 		Object receiveBuffer, int receiveCount, Object mpiReceiveDataType, int root)
-		throws IllegalAccessException, IllegalArgumentException,
-		InvocationTargetException
+		throws InvocationTargetException
 	{
-		mpiScatter.invoke(commWorldInstance, sendBuffer, sendCount, mpiSendDataType,
-			receiveBuffer, receiveCount, mpiReceiveDataType, root);
+		try {
+			mpiScatter.invokeExact(sendBuffer, sendCount, mpiSendDataType,
+				receiveBuffer, receiveCount, mpiReceiveDataType, root);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
 	}
 
 	public void gather(Object sendBuffer, int sendCount, Object mpiSendDataType,
 		Object receiveBuffer, int receiveCount, Object mpiReceiveDataType, int root)
-		throws IllegalAccessException, IllegalArgumentException,
-		InvocationTargetException
+		throws InvocationTargetException
 	{
-		mpiGather.invoke(commWorldInstance, sendBuffer, sendCount, mpiSendDataType,
-			receiveBuffer, receiveCount, mpiReceiveDataType, root);
+		try {
+			mpiGather.invokeExact(sendBuffer, sendCount, mpiSendDataType,
+				receiveBuffer, receiveCount, mpiReceiveDataType, root);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
 	}
 
 	public void gatherv(Object sendBuffer, int sendCount, Object mpiSendDataTypes,
 		Object receivedBuffer, int[] receiveCounts, int[] displacements,
-		Object mpiReceiveDataTypes, int receiver) throws IllegalAccessException,
-		IllegalArgumentException, InvocationTargetException
+		Object mpiReceiveDataTypes, int receiver) throws InvocationTargetException
+	{
+		try {
+			mpiGatherv.invokeExact(sendBuffer, sendCount, mpiSendDataTypes,
+				receivedBuffer, receiveCounts, displacements, mpiReceiveDataTypes,
+				receiver);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public void bcast(Object buffer, int count, Object mpiDataType, int root)
+		throws InvocationTargetException
+	{
+		try {
+			mpiBcast.invokeExact(buffer, count, mpiDataType, root);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public void reduce(Object sendBuffer, Object receiveBuffer, int count,
+		Object mpiDataType, Object mpiOperation, int root)
+		throws InvocationTargetException
+	{
+		try {
+			mpiReduce.invokeExact(sendBuffer, receiveBuffer, count, mpiDataType,
+				mpiOperation, root);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public void allReduce(Object sendBuffer, Object receiveBuffer, int count,
+		Object mpiDataType, Object mpiOperation) throws InvocationTargetException
 	{
-		mpiGatherv.invoke(sendBuffer, sendCount, mpiSendDataTypes, receivedBuffer,
-			receiveCounts, displacements, mpiReceiveDataTypes, receiver);
+		try {
+			mpiAllReduce.invokeExact(sendBuffer, receiveBuffer, count, mpiDataType,
+				mpiOperation);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public void allGather(Object sendBuffer, int sendCount,
+		Object mpiSendDataType, Object receiveBuffer, int receiveCount,
+		Object mpiReceiveDataType) throws InvocationTargetException
+	{
+		try {
+			mpiAllGather.invokeExact(sendBuffer, sendCount, mpiSendDataType,
+				receiveBuffer, receiveCount, mpiReceiveDataType);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public void allGatherv(Object sendBuffer, int sendCount,
+		Object mpiSendDataType, Object receiveBuffer, int[] receiveCounts,
+		int[] displacements, Object mpiReceiveDataType)
+		throws InvocationTargetException
+	{
+		try {
+			mpiAllGatherv.invokeExact(sendBuffer, sendCount, mpiSendDataType,
+				receiveBuffer, receiveCounts, displacements, mpiReceiveDataType);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public void allToAll(Object sendBuffer, int sendCount,
+		Object mpiSendDataType, Object receiveBuffer, int receiveCount,
+		Object mpiReceiveDataType) throws InvocationTargetException
+	{
+		try {
+			mpiAllToAll.invokeExact(sendBuffer, sendCount, mpiSendDataType,
+				receiveBuffer, receiveCount, mpiReceiveDataType);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	// The non-blocking collectives return the request of the started transfer,
+	// the buffers must be direct and must not be touched until it completes:
+
+	public Object iScatter(Buffer sendBuffer, int sendCount,
+		Object mpiSendDataType, Buffer receiveBuffer, int receiveCount,
+		Object mpiReceiveDataType, int root) throws InvocationTargetException
+	{
+		try {
+			return (Object) mpiIScatter.invokeExact(sendBuffer, sendCount,
+				mpiSendDataType, receiveBuffer, receiveCount, mpiReceiveDataType,
+				root);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public Object iGather(Buffer sendBuffer, int sendCount,
+		Object mpiSendDataType, Buffer receiveBuffer, int receiveCount,
+		Object mpiReceiveDataType, int root) throws InvocationTargetException
+	{
+		try {
+			return (Object) mpiIGather.invokeExact(sendBuffer, sendCount,
+				mpiSendDataType, receiveBuffer, receiveCount, mpiReceiveDataType,
+				root);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public Object iBcast(Buffer buffer, int count, Object mpiDataType, int root)
+		throws InvocationTargetException
+	{
+		try {
+			return (Object) mpiIBcast.invokeExact(buffer, count, mpiDataType, root);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public Object iAllReduce(Buffer sendBuffer, Buffer receiveBuffer, int count,
+		Object mpiDataType, Object mpiOperation) throws InvocationTargetException
+	{
+		try {
+			return (Object) mpiIAllReduce.invokeExact(sendBuffer, receiveBuffer,
+				count, mpiDataType, mpiOperation);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public Object iBarrier() throws InvocationTargetException {
+		try {
+			return (Object) mpiIBarrier.invokeExact();
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public boolean test(Object request) throws InvocationTargetException {
+		try {
+			return (boolean) mpiRequestTest.invokeExact(request);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public void waitFor(Object request) throws InvocationTargetException {
+		try {
+			mpiRequestWaitFor.invokeExact(request);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public LongBuffer newLongBuffer(int size) {
+		try {
+			return (LongBuffer) mpiNewLongBuffer.invokeExact(size);
+		}
+		catch (Throwable exc) {
+			logger.error("MPI new long buffer error: {} ", exc.getMessage());
+			return newDirectBuffer(size, Long.BYTES).asLongBuffer();
+		}
+	}
+
+	// A direct buffer in the native byte order, like the buffers of MPI:
+	private static ByteBuffer newDirectBuffer(int size, int elementBytes) {
+		return ByteBuffer.allocateDirect(size * elementBytes).order(ByteOrder
+			.nativeOrder());
+	}
+
+	// Creating a window is collective, every rank exposes its buffer to the
+	// others:
+	public Object createWindow(Buffer base, int size, int displacementUnit)
+		throws InvocationTargetException
+	{
+		try {
+			return (Object) mpiNewWin.invokeExact(base, size, displacementUnit,
+				mpiInfoNullInstance, commWorldInstance);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	// Atomically adds the origin to a long in the window of the target rank and
+	// returns the previous value in the result buffer:
+	public void fetchAndAdd(Object window, LongBuffer origin, LongBuffer result,
+		int targetRank) throws InvocationTargetException
+	{
+		fetchAndOp(window, origin, result, targetRank, 0, mpiSumInstance);
+	}
+
+	// Atomically replaces the long at the displacement in the window of the
+	// target rank, the previous value is returned in the result buffer:
+	public void fetchAndReplace(Object window, LongBuffer origin,
+		LongBuffer result, int targetRank, int displacement)
+		throws InvocationTargetException
+	{
+		fetchAndOp(window, origin, result, targetRank, displacement,
+			mpiReplaceInstance);
+	}
+
+	private void fetchAndOp(Object window, LongBuffer origin, LongBuffer result,
+		int targetRank, int displacement, Object operation)
+		throws InvocationTargetException
+	{
+		try {
+			mpiWinLock.invokeExact(window, mpiLockShared, targetRank, 0);
+			// A window left locked blocks the next access of every rank:
+			try {
+				mpiWinFetchAndOp.invokeExact(window, (Buffer) origin, (Buffer) result,
+					mpiLongInstance, targetRank, displacement, operation);
+			}
+			finally {
+				mpiWinUnlock.invokeExact(window, targetRank);
+			}
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
+	}
+
+	public void freeWindow(Object window) throws InvocationTargetException {
+		try {
+			mpiWinFree.invokeExact(window);
+		}
+		catch (Throwable exc) {
+			throw wrap(exc);
+		}
 	}
 }
@@ -1,43 +1,106 @@
 
 package cz.it4i.fiji.parallel_macro;
 
+import java.nio.DoubleBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class ParallelMacro {
 
-	private static Parallelism parallelism = new MPIParallelism();
+	private static Parallelism parallelism = ParallelismFactory.create();
 
-	private static ProgressLogging progressLogging = null;
+	// One per rank, the ranks of the shared memory backend are threads of this
+	// JVM:
+	private static final Map<Integer, ProgressLogging> progressLoggings =
+		new ConcurrentHashMap<>();
 
 	private static TextReportLogging textReportLogging = new TextReportLogging();
 
+	private static CheckpointJournal checkpointJournal = new CheckpointJournal();
+
+	private static ArrayCommaSeparatedString converter =
+		new ArrayCommaSeparatedString();
+
+	private static Logger logger = LoggerFactory.getLogger(ParallelMacro.class);
+
 	// This method resets the static state of the class:
 	public static void resetState() {
-		parallelism = new MPIParallelism();
+		parallelism = ParallelismFactory.create();
+	}
+
+	// Runs the body, e.g. the main method of a job, on every rank. The ranks of
+	// the shared memory backend are started here as threads of this JVM, see
+	// SharedMemoryLauncher, those of the other backends are processes that
+	// were started by their launcher, so the body runs once:
+	public static void execute(Runnable body) {
+		if (parallelism instanceof SharedMemoryParallelism) {
+			((SharedMemoryParallelism) parallelism).execute(body);
+		}
+		else {
+			body.run();
+		}
 	}
 
 	public static void selectProgressLogger(String type) {
-		if (progressLogging == null) {
-			if (type.equalsIgnoreCase("file")) {
-				progressLogging = new FileProgressLogging();
-				return;
-			}
+		progressLoggings.computeIfAbsent(parallelism.getRank(),
+			rank -> newProgressLogging(type));
+	}
+
+	private static ProgressLogging newProgressLogging(String type) {
+		// Every rank puts its progress on a board of rank 0, which writes a
+		// single file for the whole job. It communicates, so it is never moved
+		// to a background thread:
+		if (type.equalsIgnoreCase("aggregated") || Configuration.getBoolean(
+			"progress.aggregated", false))
+		{
+			return new AggregatedProgressLogging(parallelism);
+		}
+		ProgressLogging progressLogging;
+		if (type.equalsIgnoreCase("file")) {
+			progressLogging = new FileProgressLogging();
+		}
+		else if (type.equalsIgnoreCase("binary")) {
+			// Fixed size records, see ProgressLogConverter for the other formats:
+			progressLogging = new BinaryProgressLogging();
+		}
+		else {
 			// By default use the XML progress logging:
 			progressLogging = new XmlProgressLogging();
 		}
+
+		// Optionally write the progress from a background thread:
+		if (Configuration.getBoolean("progress.asynchronous", false)) {
+			progressLogging = new AsynchronousProgressLogging(progressLogging,
+				(int) Configuration.getLong("progress.queue_capacity", 1024),
+				AsynchronousProgressLogging.Backpressure.valueOf(Configuration
+					.getString("progress.backpressure", "drop").toUpperCase()));
+		}
+		return progressLogging;
 	}
 
-	public static int addTask(String description) {
+	private static ProgressLogging progressLogging() {
 		selectProgressLogger("");
-		return progressLogging.addTask(description);
+		return progressLoggings.get(parallelism.getRank());
+	}
+
+	public static int addTask(String description) {
+		return progressLogging().addTask(description);
 	}
 
 	public static void reportTasks() {
-		selectProgressLogger("");
-		progressLogging.reportTasks(parallelism.getRank(), parallelism.getSize());
+		progressLogging().reportTasks(parallelism.getRank(), parallelism.getSize());
 	}
 
 	public static int reportProgress(int taskId, int progress) {
-		selectProgressLogger("");
-		return progressLogging.reportProgress(taskId, progress, parallelism
+		return progressLogging().reportProgress(taskId, progress, parallelism
 			.getRank());
 	}
 
@@ -45,14 +108,49 @@ public class ParallelMacro {
 		return textReportLogging.reportText(textToReport, parallelism.getRank());
 	}
 
+	// Writes the reported text, forced to the disk with the "report.fsync"
+	// setting:
+	public static int checkpointText() {
+		return textReportLogging.checkpoint(parallelism.getRank());
+	}
+
 	public static int initialise() {
-		return parallelism.initialise();
+		ImbalanceProfiler.start();
+		int result = parallelism.initialise();
+		if (result == 0) {
+			Heartbeat.start(parallelism.getRank(), parallelism.getSize());
+			// Collective when checkpointing is enabled, the items done by an
+			// earlier run of the job:
+			checkpointJournal.initialise(parallelism);
+		}
+		return result;
 	}
 
 	public static int finalise() {
+		ProgressLogging progressLogging = progressLoggings.get(parallelism
+			.getRank());
+		if (progressLogging != null) {
+			progressLogging.finalise();
+		}
+		textReportLogging.finalise(parallelism.getRank());
+		checkpointJournal.finalise(parallelism.getRank());
+		// Collective, while the backend can still communicate:
+		Metrics.report(parallelism);
+		ImbalanceProfiler.report(parallelism);
+		Heartbeat.stop();
 		return parallelism.finalise();
 	}
 
+	// Notes that the item, e.g. the path of a file, is done, so that the job
+	// skips it when it is submitted again:
+	public static int markDone(String itemKey) {
+		return checkpointJournal.markDone(itemKey, parallelism.getRank());
+	}
+
+	public static boolean isDone(String itemKey) {
+		return checkpointJournal.isDone(itemKey);
+	}
+
 	public static int getRank() {
 		return parallelism.getRank();
 	}
@@ -61,13 +159,18 @@ public class ParallelMacro {
 		return parallelism.getSize();
 	}
 
+	// Names the phases that end with the following blocking collectives in
+	// the imbalance profile:
+	public static void setPhase(String label) {
+		ImbalanceProfiler.setLabel(label);
+	}
+
 	public static int barrier() {
 		return parallelism.barrier();
 	}
 	
 	public static void enableTiming() {
-		selectProgressLogger("");
-		progressLogging.enableTiming();
+		progressLogging().enableTiming();
 	}
 
 	// Simple scatter which attempts to split the send buffer to equal parts among
@@ -96,6 +199,502 @@ public class ParallelMacro {
 		return parallelism.gatherEqually(sendString, totalSendBufferLength, root);
 	}
 
+	// The whole array is sent to all the nodes:
+	public static String broadcast(String sendString, int count, int root) {
+		return parallelism.broadcast(sendString, count, root);
+	}
+
+	// Combines the elements of all the nodes with "sum", "min", "max" or
+	// "product":
+	public static String reduce(String sendString, String operation, int root) {
+		return parallelism.reduce(sendString, operation, root);
+	}
+
+	public static String allReduce(String sendString, String operation) {
+		return parallelism.allReduce(sendString, operation);
+	}
+
+	public static String allGather(String sendString, int sendCount) {
+		return parallelism.allGather(sendString, sendCount);
+	}
+
+	// Like allGather but every node may send a different number of elements:
+	public static String allGatherv(String sendString, int sendCount) {
+		return parallelism.allGatherv(sendString, sendCount);
+	}
+
+	// Every node sends a different part of its array to each node:
+	public static String allToAll(String sendString, int sendCount) {
+		return parallelism.allToAll(sendString, sendCount);
+	}
+
+	// Lists of strings such as file paths, joined by the separator. The root
+	// can list a directory once and give every node a block of the files:
+	public static String scatterStrings(String strings, String separator,
+		int root)
+	{
+		return join(parallelism.scatterStrings(split(strings, separator), root),
+			separator);
+	}
+
+	// The strings of all the nodes in the order of their ranks, on the root:
+	public static String gatherStrings(String strings, String separator,
+		int root)
+	{
+		return join(parallelism.gatherStrings(split(strings, separator), root),
+			separator);
+	}
+
+	public static String broadcastStrings(String strings, String separator,
+		int root)
+	{
+		return join(parallelism.broadcastStrings(split(strings, separator), root),
+			separator);
+	}
+
+	// The files under the directory whose names match the glob pattern, e.g.
+	// "*.tif", divided among the nodes so that each one gets about the same
+	// number of bytes. Rank 0 lists the directory, the largest files come first
+	// in every list:
+	public static String distributeFiles(String directory, String pattern,
+		String separator)
+	{
+		int root = 0;
+		String[] files = null;
+		int[] sendCounts = null;
+		if (parallelism.getRank() == root) {
+			// Macros often start paths with the home directory:
+			if (directory.startsWith("~/")) {
+				directory = System.getProperty("user.home") + directory.substring(1);
+			}
+			FileSet fileSet = FileSet.scan(Paths.get(directory), pattern,
+				(int) Configuration.getLong("files.scan_threads", Runtime.getRuntime()
+					.availableProcessors()));
+			// The files done by an earlier run of the job are left out:
+			String[] paths = fileSet.getPaths();
+			int[] remaining = IntStream.range(0, paths.length).filter(
+				item -> !checkpointJournal.isDone(paths[item])).toArray();
+			double[] allCosts = fileSet.getSizesAsCosts();
+			double[] costs = new double[remaining.length];
+			long bytes = 0;
+			for (int item = 0; item < remaining.length; item++) {
+				costs[item] = allCosts[remaining[item]];
+				bytes += fileSet.getSizes()[remaining[item]];
+			}
+			int size = parallelism.getSize();
+			int[] owners = Partitioner.longestProcessingTimeOwners(costs, size);
+
+			// Group the files by their owner, each group from the largest file:
+			Integer[] order = new Integer[owners.length];
+			for (int item = 0; item < owners.length; item++) {
+				order[item] = item;
+			}
+			Arrays.sort(order, (first, second) -> owners[first] != owners[second]
+				? Integer.compare(owners[first], owners[second]) : Double.compare(
+					costs[second], costs[first]));
+			files = new String[order.length];
+			sendCounts = new int[size];
+			for (int index = 0; index < order.length; index++) {
+				files[index] = paths[remaining[order[index]]];
+				sendCounts[owners[order[index]]]++;
+			}
+
+			if (remaining.length < paths.length) {
+				reportText(String.format(Locale.ROOT,
+					"Skipped %d files done by an earlier run", paths.length -
+						remaining.length));
+			}
+			reportText(String.format(Locale.ROOT,
+				"Distributed %d files of %d bytes to %d nodes, imbalance %.3f",
+				files.length, bytes, size, Partitioner.imbalance(costs, owners,
+					size)));
+		}
+		return join(parallelism.scattervStrings(files, sendCounts, root),
+			separator);
+	}
+
+	// The items of the root that are not done yet, divided among the nodes in
+	// blocks of about the same number of items:
+	public static String distributeRemaining(String items, String separator,
+		int root)
+	{
+		String[] remaining = null;
+		if (parallelism.getRank() == root) {
+			remaining = Arrays.stream(split(items, separator)).filter(
+				item -> !checkpointJournal.isDone(item)).toArray(String[]::new);
+		}
+		return join(parallelism.scatterStrings(remaining, root), separator);
+	}
+
+	private static String[] split(String strings, String separator) {
+		if (strings == null || strings.isEmpty()) {
+			return new String[0];
+		}
+		return strings.split(Pattern.quote(separator), -1);
+	}
+
+	private static String join(String[] strings, String separator) {
+		return String.join(separator, strings);
+	}
+
+	// Non-blocking collectives return a handle, the macro can keep computing and
+	// collect the result later with waitFor(handle):
+
+	public static int iScatter(String sendString, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.iScatter(sendString, sendCount, receiveCount, root);
+	}
+
+	public static int iGather(String sendString, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.iGather(sendString, sendCount, receiveCount, root);
+	}
+
+	public static int iBroadcast(String sendString, int count, int root) {
+		return parallelism.iBroadcast(sendString, count, root);
+	}
+
+	public static int iAllReduce(String sendString, String operation) {
+		return parallelism.iAllReduce(sendString, operation);
+	}
+
+	// A barrier that does not block, e.g. to signal that a rank is done:
+	public static int iBarrier() {
+		return parallelism.iBarrier();
+	}
+
+	public static boolean test(int handle) {
+		return parallelism.test(handle);
+	}
+
+	// Named waitFor as wait would clash with Object.wait():
+	public static String waitFor(int handle) {
+		return parallelism.waitFor(handle);
+	}
+
+	public static int waitAll() {
+		return parallelism.waitAll();
+	}
+
+	// Dynamic work distribution instead of dividing the items beforehand, each
+	// rank asks for the next item until -1 is returned:
+	public static int queueInitialise(int numberOfItems, int chunkSize) {
+		return parallelism.queueInitialise(numberOfItems, chunkSize);
+	}
+
+	public static int nextItem() {
+		return parallelism.nextItem();
+	}
+
+	// The items of this node when the total number of items is divided by a
+	// schedule: "block", "cyclic" or "block-cyclic" (blocks of blockSize items
+	// dealt to the nodes in turn):
+	public static String getRange(int total, String schedule) {
+		return getRange(total, schedule, 1);
+	}
+
+	public static String getRange(int total, String schedule, int blockSize) {
+		PartitionSchedule partitionSchedule;
+		try {
+			partitionSchedule = PartitionSchedule.fromName(schedule);
+		}
+		catch (IllegalArgumentException | NullPointerException exc) {
+			logger.error("Unknown partition schedule: {} ", schedule);
+			return "";
+		}
+		return converter.convertArrayToCommaSeparatedString(getRange(total,
+			partitionSchedule, blockSize));
+	}
+
+	// The items of this node when they are divided into contiguous parts of
+	// about the same cost, e.g. the sizes of the files to process:
+	public static String getWeightedRange(String costs) {
+		if (costs == null || costs.isEmpty()) {
+			return "";
+		}
+		return converter.convertArrayToCommaSeparatedString(getWeightedRange(
+			converter.convertCommaSeparatedStringToArray(costs)));
+	}
+
+	// Typed collectives for scripts that call this class directly (e.g. Jython),
+	// the elements are transferred without converting them to text:
+
+	public static DoubleBuffer newDoubleBuffer(int size) {
+		return parallelism.newDoubleBuffer(size);
+	}
+
+	public static double[] scatterEqually(double[] sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.scatterEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static float[] scatterEqually(float[] sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.scatterEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static int[] scatterEqually(int[] sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.scatterEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static short[] scatterEqually(short[] sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.scatterEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static byte[] scatterEqually(byte[] sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.scatterEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static DoubleBuffer scatterEqually(DoubleBuffer sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.scatterEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static double[] scatter(double[] sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.scatter(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static float[] scatter(float[] sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.scatter(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static int[] scatter(int[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		return parallelism.scatter(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static short[] scatter(short[] sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.scatter(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static byte[] scatter(byte[] sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.scatter(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static DoubleBuffer scatter(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.scatter(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static double[] gather(double[] sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.gather(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static float[] gather(float[] sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.gather(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static int[] gather(int[] sendBuffer, int sendCount, int receiveCount,
+		int root)
+	{
+		return parallelism.gather(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static short[] gather(short[] sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.gather(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static byte[] gather(byte[] sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.gather(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static DoubleBuffer gather(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.gather(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static double[] gatherEqually(double[] sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.gatherEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static float[] gatherEqually(float[] sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.gatherEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static int[] gatherEqually(int[] sendBuffer, int totalSendBufferLength,
+		int root)
+	{
+		return parallelism.gatherEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static short[] gatherEqually(short[] sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.gatherEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static byte[] gatherEqually(byte[] sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.gatherEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static DoubleBuffer gatherEqually(DoubleBuffer sendBuffer,
+		int totalSendBufferLength, int root)
+	{
+		return parallelism.gatherEqually(sendBuffer, totalSendBufferLength, root);
+	}
+
+	public static double[] broadcast(double[] buffer, int count, int root) {
+		return parallelism.broadcast(buffer, count, root);
+	}
+
+	public static int[] broadcast(int[] buffer, int count, int root) {
+		return parallelism.broadcast(buffer, count, root);
+	}
+
+	public static double[] reduce(double[] sendBuffer,
+		ReductionOperation operation, int root)
+	{
+		return parallelism.reduce(sendBuffer, operation, root);
+	}
+
+	public static int[] reduce(int[] sendBuffer, ReductionOperation operation,
+		int root)
+	{
+		return parallelism.reduce(sendBuffer, operation, root);
+	}
+
+	public static double[] allReduce(double[] sendBuffer,
+		ReductionOperation operation)
+	{
+		return parallelism.allReduce(sendBuffer, operation);
+	}
+
+	public static int[] allReduce(int[] sendBuffer,
+		ReductionOperation operation)
+	{
+		return parallelism.allReduce(sendBuffer, operation);
+	}
+
+	public static double[] allGather(double[] sendBuffer, int sendCount) {
+		return parallelism.allGather(sendBuffer, sendCount);
+	}
+
+	public static int[] allGather(int[] sendBuffer, int sendCount) {
+		return parallelism.allGather(sendBuffer, sendCount);
+	}
+
+	public static double[] allGatherv(double[] sendBuffer, int sendCount) {
+		return parallelism.allGatherv(sendBuffer, sendCount);
+	}
+
+	public static int[] allGatherv(int[] sendBuffer, int sendCount) {
+		return parallelism.allGatherv(sendBuffer, sendCount);
+	}
+
+	public static double[] allToAll(double[] sendBuffer, int sendCount) {
+		return parallelism.allToAll(sendBuffer, sendCount);
+	}
+
+	public static int[] allToAll(int[] sendBuffer, int sendCount) {
+		return parallelism.allToAll(sendBuffer, sendCount);
+	}
+
+	// Segmented collectives, the parts travel in chunks of at most chunkSize
+	// elements, e.g. for images too large for one collective:
+
+	public static double[] scatterChunked(double[] sendBuffer, int receiveCount,
+		int chunkSize, int root)
+	{
+		return parallelism.scatterChunked(sendBuffer, receiveCount, chunkSize,
+			root);
+	}
+
+	public static double[] gatherChunked(double[] sendBuffer, int chunkSize,
+		int root)
+	{
+		return parallelism.gatherChunked(sendBuffer, chunkSize, root);
+	}
+
+	public static int scatterStreaming(Parallelism.ChunkProducer producer,
+		long receiveCount, int chunkSize, Parallelism.ChunkConsumer consumer,
+		int root)
+	{
+		return parallelism.scatterStreaming(producer, receiveCount, chunkSize,
+			consumer, root);
+	}
+
+	public static int gatherStreaming(Parallelism.ChunkProducer producer,
+		long sendCount, int chunkSize, Parallelism.ChunkConsumer consumer,
+		int root)
+	{
+		return parallelism.gatherStreaming(producer, sendCount, chunkSize,
+			consumer, root);
+	}
+
+	public static int iScatter(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.iScatter(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static int iGather(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root)
+	{
+		return parallelism.iGather(sendBuffer, sendCount, receiveCount, root);
+	}
+
+	public static int iBroadcast(DoubleBuffer buffer, int count, int root) {
+		return parallelism.iBroadcast(buffer, count, root);
+	}
+
+	public static int iAllReduce(DoubleBuffer sendBuffer,
+		ReductionOperation operation)
+	{
+		return parallelism.iAllReduce(sendBuffer, operation);
+	}
+
+	public static DoubleBuffer waitForBuffer(int handle) {
+		return parallelism.waitForBuffer(handle);
+	}
+
+	public static int[] getRange(int total, PartitionSchedule schedule,
+		int blockSize)
+	{
+		return Partitioner.items(total, parallelism.getRank(), parallelism
+			.getSize(), schedule, blockSize);
+	}
+
+	public static int[] getWeightedRange(double[] costs) {
+		return Partitioner.weightedItems(costs, parallelism.getRank(), parallelism
+			.getSize());
+	}
+
 	private ParallelMacro() {
 		// Empty private constructor to hide default public one.
 	}
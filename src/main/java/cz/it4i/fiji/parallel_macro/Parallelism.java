@@ -1,6 +1,7 @@
-
 package cz.it4i.fiji.parallel_macro;
 
+import java.nio.DoubleBuffer;
+
 public interface Parallelism {
 
 	public int initialise();
@@ -24,4 +25,242 @@ public interface Parallelism {
 
 	public String gatherEqually(String sendString, int totalSendBufferLength,
 		int root);
+
+	// Typed collectives, they transfer the elements without any conversion to
+	// text. The send buffer of non-root ranks may be null or empty and
+	// non-root ranks receive an empty buffer from gather:
+
+	public DoubleBuffer newDoubleBuffer(int size);
+
+	public double[] scatterEqually(double[] sendBuffer, int totalSendBufferLength,
+		int root);
+
+	public float[] scatterEqually(float[] sendBuffer, int totalSendBufferLength,
+		int root);
+
+	public int[] scatterEqually(int[] sendBuffer, int totalSendBufferLength,
+		int root);
+
+	public short[] scatterEqually(short[] sendBuffer, int totalSendBufferLength,
+		int root);
+
+	public byte[] scatterEqually(byte[] sendBuffer, int totalSendBufferLength,
+		int root);
+
+	public DoubleBuffer scatterEqually(DoubleBuffer sendBuffer,
+		int totalSendBufferLength, int root);
+
+	public double[] scatter(double[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public float[] scatter(float[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public int[] scatter(int[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public short[] scatter(short[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public byte[] scatter(byte[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public DoubleBuffer scatter(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root);
+
+	public double[] gather(double[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public float[] gather(float[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public int[] gather(int[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public short[] gather(short[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public byte[] gather(byte[] sendBuffer, int sendCount, int receiveCount,
+		int root);
+
+	public DoubleBuffer gather(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root);
+
+	public double[] gatherEqually(double[] sendBuffer,
+		int totalReceiveBufferLength, int root);
+
+	public float[] gatherEqually(float[] sendBuffer, int totalReceiveBufferLength,
+		int root);
+
+	public int[] gatherEqually(int[] sendBuffer, int totalReceiveBufferLength,
+		int root);
+
+	public short[] gatherEqually(short[] sendBuffer, int totalReceiveBufferLength,
+		int root);
+
+	public byte[] gatherEqually(byte[] sendBuffer, int totalReceiveBufferLength,
+		int root);
+
+	public DoubleBuffer gatherEqually(DoubleBuffer sendBuffer,
+		int totalReceiveBufferLength, int root);
+
+	// Collectives in which every rank takes part. The reductions combine the
+	// elements of all ranks position by position, only the root receives the
+	// result of reduce:
+
+	public String broadcast(String sendString, int count, int root);
+
+	public String reduce(String sendString, String operation, int root);
+
+	public String allReduce(String sendString, String operation);
+
+	public String allGather(String sendString, int sendCount);
+
+	public String allGatherv(String sendString, int sendCount);
+
+	public String allToAll(String sendString, int sendCount);
+
+	public double[] broadcast(double[] buffer, int count, int root);
+
+	public int[] broadcast(int[] buffer, int count, int root);
+
+	public double[] reduce(double[] sendBuffer, ReductionOperation operation,
+		int root);
+
+	public int[] reduce(int[] sendBuffer, ReductionOperation operation,
+		int root);
+
+	public double[] allReduce(double[] sendBuffer,
+		ReductionOperation operation);
+
+	public int[] allReduce(int[] sendBuffer, ReductionOperation operation);
+
+	public double[] allGather(double[] sendBuffer, int sendCount);
+
+	public int[] allGather(int[] sendBuffer, int sendCount);
+
+	public double[] allGatherv(double[] sendBuffer, int sendCount);
+
+	public int[] allGatherv(int[] sendBuffer, int sendCount);
+
+	public double[] allToAll(double[] sendBuffer, int sendCount);
+
+	public int[] allToAll(int[] sendBuffer, int sendCount);
+
+	// Collectives of variable length, the lengths are exchanged first so only
+	// the sender has to know them. Scatter hands part i of the root to rank i,
+	// gather returns the parts of all ranks in rank order on the root (and an
+	// empty array elsewhere):
+
+	public byte[] scatterBytes(byte[] sendBuffer, int[] sendCounts, int root);
+
+	public byte[] gatherBytes(byte[] sendBuffer, int root);
+
+	public byte[] broadcastBytes(byte[] buffer, int root);
+
+	// The same for strings, e.g. a list of files made once by the root. Scatter
+	// gives every rank a balanced block of the strings, scatterv gives rank i
+	// the next sendCounts[i] strings:
+
+	public String[] scatterStrings(String[] strings, int root);
+
+	public String[] scattervStrings(String[] strings, int[] sendCounts,
+		int root);
+
+	public String[] gatherStrings(String[] strings, int root);
+
+	public String[] broadcastStrings(String[] strings, int root);
+
+	// Non-blocking collectives, each one starts a transfer and returns a handle
+	// to it. The buffers stay referenced until the result is collected with
+	// waitFor, so the rank can keep computing in the meantime:
+
+	public int iScatter(String sendString, int sendCount, int receiveCount,
+		int root);
+
+	public int iGather(String sendString, int sendCount, int receiveCount,
+		int root);
+
+	public int iBroadcast(String sendString, int count, int root);
+
+	public int iAllReduce(String sendString, String operation);
+
+	public int iScatter(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root);
+
+	public int iGather(DoubleBuffer sendBuffer, int sendCount,
+		int receiveCount, int root);
+
+	public int iBroadcast(DoubleBuffer buffer, int count, int root);
+
+	public int iAllReduce(DoubleBuffer sendBuffer,
+		ReductionOperation operation);
+
+	public int iBarrier();
+
+	// Whether the transfer of the handle has completed:
+	public boolean test(int handle);
+
+	// Waits for the transfer and returns its result, the handle can not be
+	// used afterwards:
+	public String waitFor(int handle);
+
+	public DoubleBuffer waitForBuffer(int handle);
+
+	// Waits for all the started transfers, their results are kept until they
+	// are collected with waitFor, the transfers without one are forgotten:
+	public int waitAll();
+
+	// Segmented collectives for payloads too large for one collective or for
+	// the memory of the root. The part of every rank travels in chunks of at
+	// most chunkSize elements and the next chunk is in flight while the last
+	// one is consumed, so the root holds two chunks of every rank at most. The
+	// streaming variants take each chunk from a producer and hand it to a
+	// consumer, with the rank whose part it is and its offset in that part:
+
+	public double[] scatterChunked(double[] sendBuffer, int receiveCount,
+		int chunkSize, int root);
+
+	public double[] gatherChunked(double[] sendBuffer, int chunkSize, int root);
+
+	// The root produces the chunks of all the ranks, every rank consumes its
+	// own:
+	public int scatterStreaming(ChunkProducer producer, long receiveCount,
+		int chunkSize, ChunkConsumer consumer, int root);
+
+	// Every rank produces its own chunks, the root consumes those of all the
+	// ranks:
+	public int gatherStreaming(ChunkProducer producer, long sendCount,
+		int chunkSize, ChunkConsumer consumer, int root);
+
+	public interface ChunkProducer {
+
+		// Fills the remaining elements of the chunk:
+		void produce(int rank, long offset, DoubleBuffer chunk);
+	}
+
+	public interface ChunkConsumer {
+
+		// The chunk is only valid during the call:
+		void consume(int rank, long offset, DoubleBuffer chunk);
+	}
+
+	// Dynamic work distribution, the ranks take the items of a shared queue in
+	// chunks until it is empty. Every rank must initialise the queue, next item
+	// returns -1 once there are no more items:
+
+	public int queueInitialise(int numberOfItems, int chunkSize);
+
+	public int nextItem();
+
+	// A board of numbers on rank 0 that every rank writes without rank 0 taking
+	// part, e.g. the progress of all the ranks. Every rank must initialise it,
+	// all the values start at -1. Reading returns a copy of the values on rank 0
+	// (null elsewhere) and may be done by another thread than the writes:
+
+	public int boardInitialise(int length);
+
+	public int boardPut(int index, long value);
+
+	public long[] boardRead();
 }
@@ -0,0 +1,24 @@
+package cz.it4i.fiji.parallel_macro;
+
+// Creates the Parallelism backend selected by the "backend" setting: "mpi"
+// (the default), "shared" for ranks that are threads of this JVM or "socket"
+// for ranks that are JVMs connected by TCP sockets. The MPI classes are only
+// loaded when the MPI backend is selected.
+public final class ParallelismFactory {
+
+	public static Parallelism create() {
+		String backend = Configuration.getString("backend", "mpi");
+		if (backend.equalsIgnoreCase("shared")) {
+			return new SharedMemoryParallelism((int) Configuration.getLong(
+				"shared.ranks", Runtime.getRuntime().availableProcessors()));
+		}
+		if (backend.equalsIgnoreCase("socket")) {
+			return new SocketParallelism();
+		}
+		return new MPIParallelism();
+	}
+
+	private ParallelismFactory() {
+		// Empty private constructor to hide default public one.
+	}
+}
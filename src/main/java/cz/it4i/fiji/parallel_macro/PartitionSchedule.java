@@ -0,0 +1,16 @@
+package cz.it4i.fiji.parallel_macro;
+
+// How the items are divided among the ranks by the Partitioner:
+public enum PartitionSchedule {
+	// One contiguous block per rank, the block sizes differ by one at most.
+	BLOCK,
+	// Item i goes to rank i % size.
+	CYCLIC,
+	// Blocks of a given number of items are dealt to the ranks in turn.
+	BLOCK_CYCLIC;
+
+	// Macros name the schedule with a string such as "block" or "block-cyclic":
+	public static PartitionSchedule fromName(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
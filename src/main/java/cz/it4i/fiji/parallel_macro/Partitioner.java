@@ -0,0 +1,163 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+// Divides a number of items among the ranks. Every rank computes the same
+// partition on its own, so no communication is needed.
+public final class Partitioner {
+
+	// Number of items of a rank in balanced blocks, the first total % size
+	// ranks get one item more than the others:
+	public static int blockLength(int total, int rank, int size) {
+		int length = total / size;
+		if (rank < total % size) {
+			length++;
+		}
+		return length;
+	}
+
+	// First item of a rank in balanced blocks:
+	public static int blockStart(int total, int rank, int size) {
+		return rank * (total / size) + Math.min(rank, total % size);
+	}
+
+	// The items of a rank in the order it should process them:
+	public static int[] items(int total, int rank, int size,
+		PartitionSchedule schedule, int blockSize)
+	{
+		switch (schedule) {
+			case BLOCK:
+				return range(blockStart(total, rank, size), blockLength(total, rank,
+					size));
+			case CYCLIC:
+				return blockCyclicItems(total, rank, size, 1);
+			default:
+				return blockCyclicItems(total, rank, size, Math.max(blockSize, 1));
+		}
+	}
+
+	// Contiguous parts of about the same total cost, e.g. with file sizes as
+	// the costs. An item belongs to the rank in whose share the middle of its
+	// cost falls:
+	public static int[] weightedItems(double[] costs, int rank, int size) {
+		double totalCost = 0;
+		for (double cost : costs) {
+			totalCost += Math.max(cost, 0);
+		}
+		if (totalCost <= 0) {
+			return items(costs.length, rank, size, PartitionSchedule.BLOCK, 1);
+		}
+
+		int start = -1;
+		int end = -1;
+		double costBefore = 0;
+		for (int item = 0; item < costs.length; item++) {
+			double cost = Math.max(costs[item], 0);
+			int owner = (int) ((costBefore + cost / 2) / totalCost * size);
+			owner = Math.min(owner, size - 1);
+			if (owner == rank && start < 0) {
+				start = item;
+			}
+			if (owner > rank) {
+				break;
+			}
+			if (owner == rank) {
+				end = item + 1;
+			}
+			costBefore += cost;
+		}
+		if (start < 0) {
+			return new int[0];
+		}
+		return range(start, end - start);
+	}
+
+	// The owner of each item when the items are not contiguous, longest
+	// processing time first: the items are taken from the most to the least
+	// costly and each one goes to the rank with the least cost so far. The
+	// most loaded rank gets at most 4/3 of the optimum:
+	public static int[] longestProcessingTimeOwners(double[] costs, int size) {
+		Integer[] order = new Integer[costs.length];
+		for (int item = 0; item < costs.length; item++) {
+			order[item] = item;
+		}
+		// Stable, so items of equal cost keep their order:
+		Arrays.sort(order, (first, second) -> Double.compare(Math.max(
+			costs[second], 0), Math.max(costs[first], 0)));
+
+		// Ties between equally loaded ranks go to the lower rank:
+		double[] loads = new double[size];
+		PriorityQueue<Integer> ranks = new PriorityQueue<>(size, (first,
+			second) -> loads[first] != loads[second] ? Double.compare(loads[first],
+				loads[second]) : Integer.compare(first, second));
+		for (int rank = 0; rank < size; rank++) {
+			ranks.add(rank);
+		}
+
+		int[] owners = new int[costs.length];
+		for (int item : order) {
+			int rank = ranks.poll();
+			owners[item] = rank;
+			loads[rank] += Math.max(costs[item], 0);
+			ranks.add(rank);
+		}
+		return owners;
+	}
+
+	// The cost of the most loaded rank divided by the mean cost per rank, 1
+	// for a perfect balance:
+	public static double imbalance(double[] costs, int[] owners, int size) {
+		double[] loads = new double[size];
+		double totalCost = 0;
+		for (int item = 0; item < costs.length; item++) {
+			loads[owners[item]] += Math.max(costs[item], 0);
+			totalCost += Math.max(costs[item], 0);
+		}
+		if (totalCost <= 0) {
+			return 1;
+		}
+		double maximumLoad = 0;
+		for (double load : loads) {
+			maximumLoad = Math.max(maximumLoad, load);
+		}
+		return maximumLoad / (totalCost / size);
+	}
+
+	private static int[] blockCyclicItems(int total, int rank, int size,
+		int blockSize)
+	{
+		// Count the items first so the array is allocated only once:
+		int stride = blockSize * size;
+		int count = 0;
+		for (int blockStart = rank * blockSize; blockStart < total;
+			blockStart += stride)
+		{
+			count += Math.min(blockSize, total - blockStart);
+		}
+
+		int[] items = new int[count];
+		int index = 0;
+		for (int blockStart = rank * blockSize; blockStart < total;
+			blockStart += stride)
+		{
+			int blockEnd = Math.min(blockStart + blockSize, total);
+			for (int item = blockStart; item < blockEnd; item++) {
+				items[index++] = item;
+			}
+		}
+		return items;
+	}
+
+	private static int[] range(int start, int length) {
+		int[] items = new int[length];
+		for (int index = 0; index < length; index++) {
+			items[index] = start + index;
+		}
+		return items;
+	}
+
+	private Partitioner() {
+		// Empty private constructor to hide default public one.
+	}
+}
@@ -0,0 +1,181 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+// Helpers for the buffers of the collectives, a buffer is either a primitive
+// array or a java.nio buffer of the same element type:
+public final class PrimitiveBuffers {
+
+	public static Object allocate(Object template, int length) {
+		if (template instanceof double[]) {
+			return new double[length];
+		}
+		if (template instanceof float[]) {
+			return new float[length];
+		}
+		if (template instanceof int[]) {
+			return new int[length];
+		}
+		if (template instanceof short[]) {
+			return new short[length];
+		}
+		if (template instanceof byte[]) {
+			return new byte[length];
+		}
+		if (template instanceof DoubleBuffer) {
+			return DoubleBuffer.allocate(length);
+		}
+		if (template instanceof FloatBuffer) {
+			return FloatBuffer.allocate(length);
+		}
+		if (template instanceof IntBuffer) {
+			return IntBuffer.allocate(length);
+		}
+		if (template instanceof ShortBuffer) {
+			return ShortBuffer.allocate(length);
+		}
+		if (template instanceof ByteBuffer) {
+			return ByteBuffer.allocate(length);
+		}
+		throw unsupported(template);
+	}
+
+	// A java.nio view of a buffer, arrays are wrapped without copying:
+	public static Buffer asBuffer(Object buffer) {
+		if (buffer instanceof Buffer) {
+			return (Buffer) buffer;
+		}
+		if (buffer instanceof double[]) {
+			return DoubleBuffer.wrap((double[]) buffer);
+		}
+		if (buffer instanceof float[]) {
+			return FloatBuffer.wrap((float[]) buffer);
+		}
+		if (buffer instanceof int[]) {
+			return IntBuffer.wrap((int[]) buffer);
+		}
+		if (buffer instanceof short[]) {
+			return ShortBuffer.wrap((short[]) buffer);
+		}
+		if (buffer instanceof byte[]) {
+			return ByteBuffer.wrap((byte[]) buffer);
+		}
+		throw unsupported(buffer);
+	}
+
+	// Number of bytes of one element:
+	public static int elementSize(Object buffer) {
+		if (buffer instanceof double[] || buffer instanceof DoubleBuffer) {
+			return Double.BYTES;
+		}
+		if (buffer instanceof float[] || buffer instanceof FloatBuffer) {
+			return Float.BYTES;
+		}
+		if (buffer instanceof int[] || buffer instanceof IntBuffer) {
+			return Integer.BYTES;
+		}
+		if (buffer instanceof short[] || buffer instanceof ShortBuffer) {
+			return Short.BYTES;
+		}
+		if (buffer instanceof byte[] || buffer instanceof ByteBuffer) {
+			return Byte.BYTES;
+		}
+		throw unsupported(buffer);
+	}
+
+	// A view of the remaining bytes with the element type of the template, used
+	// to move the elements in and out of messages:
+	public static Buffer view(ByteBuffer bytes, Object template) {
+		if (template instanceof double[] || template instanceof DoubleBuffer) {
+			return bytes.asDoubleBuffer();
+		}
+		if (template instanceof float[] || template instanceof FloatBuffer) {
+			return bytes.asFloatBuffer();
+		}
+		if (template instanceof int[] || template instanceof IntBuffer) {
+			return bytes.asIntBuffer();
+		}
+		if (template instanceof short[] || template instanceof ShortBuffer) {
+			return bytes.asShortBuffer();
+		}
+		if (template instanceof byte[] || template instanceof ByteBuffer) {
+			return bytes.slice();
+		}
+		throw unsupported(template);
+	}
+
+	// Copies elements between two buffers of the same element type, the
+	// positions and limits of the buffers are not changed:
+	public static void copy(Object source, int sourceOffset, Object destination,
+		int destinationOffset, int length)
+	{
+		if (length <= 0) {
+			return;
+		}
+		if (source.getClass().isArray() && destination.getClass().isArray()) {
+			System.arraycopy(source, sourceOffset, destination, destinationOffset,
+				length);
+			return;
+		}
+		Buffer from = slice(asBuffer(source), sourceOffset, length);
+		Buffer to = slice(asBuffer(destination), destinationOffset, length);
+		if (from instanceof DoubleBuffer) {
+			((DoubleBuffer) to).put((DoubleBuffer) from);
+		}
+		else if (from instanceof FloatBuffer) {
+			((FloatBuffer) to).put((FloatBuffer) from);
+		}
+		else if (from instanceof IntBuffer) {
+			((IntBuffer) to).put((IntBuffer) from);
+		}
+		else if (from instanceof ShortBuffer) {
+			((ShortBuffer) to).put((ShortBuffer) from);
+		}
+		else if (from instanceof ByteBuffer) {
+			((ByteBuffer) to).put((ByteBuffer) from);
+		}
+		else {
+			throw unsupported(source);
+		}
+	}
+
+	// A duplicate that covers only the given elements:
+	private static Buffer slice(Buffer buffer, int offset, int length) {
+		Buffer duplicate;
+		if (buffer instanceof DoubleBuffer) {
+			duplicate = ((DoubleBuffer) buffer).duplicate();
+		}
+		else if (buffer instanceof FloatBuffer) {
+			duplicate = ((FloatBuffer) buffer).duplicate();
+		}
+		else if (buffer instanceof IntBuffer) {
+			duplicate = ((IntBuffer) buffer).duplicate();
+		}
+		else if (buffer instanceof ShortBuffer) {
+			duplicate = ((ShortBuffer) buffer).duplicate();
+		}
+		else if (buffer instanceof ByteBuffer) {
+			duplicate = ((ByteBuffer) buffer).duplicate();
+		}
+		else {
+			throw unsupported(buffer);
+		}
+		duplicate.limit(offset + length);
+		duplicate.position(offset);
+		return duplicate;
+	}
+
+	static IllegalArgumentException unsupported(Object buffer) {
+		return new IllegalArgumentException("Unsupported buffer type: " +
+			(buffer == null ? "null" : buffer.getClass().getName()));
+	}
+
+	private PrimitiveBuffers() {
+		// Empty private constructor to hide default public one.
+	}
+}
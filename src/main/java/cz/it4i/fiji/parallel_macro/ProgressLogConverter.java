@@ -0,0 +1,230 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+// Converts a binary progress log to the text or the XML progress log, so the
+// existing tools can read it. With --follow the binary log is tailed until
+// all its tasks are finished and the output is updated after every poll, the
+// text log by appending the new lines, the XML log by replacing it:
+//
+// java -cp <class path> cz.it4i.fiji.parallel_macro.ProgressLogConverter
+// [--follow] text|xml progress_<rank>.bplog [progress_<rank>.plog]
+public final class ProgressLogConverter {
+
+	// Time between two polls of a followed log in milliseconds:
+	private static final long POLL_INTERVAL = Configuration.getLong(
+		"progress.flush_interval", 1000);
+
+	// The time-stamp of the text log is zero padded, so it can be overwritten in
+	// place like that of the text progress log:
+	private static final int TIMESTAMP_DIGITS = 13;
+
+	public enum Format {
+			TEXT, XML
+	}
+
+	public static void main(String[] args) throws IOException,
+		InterruptedException
+	{
+		int first = args.length > 0 && args[0].equals("--follow") ? 1 : 0;
+		if (args.length - first < 2) {
+			System.err.println("Usage: ProgressLogConverter [--follow] text|xml " +
+				"<binary log> [<output log>]");
+			System.exit(1);
+		}
+		Format format = Format.valueOf(args[first].toUpperCase());
+		Path input = Paths.get(args[first + 1]);
+		Path output = args.length - first > 2 ? Paths.get(args[first + 2])
+			: Paths.get(input.toString().replaceFirst("\\.bplog$", "") +
+				ProgressLogging.LOG_FILE_PROGRESS_POSTFIX);
+		convert(input, output, format, first == 1);
+	}
+
+	public static void convert(Path input, Path output, Format format,
+		boolean follow) throws IOException, InterruptedException
+	{
+		try (BinaryProgressReader reader = new BinaryProgressReader(input)) {
+			if (format == Format.TEXT) {
+				try (FileChannel channel = FileChannel.open(output,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE))
+				{
+					TextExport export = new TextExport(channel);
+					do {
+						export.poll(reader);
+					}
+					while (follow && !reader.allTasksFinished() && pause());
+				}
+			}
+			else {
+				do {
+					if (reader.poll(null) > 0 || !Files.exists(output) && reader
+						.hasHeader())
+					{
+						writeXml(reader, output);
+					}
+				}
+				while (follow && !reader.allTasksFinished() && pause());
+			}
+		}
+	}
+
+	private static boolean pause() throws InterruptedException {
+		Thread.sleep(POLL_INTERVAL);
+		return true;
+	}
+
+	// The same document as the XML progress log writes:
+	static void writeXml(BinaryProgressReader reader, Path output)
+		throws IOException
+	{
+		Path temporaryFilePath = Paths.get(output.toString() + ".tmp");
+		try {
+			Document document = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().newDocument();
+			Element rootElement = document.createElement("job");
+			document.appendChild(rootElement);
+
+			Element nodesElement = document.createElement("nodes");
+			nodesElement.setTextContent(String.valueOf(reader.getSize()));
+			rootElement.appendChild(nodesElement);
+
+			List<String> tasks = reader.getTasks();
+			for (int counter = 0; counter < tasks.size(); counter++) {
+				Element taskElement = document.createElement("task");
+				taskElement.setAttribute("id", String.valueOf(counter));
+				Element descriptionElement = document.createElement("description");
+				descriptionElement.setTextContent(tasks.get(counter));
+				taskElement.appendChild(descriptionElement);
+				if (reader.getProgress(counter) >= 0) {
+					Element progressElement = document.createElement("progress");
+					progressElement.setTextContent(String.valueOf(reader.getProgress(
+						counter)));
+					taskElement.appendChild(progressElement);
+				}
+				if (reader.getDuration(counter) >= 0) {
+					Element timingElement = document.createElement("time");
+					timingElement.setTextContent(String.valueOf(reader.getDuration(
+						counter)));
+					taskElement.appendChild(timingElement);
+				}
+				rootElement.appendChild(taskElement);
+			}
+
+			Element lastUpdatedElement = document.createElement("lastUpdated");
+			lastUpdatedElement.setTextContent(Long.toString(reader
+				.getLastUpdated()));
+			rootElement.appendChild(lastUpdatedElement);
+
+			Transformer transformer = TransformerFactory.newInstance()
+				.newTransformer();
+			transformer.transform(new DOMSource(document), new StreamResult(
+				temporaryFilePath.toFile()));
+		}
+		catch (Exception exc) {
+			throw new IOException("Can not write the XML progress log: " + exc
+				.getMessage(), exc);
+		}
+		try {
+			Files.move(temporaryFilePath, output, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException exc) {
+			Files.move(temporaryFilePath, output,
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	// Appends the lines of the new records to the text progress log:
+	private static class TextExport {
+
+		private final FileChannel channel;
+		private long timestampOffset = -1;
+		private long appendPosition = 0;
+		private StringBuilder lines = new StringBuilder();
+
+		private TextExport(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		private void poll(BinaryProgressReader reader) throws IOException {
+			boolean headerWasRead = reader.hasHeader();
+			reader.poll((taskId, progress, duration) -> {
+				lines.append(taskId).append(',').append(progress);
+				if (duration >= 0) {
+					lines.append(',').append(duration);
+				}
+				lines.append(System.lineSeparator());
+			});
+			if (!reader.hasHeader()) {
+				return;
+			}
+			if (!headerWasRead) {
+				writeHeader(reader);
+			}
+			if (lines.length() > 0) {
+				appendPosition += write(lines.toString(), appendPosition);
+				lines.setLength(0);
+			}
+			write(zeroPadded(reader.getLastUpdated()), timestampOffset);
+		}
+
+		private void writeHeader(BinaryProgressReader reader) throws IOException {
+			String nodes = reader.getSize() + System.lineSeparator();
+			StringBuilder header = new StringBuilder(nodes);
+			header.append(zeroPadded(reader.getLastUpdated())).append(System
+				.lineSeparator());
+			List<String> tasks = reader.getTasks();
+			for (int counter = 0; counter < tasks.size(); counter++) {
+				header.append(counter).append(',').append(tasks.get(counter)).append(
+					System.lineSeparator());
+			}
+			timestampOffset = nodes.getBytes(StandardCharsets.UTF_8).length;
+
+			// The header goes before the lines of the records of the same poll:
+			lines.insert(0, header);
+		}
+
+		private int write(String text, long position) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(
+				StandardCharsets.UTF_8));
+			int written = 0;
+			while (buffer.hasRemaining()) {
+				written += channel.write(buffer, position + written);
+			}
+			return written;
+		}
+
+		private static String zeroPadded(long timestamp) {
+			String digits = Long.toString(timestamp);
+			StringBuilder padded = new StringBuilder(TIMESTAMP_DIGITS);
+			while (padded.length() + digits.length() < TIMESTAMP_DIGITS) {
+				padded.append('0');
+			}
+			return padded.append(digits).toString();
+		}
+	}
+
+	private ProgressLogConverter() {
+		// Empty private constructor to hide default public one.
+	}
+}
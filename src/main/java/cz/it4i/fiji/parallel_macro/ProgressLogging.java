@@ -12,5 +12,16 @@ public interface ProgressLogging {
 
 	public int reportProgress(int taskId, int progress, int rank);
 
+	// The same for a report that was made at reportNanos (System.nanoTime()),
+	// e.g. one that is written later by a background thread:
+	public default int reportProgress(int taskId, int progress, int rank,
+		long reportNanos)
+	{
+		return reportProgress(taskId, progress, rank);
+	}
+
 	public void enableTiming();
+
+	// Writes any progress that is still pending and releases the log file:
+	public void finalise();
 }
@@ -0,0 +1,42 @@
+package cz.it4i.fiji.parallel_macro;
+
+// Operations that combine the elements of all ranks in reduce and allReduce:
+public enum ReductionOperation {
+	SUM, MIN, MAX, PRODUCT;
+
+	// Combination of two elements, for backends that reduce by themselves:
+	public double combine(double first, double second) {
+		switch (this) {
+			case SUM:
+				return first + second;
+			case MIN:
+				return Math.min(first, second);
+			case MAX:
+				return Math.max(first, second);
+			default:
+				return first * second;
+		}
+	}
+
+	public int combine(int first, int second) {
+		switch (this) {
+			case SUM:
+				return first + second;
+			case MIN:
+				return Math.min(first, second);
+			case MAX:
+				return Math.max(first, second);
+			default:
+				return first * second;
+		}
+	}
+
+	// Macros name the operation with a string such as "sum" or "max":
+	public static ReductionOperation fromName(String name) {
+		String operation = name.trim().toUpperCase();
+		if (operation.equals("PROD")) {
+			return PRODUCT;
+		}
+		return valueOf(operation);
+	}
+}
@@ -0,0 +1,70 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+// Runs a job on the ranks of the shared memory backend, "shared.ranks"
+// threads of this JVM, without OpenMPI. The main method of the job runs on
+// every rank and uses ParallelMacro like the ranks of the other backends:
+//
+// java -cp <class path> cz.it4i.fiji.parallel_macro.SharedMemoryLauncher
+// <main class> [arguments]
+public final class SharedMemoryLauncher {
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: SharedMemoryLauncher <main class> " +
+				"[arguments]");
+			System.exit(2);
+		}
+		System.exit(launch(args[0], Arrays.copyOfRange(args, 1, args.length)));
+	}
+
+	// Runs the main class on every rank and returns 1 when a rank failed, or 0:
+	public static int launch(String mainClass, String... arguments) {
+		// Before ParallelMacro creates its backend:
+		System.setProperty("parallel_macro.backend", "shared");
+		Method main;
+		try {
+			main = Class.forName(mainClass).getMethod("main", String[].class);
+		}
+		catch (ClassNotFoundException | NoSuchMethodException exc) {
+			System.err.println("No main method: " + exc.getMessage());
+			return 2;
+		}
+		ParallelMacro.resetState();
+		try {
+			ParallelMacro.execute(() -> invoke(main, arguments));
+		}
+		catch (IllegalStateException exc) {
+			exc.printStackTrace();
+			return 1;
+		}
+		return 0;
+	}
+
+	private static void invoke(Method main, String[] arguments) {
+		try {
+			// Every rank gets a copy, the main method may change its arguments:
+			main.invoke(null, (Object) arguments.clone());
+		}
+		catch (InvocationTargetException exc) {
+			Throwable cause = exc.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+		catch (IllegalAccessException exc) {
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	private SharedMemoryLauncher() {
+		// Empty private constructor to hide default public one.
+	}
+}
@@ -0,0 +1,438 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Runs the ranks as threads of one JVM, e.g. on a single many-core node or in
+// the tests, without OpenMPI. The ranks are started with execute(), a thread
+// that was not started by it is a world of its own with a single rank.
+//
+// The collectives hand the buffers over directly: every rank publishes its
+// buffers, waits for the others and then copies straight from or into their
+// buffers. A second wait keeps the buffers untouched until everybody is done.
+public class SharedMemoryParallelism extends AbstractParallelism {
+
+	private Logger logger = LoggerFactory.getLogger(
+		SharedMemoryParallelism.class);
+
+	private final int size;
+
+	private final ThreadLocal<Rank> currentRank = new ThreadLocal<>();
+
+	private volatile AtomicLongArray lastBoard = null;
+
+	public SharedMemoryParallelism(int size) {
+		this.size = Math.max(size, 1);
+	}
+
+	// Runs the body on every rank, rank 0 runs on the calling thread. Returns
+	// when all the ranks have finished:
+	public void execute(Runnable body) {
+		World world = new World(size);
+		Throwable[] failure = { null };
+
+		Thread[] threads = new Thread[size];
+		for (int rank = 1; rank < size; rank++) {
+			Rank threadRank = new Rank(world, rank);
+			threads[rank] = new Thread(() -> runAs(threadRank, body, failure),
+				"parallel-macro-rank-" + rank);
+			threads[rank].start();
+		}
+
+		Rank previousRank = currentRank.get();
+		runAs(new Rank(world, 0), body, failure);
+		if (previousRank != null) {
+			currentRank.set(previousRank);
+		}
+
+		for (int rank = 1; rank < size; rank++) {
+			try {
+				threads[rank].join();
+			}
+			catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (failure[0] != null) {
+			throw new IllegalStateException("A rank failed: " + failure[0]
+				.getMessage(), failure[0]);
+		}
+	}
+
+	private void runAs(Rank rank, Runnable body, Throwable[] failure) {
+		currentRank.set(rank);
+		Metrics.setRank(rank.rank);
+		try {
+			body.run();
+		}
+		catch (RuntimeException | Error exc) {
+			synchronized (failure) {
+				if (failure[0] == null) {
+					failure[0] = exc;
+				}
+			}
+			rank.world.failed = true;
+		}
+		finally {
+			// Do not leave the other ranks waiting for this one:
+			rank.world.barrier.arriveAndDeregister();
+			currentRank.remove();
+		}
+	}
+
+	private Rank rank() {
+		Rank rank = currentRank.get();
+		if (rank == null) {
+			rank = new Rank(new World(1), 0);
+			currentRank.set(rank);
+		}
+		return rank;
+	}
+
+	@Override
+	protected RankState getRankState() {
+		return rank().state;
+	}
+
+	@Override
+	public int initialise() {
+		// The ranks exist once execute() has started them.
+		return 0;
+	}
+
+	@Override
+	public int finalise() {
+		return 0;
+	}
+
+	@Override
+	public int getRank() {
+		return rank().rank;
+	}
+
+	@Override
+	public int getSize() {
+		return rank().world.size;
+	}
+
+	@Override
+	public int barrier() {
+		return instrumented(Metrics.Operation.BARRIER, 0, 0, "Barrier",
+			() -> await(rank().world));
+	}
+
+	private int await(World world) {
+		world.barrier.arriveAndAwaitAdvance();
+		if (world.failed) {
+			logger.error("A rank has failed, the collective is incomplete.");
+			return -1;
+		}
+		return 0;
+	}
+
+	// Makes the buffers of this rank visible to the others and waits for them.
+	// Returns null when a rank has failed, its buffers may be stale or missing,
+	// so nothing is copied:
+	private World publish(Object sendBuffer, Object receiveBuffer) {
+		Rank rank = rank();
+		rank.world.sendBuffers[rank.rank] = sendBuffer;
+		rank.world.receiveBuffers[rank.rank] = receiveBuffer;
+		if (await(rank.world) != 0) {
+			return null;
+		}
+		return rank.world;
+	}
+
+	@Override
+	protected void scatterBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount, int root)
+	{
+		World world = publish(sendBuffer, receiveBuffer);
+		if (world == null) {
+			return;
+		}
+		PrimitiveBuffers.copy(world.sendBuffers[root], getRank() * sendCount,
+			receiveBuffer, 0, receiveCount);
+		await(world);
+	}
+
+	@Override
+	protected void scattervBuffer(Object sendBuffer, int[] sendCounts,
+		int[] displacements, Object receiveBuffer, int receiveCount, int root)
+	{
+		World world = publish(sendBuffer, receiveBuffer);
+		if (world == null) {
+			return;
+		}
+		PrimitiveBuffers.copy(world.sendBuffers[root], displacements[getRank()],
+			receiveBuffer, 0, Math.min(receiveCount, sendCounts[getRank()]));
+		await(world);
+	}
+
+	@Override
+	protected void gatherBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount, int root)
+	{
+		// Every rank writes its own part into the buffer of the root:
+		World world = publish(sendBuffer, receiveBuffer);
+		if (world == null) {
+			return;
+		}
+		PrimitiveBuffers.copy(sendBuffer, 0, world.receiveBuffers[root],
+			getRank() * receiveCount, sendCount);
+		await(world);
+	}
+
+	@Override
+	protected void gathervBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int[] receiveCounts, int[] displacements, int root)
+	{
+		World world = publish(sendBuffer, receiveBuffer);
+		if (world == null) {
+			return;
+		}
+		PrimitiveBuffers.copy(sendBuffer, 0, world.receiveBuffers[root],
+			displacements[getRank()], Math.min(sendCount, receiveCounts[getRank()]));
+		await(world);
+	}
+
+	@Override
+	protected void broadcastBuffer(Object buffer, int count, int root) {
+		World world = publish(buffer, buffer);
+		if (world == null) {
+			return;
+		}
+		if (getRank() != root) {
+			PrimitiveBuffers.copy(world.sendBuffers[root], 0, buffer, 0, count);
+		}
+		await(world);
+	}
+
+	@Override
+	protected void reduceBuffer(Object sendBuffer, Object receiveBuffer,
+		int count, ReductionOperation operation, int root)
+	{
+		World world = publish(sendBuffer, receiveBuffer);
+		if (world == null) {
+			return;
+		}
+		reduceMyPart(world, count, operation, root, root);
+		await(world);
+	}
+
+	@Override
+	protected void allReduceBuffer(Object sendBuffer, Object receiveBuffer,
+		int count, ReductionOperation operation)
+	{
+		World world = publish(sendBuffer, receiveBuffer);
+		if (world == null) {
+			return;
+		}
+		reduceMyPart(world, count, operation, 0, world.size - 1);
+		await(world);
+	}
+
+	// Every rank reduces one block of the elements over all the ranks, in rank
+	// order, and writes it into the receive buffers of the given ranks:
+	private void reduceMyPart(World world, int count,
+		ReductionOperation operation, int firstReceiver, int lastReceiver)
+	{
+		int rank = getRank();
+		int start = Partitioner.blockStart(count, rank, world.size);
+		int end = start + Partitioner.blockLength(count, rank, world.size);
+		Object first = world.sendBuffers[0];
+		if (first instanceof double[] || first instanceof DoubleBuffer) {
+			DoubleBuffer[] sends = new DoubleBuffer[world.size];
+			DoubleBuffer[] receives = new DoubleBuffer[world.size];
+			for (int other = 0; other < world.size; other++) {
+				sends[other] = (DoubleBuffer) PrimitiveBuffers.asBuffer(
+					world.sendBuffers[other]);
+				if (other >= firstReceiver && other <= lastReceiver) {
+					receives[other] = (DoubleBuffer) PrimitiveBuffers.asBuffer(
+						world.receiveBuffers[other]);
+				}
+			}
+			for (int index = start; index < end; index++) {
+				double value = sends[0].get(index);
+				for (int source = 1; source < world.size; source++) {
+					value = operation.combine(value, sends[source].get(index));
+				}
+				for (int receiver = firstReceiver; receiver <= lastReceiver;
+					receiver++)
+				{
+					receives[receiver].put(index, value);
+				}
+			}
+		}
+		else if (first instanceof int[] || first instanceof IntBuffer) {
+			IntBuffer[] sends = new IntBuffer[world.size];
+			IntBuffer[] receives = new IntBuffer[world.size];
+			for (int other = 0; other < world.size; other++) {
+				sends[other] = (IntBuffer) PrimitiveBuffers.asBuffer(
+					world.sendBuffers[other]);
+				if (other >= firstReceiver && other <= lastReceiver) {
+					receives[other] = (IntBuffer) PrimitiveBuffers.asBuffer(
+						world.receiveBuffers[other]);
+				}
+			}
+			for (int index = start; index < end; index++) {
+				int value = sends[0].get(index);
+				for (int source = 1; source < world.size; source++) {
+					value = operation.combine(value, sends[source].get(index));
+				}
+				for (int receiver = firstReceiver; receiver <= lastReceiver;
+					receiver++)
+				{
+					receives[receiver].put(index, value);
+				}
+			}
+		}
+		else {
+			throw PrimitiveBuffers.unsupported(first);
+		}
+	}
+
+	@Override
+	protected void allGatherBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount)
+	{
+		World world = publish(sendBuffer, receiveBuffer);
+		if (world == null) {
+			return;
+		}
+		for (int source = 0; source < world.size; source++) {
+			PrimitiveBuffers.copy(world.sendBuffers[source], 0, receiveBuffer,
+				source * receiveCount, receiveCount);
+		}
+		await(world);
+	}
+
+	@Override
+	protected void allGathervBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int[] receiveCounts, int[] displacements)
+	{
+		World world = publish(sendBuffer, receiveBuffer);
+		if (world == null) {
+			return;
+		}
+		for (int source = 0; source < world.size; source++) {
+			PrimitiveBuffers.copy(world.sendBuffers[source], 0, receiveBuffer,
+				displacements[source], receiveCounts[source]);
+		}
+		await(world);
+	}
+
+	@Override
+	protected void allToAllBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount)
+	{
+		World world = publish(sendBuffer, receiveBuffer);
+		if (world == null) {
+			return;
+		}
+		int rank = getRank();
+		for (int source = 0; source < world.size; source++) {
+			PrimitiveBuffers.copy(world.sendBuffers[source], rank * sendCount,
+				receiveBuffer, source * receiveCount, receiveCount);
+		}
+		await(world);
+	}
+
+	@Override
+	protected int createCounter() {
+		World world = rank().world;
+		if (await(world) != 0) {
+			return -1;
+		}
+		if (getRank() == 0) {
+			world.counter.set(0);
+		}
+		return await(world);
+	}
+
+	@Override
+	protected long fetchAndIncrementCounter() {
+		return rank().world.counter.getAndIncrement();
+	}
+
+	@Override
+	public int boardInitialise(int length) {
+		World world = rank().world;
+		if (await(world) != 0) {
+			return -1;
+		}
+		if (getRank() == 0) {
+			AtomicLongArray board = new AtomicLongArray(length);
+			for (int index = 0; index < length; index++) {
+				board.set(index, -1);
+			}
+			world.board = board;
+			lastBoard = board;
+		}
+		return await(world);
+	}
+
+	@Override
+	public int boardPut(int index, long value) {
+		AtomicLongArray board = rank().world.board;
+		if (board == null) {
+			logger.error("The board was not initialised.");
+			return -1;
+		}
+		board.set(index, value);
+		return 0;
+	}
+
+	// A thread that is not a rank, e.g. a writer of rank 0, reads the board of
+	// the last initialisation:
+	@Override
+	public long[] boardRead() {
+		Rank rank = currentRank.get();
+		AtomicLongArray board = rank == null ? lastBoard : rank.world.board;
+		if (board == null || rank != null && rank.rank != 0) {
+			return null;
+		}
+		long[] values = new long[board.length()];
+		for (int index = 0; index < values.length; index++) {
+			values[index] = board.get(index);
+		}
+		return values;
+	}
+
+	// The ranks started together by one execute() call:
+	private static class World {
+
+		private final int size;
+		private final Phaser barrier;
+		private final Object[] sendBuffers;
+		private final Object[] receiveBuffers;
+		private final AtomicLong counter = new AtomicLong();
+		private volatile AtomicLongArray board = null;
+		private volatile boolean failed = false;
+
+		World(int size) {
+			this.size = size;
+			barrier = new Phaser(size);
+			sendBuffers = new Object[size];
+			receiveBuffers = new Object[size];
+		}
+	}
+
+	private static class Rank {
+
+		private final World world;
+		private final int rank;
+		private final RankState state = new RankState();
+
+		Rank(World world, int rank) {
+			this.world = world;
+			this.rank = rank;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Starts the ranks of the socket backend as JVMs on this machine, connected
+// over the loopback interface, e.g. for the tests and the benchmarks:
+//
+// java -cp <class path> cz.it4i.fiji.parallel_macro.SocketLauncher <size>
+// <main class> [arguments]
+public final class SocketLauncher {
+
+	public static void main(String[] args) throws IOException,
+		InterruptedException
+	{
+		if (args.length < 2) {
+			System.err.println("Usage: SocketLauncher <size> <main class> " +
+				"[arguments]");
+			System.exit(2);
+		}
+		System.exit(launch(Integer.parseInt(args[0]), args[1], Arrays.copyOfRange(
+			args, 2, args.length)));
+	}
+
+	// Runs the main class in the given number of JVMs with the class path of
+	// this one and returns the first non-zero exit code of a rank, or 0:
+	public static int launch(int size, String mainClass, String... arguments)
+		throws IOException, InterruptedException
+	{
+		int port;
+		try (ServerSocket freePort = new ServerSocket(0)) {
+			port = freePort.getLocalPort();
+		}
+
+		String java = System.getProperty("java.home") + File.separator + "bin" +
+			File.separator + "java";
+		List<Process> ranks = new ArrayList<>();
+		for (int rank = 0; rank < size; rank++) {
+			List<String> command = new ArrayList<>();
+			command.add(java);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add("-Dparallel_macro.backend=socket");
+			command.add("-Dparallel_macro.socket.rank=" + rank);
+			command.add("-Dparallel_macro.socket.size=" + size);
+			command.add("-Dparallel_macro.socket.root=localhost:" + port);
+			command.add(mainClass);
+			command.addAll(Arrays.asList(arguments));
+			ranks.add(new ProcessBuilder(command).inheritIO().start());
+		}
+
+		int exitCode = 0;
+		for (Process rank : ranks) {
+			int rankExitCode = rank.waitFor();
+			if (exitCode == 0) {
+				exitCode = rankExitCode;
+			}
+		}
+		return exitCode;
+	}
+
+	private SocketLauncher() {
+		// Empty private constructor to hide default public one.
+	}
+}
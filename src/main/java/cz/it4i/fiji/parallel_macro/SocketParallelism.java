@@ -0,0 +1,918 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Runs the ranks as separate JVMs that talk over TCP sockets, for machines
+// without OpenMPI and its Java bindings. Every rank takes its rank and the size
+// of the world from the settings, or from the variables of a launcher such as
+// mpirun or srun, and registers with rank 0, which then tells all the ranks
+// where the others listen. The connection between two ranks is opened by the
+// higher rank when they exchange their first message.
+//
+// A message is a frame of its length in bytes followed by the elements in
+// big-endian order. Scatter, gather, broadcast, reduce and barrier follow a
+// binomial tree, so the root exchanges log2(size) messages instead of size - 1.
+public class SocketParallelism extends AbstractParallelism {
+
+	private static final long CONNECT_RETRY_DELAY = 100;
+
+	private Logger logger = LoggerFactory.getLogger(SocketParallelism.class);
+
+	private final int rank;
+	private final int size;
+	private final InetSocketAddress rootAddress;
+	private final long timeout;
+
+	private ServerSocketChannel server;
+	private SocketChannel[] channels;
+	private InetSocketAddress[] addresses;
+
+	// Sends the parts of all-to-all while this rank receives the others:
+	private ExecutorService sender;
+
+	// The counter of the work queue and the board live on rank 0, the other
+	// ranks send their requests to its server. A request to increment is a
+	// single byte, a request to put is followed by the index and the value.
+	// Both are answered with the previous value:
+	private static final byte INCREMENT_REQUEST = 0;
+	private static final byte PUT_REQUEST = 1;
+	private static final int PUT_REQUEST_LENGTH = 1 + Integer.BYTES +
+		Long.BYTES;
+	private final AtomicLong counter = new AtomicLong();
+	private volatile AtomicLongArray board = null;
+	private CounterServer counterServer;
+	private int counterPort;
+	private SocketChannel counterChannel;
+
+	public SocketParallelism() {
+		this((int) Configuration.getLong("socket.rank", Configuration
+			.getLauncherRank()), (int) Configuration.getLong("socket.size",
+				Configuration.getLauncherSize()), parseAddress(Configuration.getString(
+					"socket.root", "localhost:47011")));
+	}
+
+	public SocketParallelism(int rank, int size, InetSocketAddress rootAddress) {
+		this.rank = rank;
+		this.size = size;
+		this.rootAddress = rootAddress;
+		this.timeout = Configuration.getLong("socket.timeout", 60000);
+	}
+
+	static InetSocketAddress parseAddress(String address) {
+		int colon = address.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("The address " + address +
+				" should be host:port.");
+		}
+		return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(
+			address.substring(colon + 1).trim()));
+	}
+
+	@Override
+	public int initialise() {
+		if (rank < 0 || rank >= size) {
+			logger.error("Socket initialization error: rank {} of {} ranks.", rank,
+				size);
+			return -1;
+		}
+		channels = new SocketChannel[size];
+		addresses = new InetSocketAddress[size];
+		addresses[0] = rootAddress;
+		if (size == 1) {
+			return 0;
+		}
+		try {
+			server = ServerSocketChannel.open();
+			server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			server.socket().setSoTimeout((int) timeout);
+			if (rank == 0) {
+				server.bind(new InetSocketAddress(rootAddress.getPort()), size);
+				counterServer = new CounterServer();
+				counterPort = counterServer.getPort();
+				counterServer.start();
+				acceptRegistrations();
+			}
+			else {
+				server.bind(new InetSocketAddress(0), size);
+				register();
+			}
+			// From now on the ranks may wait for each other for as long as the
+			// macro runs:
+			server.socket().setSoTimeout(0);
+			sender = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "parallel-macro-socket-sender");
+				thread.setDaemon(true);
+				return thread;
+			});
+			return 0;
+		}
+		catch (IOException exc) {
+			logger.error("Socket initialization error: {} ", exc.getMessage());
+			close();
+			return -1;
+		}
+	}
+
+	// Rank 0 waits until every other rank has sent the port it listens on and
+	// answers with the addresses of all the ranks:
+	private void acceptRegistrations() throws IOException {
+		for (int registered = 1; registered < size; registered++) {
+			SocketChannel channel = accept();
+			ByteBuffer registration = receive(channel);
+			int peer = registration.getInt();
+			int port = registration.getInt();
+			channels[peer] = channel;
+			addresses[peer] = new InetSocketAddress(((InetSocketAddress) channel
+				.getRemoteAddress()).getAddress(), port);
+		}
+
+		ByteBuffer table = ByteBuffer.allocate(Integer.BYTES + (size - 1) * (1 +
+			16 + Integer.BYTES));
+		table.putInt(counterPort);
+		for (int peer = 1; peer < size; peer++) {
+			byte[] host = addresses[peer].getAddress().getAddress();
+			table.put((byte) host.length).put(host).putInt(addresses[peer]
+				.getPort());
+		}
+		table.flip();
+		for (int peer = 1; peer < size; peer++) {
+			send(channels[peer], table.duplicate());
+		}
+	}
+
+	private void register() throws IOException {
+		SocketChannel channel = connect(rootAddress);
+		ByteBuffer registration = ByteBuffer.allocate(2 * Integer.BYTES);
+		registration.putInt(rank).putInt(((InetSocketAddress) server
+			.getLocalAddress()).getPort());
+		registration.flip();
+		send(channel, registration);
+		channels[0] = channel;
+
+		ByteBuffer table = receive(channel);
+		counterPort = table.getInt();
+		for (int peer = 1; peer < size; peer++) {
+			byte[] host = new byte[table.get()];
+			table.get(host);
+			addresses[peer] = new InetSocketAddress(InetAddress.getByAddress(host),
+				table.getInt());
+		}
+	}
+
+	// The root may start later than the other ranks, keep trying until the
+	// timeout:
+	private SocketChannel connect(InetSocketAddress address) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			try {
+				SocketChannel channel = SocketChannel.open(address);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				return channel;
+			}
+			catch (ConnectException exc) {
+				if (System.currentTimeMillis() > deadline) {
+					throw exc;
+				}
+				try {
+					Thread.sleep(CONNECT_RETRY_DELAY);
+				}
+				catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw exc;
+				}
+			}
+		}
+	}
+
+	private SocketChannel accept() throws IOException {
+		SocketChannel channel = server.socket().accept().getChannel();
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		return channel;
+	}
+
+	// The connection to another rank. The higher rank opens it and introduces
+	// itself, the lower rank accepts connections until the one of the peer
+	// arrives and keeps the others for later:
+	private SocketChannel channel(int peer) throws IOException {
+		if (channels[peer] != null) {
+			return channels[peer];
+		}
+		if (rank > peer) {
+			SocketChannel channel = connect(addresses[peer]);
+			ByteBuffer introduction = ByteBuffer.allocate(Integer.BYTES);
+			introduction.putInt(rank).flip();
+			send(channel, introduction);
+			channels[peer] = channel;
+		}
+		else {
+			while (channels[peer] == null) {
+				SocketChannel channel = accept();
+				channels[receive(channel).getInt()] = channel;
+			}
+		}
+		return channels[peer];
+	}
+
+	private static void send(SocketChannel channel, ByteBuffer payload)
+		throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+		header.putInt(payload.remaining()).flip();
+		ByteBuffer[] frame = { header, payload };
+		while (header.hasRemaining() || payload.hasRemaining()) {
+			channel.write(frame);
+		}
+	}
+
+	private static ByteBuffer receive(SocketChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+		readFully(channel, header);
+		ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+		readFully(channel, payload);
+		payload.flip();
+		return payload;
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer)
+		throws IOException
+	{
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("The connection to a rank was closed.");
+			}
+		}
+	}
+
+	@Override
+	public int finalise() {
+		int result = barrier();
+		close();
+		return result;
+	}
+
+	private void close() {
+		if (sender != null) {
+			sender.shutdownNow();
+		}
+		if (counterServer != null) {
+			counterServer.close();
+		}
+		closeQuietly(counterChannel);
+		if (channels != null) {
+			for (SocketChannel channel : channels) {
+				closeQuietly(channel);
+			}
+		}
+		if (server != null) {
+			try {
+				server.close();
+			}
+			catch (IOException exc) {
+				// Nothing left to do with it.
+			}
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (IOException exc) {
+				// Nothing left to do with it.
+			}
+		}
+	}
+
+	@Override
+	public int getRank() {
+		return rank;
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	// The ranks of the trees are relative to their root:
+	private int relative(int peer, int root) {
+		return (peer - root + size) % size;
+	}
+
+	private int absolute(int relativeRank, int root) {
+		return (relativeRank + root) % size;
+	}
+
+	// Sends the bytes of the root down a binomial tree, every rank returns them:
+	private ByteBuffer broadcastBytes(ByteBuffer bytes, int root)
+		throws IOException
+	{
+		int me = relative(rank, root);
+		int mask = 1;
+		while (mask < size) {
+			if ((me & mask) != 0) {
+				bytes = receive(channel(absolute(me - mask, root)));
+				break;
+			}
+			mask <<= 1;
+		}
+		// The largest subtree first:
+		for (mask >>= 1; mask > 0; mask >>= 1) {
+			if (me + mask < size) {
+				send(channel(absolute(me + mask, root)), bytes.duplicate());
+			}
+		}
+		return bytes;
+	}
+
+	// Scatters the parts of the root down a binomial tree. A rank receives the
+	// parts of its whole subtree and passes on those of its children, the part
+	// of relative rank i starts at byte partStarts[i] of the parts of the root:
+	private ByteBuffer scatterBytes(ByteBuffer parts, int[] partStarts,
+		int root) throws IOException
+	{
+		int me = relative(rank, root);
+		int mask = 1;
+		while (mask < size) {
+			if ((me & mask) != 0) {
+				parts = receive(channel(absolute(me - mask, root)));
+				break;
+			}
+			mask <<= 1;
+		}
+		for (mask >>= 1; mask > 0; mask >>= 1) {
+			int child = me + mask;
+			if (child < size) {
+				ByteBuffer subtree = parts.duplicate();
+				subtree.limit(partStarts[Math.min(child + mask, size)] -
+					partStarts[me]);
+				subtree.position(partStarts[child] - partStarts[me]);
+				send(channel(absolute(child, root)), subtree);
+			}
+		}
+		ByteBuffer part = parts.duplicate();
+		part.limit(partStarts[me + 1] - partStarts[me]);
+		part.position(0);
+		return part;
+	}
+
+	// Collects the parts up a binomial tree, the root returns all of them in
+	// the order of the relative ranks and the other ranks return null:
+	private ByteBuffer gatherBytes(ByteBuffer part, int[] partStarts, int root)
+		throws IOException
+	{
+		int me = relative(rank, root);
+		int end = me == 0 ? size : Math.min(me + (me & -me), size);
+		ByteBuffer subtree = ByteBuffer.allocate(partStarts[end] -
+			partStarts[me]);
+		subtree.put(part);
+		for (int mask = 1; mask < size; mask <<= 1) {
+			if ((me & mask) != 0) {
+				subtree.clear();
+				send(channel(absolute(me - mask, root)), subtree);
+				return null;
+			}
+			int child = me + mask;
+			if (child < size) {
+				subtree.position(partStarts[child] - partStarts[me]);
+				subtree.put(receive(channel(absolute(child, root))));
+			}
+		}
+		subtree.clear();
+		return subtree;
+	}
+
+	// Combines the elements up a binomial tree, the root returns the result
+	// and the other ranks return null:
+	private ByteBuffer reduceBytes(ByteBuffer elements, Object template,
+		ReductionOperation operation, int root) throws IOException
+	{
+		int me = relative(rank, root);
+		for (int mask = 1; mask < size; mask <<= 1) {
+			if ((me & mask) != 0) {
+				send(channel(absolute(me - mask, root)), elements);
+				return null;
+			}
+			if (me + mask < size) {
+				combine(elements, receive(channel(absolute(me + mask, root))),
+					template, operation);
+			}
+		}
+		return elements;
+	}
+
+	private static void combine(ByteBuffer elements, ByteBuffer others,
+		Object template, ReductionOperation operation)
+	{
+		if (template instanceof double[] || template instanceof DoubleBuffer) {
+			DoubleBuffer into = elements.asDoubleBuffer();
+			DoubleBuffer from = others.asDoubleBuffer();
+			for (int index = 0; index < into.limit(); index++) {
+				into.put(index, operation.combine(into.get(index), from.get(index)));
+			}
+		}
+		else if (template instanceof int[] || template instanceof IntBuffer) {
+			IntBuffer into = elements.asIntBuffer();
+			IntBuffer from = others.asIntBuffer();
+			for (int index = 0; index < into.limit(); index++) {
+				into.put(index, operation.combine(into.get(index), from.get(index)));
+			}
+		}
+		else {
+			throw PrimitiveBuffers.unsupported(template);
+		}
+	}
+
+	// The elements of a buffer as the payload of a message:
+	private static ByteBuffer toBytes(Object buffer, int offset, int count) {
+		ByteBuffer bytes = ByteBuffer.allocate(count * PrimitiveBuffers
+			.elementSize(buffer));
+		PrimitiveBuffers.copy(buffer, offset, PrimitiveBuffers.view(bytes, buffer),
+			0, count);
+		return bytes;
+	}
+
+	// Copies the elements from the position of the bytes into the buffer:
+	private static void fromBytes(ByteBuffer bytes, Object buffer, int offset,
+		int count)
+	{
+		Buffer elements = PrimitiveBuffers.view(bytes, buffer);
+		PrimitiveBuffers.copy(elements, 0, buffer, offset, Math.min(count,
+			elements.remaining()));
+	}
+
+	// Byte offset of the part of each relative rank:
+	private int[] partStarts(int[] counts, int root, int elementSize) {
+		int[] starts = new int[size + 1];
+		for (int me = 0; me < size; me++) {
+			starts[me + 1] = starts[me] + counts[absolute(me, root)] * elementSize;
+		}
+		return starts;
+	}
+
+	private int[] equalCounts(int count) {
+		int[] counts = new int[size];
+		for (int peer = 0; peer < size; peer++) {
+			counts[peer] = count;
+		}
+		return counts;
+	}
+
+	private int[] equalDisplacements(int count) {
+		int[] displacements = new int[size];
+		for (int peer = 0; peer < size; peer++) {
+			displacements[peer] = peer * count;
+		}
+		return displacements;
+	}
+
+	@Override
+	public int barrier() {
+		if (size == 1) {
+			return 0;
+		}
+		return instrumented(Metrics.Operation.BARRIER, 0, 0, "Socket barrier",
+			() -> {
+				// Everybody reports to rank 0, which then releases them:
+				gatherBytes(ByteBuffer.allocate(0), new int[size + 1], 0);
+				broadcastBytes(ByteBuffer.allocate(0), 0);
+				return 0;
+			});
+	}
+
+	@Override
+	protected void scatterBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount, int root)
+	{
+		try {
+			scatterParts(sendBuffer, equalCounts(sendCount), equalDisplacements(
+				sendCount), receiveBuffer, receiveCount, root);
+		}
+		catch (IOException exc) {
+			logger.error("Socket scatter error: {} ", exc.getMessage());
+		}
+	}
+
+	@Override
+	protected void scattervBuffer(Object sendBuffer, int[] sendCounts,
+		int[] displacements, Object receiveBuffer, int receiveCount, int root)
+	{
+		try {
+			scatterParts(sendBuffer, sendCounts, displacements, receiveBuffer,
+				receiveCount, root);
+		}
+		catch (IOException exc) {
+			logger.error("Socket scatterv error: {} ", exc.getMessage());
+		}
+	}
+
+	private void scatterParts(Object sendBuffer, int[] sendCounts,
+		int[] displacements, Object receiveBuffer, int receiveCount, int root)
+		throws IOException
+	{
+		int[] partStarts = partStarts(sendCounts, root, PrimitiveBuffers
+			.elementSize(receiveBuffer));
+		ByteBuffer parts = null;
+		if (rank == root) {
+			// The parts in the order of the relative ranks:
+			parts = ByteBuffer.allocate(partStarts[size]);
+			for (int me = 0; me < size; me++) {
+				int peer = absolute(me, root);
+				parts.position(partStarts[me]);
+				PrimitiveBuffers.copy(sendBuffer, displacements[peer], PrimitiveBuffers
+					.view(parts, sendBuffer), 0, sendCounts[peer]);
+			}
+			parts.clear();
+		}
+		fromBytes(scatterBytes(parts, partStarts, root), receiveBuffer, 0,
+			receiveCount);
+	}
+
+	@Override
+	protected void gatherBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount, int root)
+	{
+		try {
+			gatherParts(sendBuffer, sendCount, receiveBuffer, equalCounts(
+				receiveCount), equalDisplacements(receiveCount), root);
+		}
+		catch (IOException exc) {
+			logger.error("Socket gather error: {} ", exc.getMessage());
+		}
+	}
+
+	@Override
+	protected void gathervBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int[] receiveCounts, int[] displacements, int root)
+	{
+		try {
+			gatherParts(sendBuffer, sendCount, receiveBuffer, receiveCounts,
+				displacements, root);
+		}
+		catch (IOException exc) {
+			logger.error("Socket gatherv error: {} ", exc.getMessage());
+		}
+	}
+
+	// Gathers the parts on the root and, when the root is -1, passes all of
+	// them from rank 0 to every rank:
+	private void gatherParts(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int[] receiveCounts, int[] displacements, int root)
+		throws IOException
+	{
+		int treeRoot = Math.max(root, 0);
+		int[] partStarts = partStarts(receiveCounts, treeRoot, PrimitiveBuffers
+			.elementSize(sendBuffer));
+		ByteBuffer parts = gatherBytes(toBytes(sendBuffer, 0, Math.min(sendCount,
+			receiveCounts[rank])), partStarts, treeRoot);
+		if (root < 0) {
+			parts = broadcastBytes(parts, treeRoot);
+		}
+		if (parts == null) {
+			return;
+		}
+		for (int me = 0; me < size; me++) {
+			int peer = absolute(me, treeRoot);
+			ByteBuffer part = parts.duplicate();
+			part.position(partStarts[me]);
+			fromBytes(part, receiveBuffer, displacements[peer], receiveCounts[peer]);
+		}
+	}
+
+	@Override
+	protected void broadcastBuffer(Object buffer, int count, int root) {
+		try {
+			ByteBuffer bytes = rank == root ? toBytes(buffer, 0, count) : null;
+			bytes = broadcastBytes(bytes, root);
+			if (rank != root) {
+				fromBytes(bytes, buffer, 0, count);
+			}
+		}
+		catch (IOException exc) {
+			logger.error("Socket broadcast error: {} ", exc.getMessage());
+		}
+	}
+
+	@Override
+	protected void reduceBuffer(Object sendBuffer, Object receiveBuffer,
+		int count, ReductionOperation operation, int root)
+	{
+		try {
+			ByteBuffer result = reduceBytes(toBytes(sendBuffer, 0, count),
+				sendBuffer, operation, root);
+			if (result != null) {
+				fromBytes(result, receiveBuffer, 0, count);
+			}
+		}
+		catch (IOException exc) {
+			logger.error("Socket reduce error: {} ", exc.getMessage());
+		}
+	}
+
+	@Override
+	protected void allReduceBuffer(Object sendBuffer, Object receiveBuffer,
+		int count, ReductionOperation operation)
+	{
+		try {
+			ByteBuffer result = reduceBytes(toBytes(sendBuffer, 0, count),
+				sendBuffer, operation, 0);
+			fromBytes(broadcastBytes(result, 0), receiveBuffer, 0, count);
+		}
+		catch (IOException exc) {
+			logger.error("Socket all reduce error: {} ", exc.getMessage());
+		}
+	}
+
+	@Override
+	protected void allGatherBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount)
+	{
+		try {
+			gatherParts(sendBuffer, sendCount, receiveBuffer, equalCounts(
+				receiveCount), equalDisplacements(receiveCount), -1);
+		}
+		catch (IOException exc) {
+			logger.error("Socket all gather error: {} ", exc.getMessage());
+		}
+	}
+
+	@Override
+	protected void allGathervBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int[] receiveCounts, int[] displacements)
+	{
+		try {
+			gatherParts(sendBuffer, sendCount, receiveBuffer, receiveCounts,
+				displacements, -1);
+		}
+		catch (IOException exc) {
+			logger.error("Socket all gatherv error: {} ", exc.getMessage());
+		}
+	}
+
+	@Override
+	protected void allToAllBuffer(Object sendBuffer, int sendCount,
+		Object receiveBuffer, int receiveCount)
+	{
+		PrimitiveBuffers.copy(sendBuffer, rank * sendCount, receiveBuffer, rank *
+			receiveCount, receiveCount);
+		try {
+			// In step s every rank sends to rank + s and receives from rank - s,
+			// the sending runs on its own thread so that two ranks sending large
+			// parts to each other do not block:
+			for (int step = 1; step < size; step++) {
+				int target = (rank + step) % size;
+				int source = (rank - step + size) % size;
+				SocketChannel targetChannel = channel(target);
+				SocketChannel sourceChannel = channel(source);
+				ByteBuffer part = toBytes(sendBuffer, target * sendCount, sendCount);
+				Future<?> sending = sender.submit(() -> {
+					send(targetChannel, part);
+					return null;
+				});
+				fromBytes(receive(sourceChannel), receiveBuffer, source * receiveCount,
+					receiveCount);
+				waitFor(sending);
+			}
+		}
+		catch (IOException exc) {
+			logger.error("Socket all to all error: {} ", exc.getMessage());
+		}
+	}
+
+	private static void waitFor(Future<?> sending) throws IOException {
+		try {
+			sending.get();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while sending.", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new IOException(exc.getCause().getMessage(), exc.getCause());
+		}
+	}
+
+	@Override
+	protected int createCounter() {
+		if (barrier() != 0) {
+			return -1;
+		}
+		if (rank == 0) {
+			counter.set(0);
+		}
+		return barrier();
+	}
+
+	@Override
+	protected long fetchAndIncrementCounter() {
+		if (rank == 0) {
+			return counter.getAndIncrement();
+		}
+		try {
+			ByteBuffer request = ByteBuffer.allocate(1);
+			request.put(INCREMENT_REQUEST).flip();
+			return requestFromRoot(request);
+		}
+		catch (IOException exc) {
+			logger.error("Socket counter error: {} ", exc.getMessage());
+			return -1;
+		}
+	}
+
+	@Override
+	public int boardInitialise(int length) {
+		if (barrier() != 0) {
+			return -1;
+		}
+		if (rank == 0) {
+			AtomicLongArray newBoard = new AtomicLongArray(length);
+			for (int index = 0; index < length; index++) {
+				newBoard.set(index, -1);
+			}
+			board = newBoard;
+		}
+		return barrier();
+	}
+
+	// Waits for the answer of rank 0, so the value is on the board when this
+	// returns:
+	@Override
+	public int boardPut(int index, long value) {
+		if (rank == 0) {
+			AtomicLongArray currentBoard = board;
+			if (currentBoard == null) {
+				logger.error("The board was not initialised.");
+				return -1;
+			}
+			currentBoard.set(index, value);
+			return 0;
+		}
+		try {
+			ByteBuffer request = ByteBuffer.allocate(PUT_REQUEST_LENGTH);
+			request.put(PUT_REQUEST).putInt(index).putLong(value).flip();
+			requestFromRoot(request);
+			return 0;
+		}
+		catch (IOException exc) {
+			logger.error("Socket board put error: {} ", exc.getMessage());
+			return -1;
+		}
+	}
+
+	@Override
+	public long[] boardRead() {
+		AtomicLongArray currentBoard = board;
+		if (currentBoard == null || rank != 0) {
+			return null;
+		}
+		long[] values = new long[currentBoard.length()];
+		for (int index = 0; index < values.length; index++) {
+			values[index] = currentBoard.get(index);
+		}
+		return values;
+	}
+
+	private long requestFromRoot(ByteBuffer request) throws IOException {
+		if (counterChannel == null) {
+			counterChannel = connect(new InetSocketAddress(rootAddress.getAddress(),
+				counterPort));
+		}
+		while (request.hasRemaining()) {
+			counterChannel.write(request);
+		}
+		ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+		readFully(counterChannel, value);
+		return value.getLong(0);
+	}
+
+	// Answers the requests of the other ranks, on rank 0 while its macro keeps
+	// running:
+	private class CounterServer extends Thread {
+
+		private final Selector selector;
+		private final ServerSocketChannel counterSocket;
+
+		CounterServer() throws IOException {
+			super("parallel-macro-counter");
+			setDaemon(true);
+			selector = Selector.open();
+			counterSocket = ServerSocketChannel.open();
+			counterSocket.bind(new InetSocketAddress(0), size);
+			counterSocket.configureBlocking(false);
+			counterSocket.register(selector, SelectionKey.OP_ACCEPT);
+		}
+
+		int getPort() throws IOException {
+			return ((InetSocketAddress) counterSocket.getLocalAddress()).getPort();
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+			try {
+				while (selector.isOpen()) {
+					selector.select();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isAcceptable()) {
+							SocketChannel channel = counterSocket.accept();
+							if (channel != null) {
+								channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+								channel.configureBlocking(false);
+								// The requests that have not arrived completely are
+								// kept in the attachment of the channel:
+								channel.register(selector, SelectionKey.OP_READ, ByteBuffer
+									.allocate(64));
+							}
+						}
+						else if (key.isReadable()) {
+							answer((SocketChannel) key.channel(), key, value);
+						}
+					}
+				}
+			}
+			catch (IOException | ClosedSelectorException exc) {
+				// Closed by finalise.
+			}
+		}
+
+		private void answer(SocketChannel channel, SelectionKey key,
+			ByteBuffer value)
+		{
+			ByteBuffer requests = (ByteBuffer) key.attachment();
+			try {
+				if (channel.read(requests) < 0) {
+					key.cancel();
+					channel.close();
+					return;
+				}
+				requests.flip();
+				while (requests.hasRemaining()) {
+					long previous;
+					if (requests.get(requests.position()) == PUT_REQUEST) {
+						if (requests.remaining() < PUT_REQUEST_LENGTH) {
+							break;
+						}
+						requests.get();
+						int index = requests.getInt();
+						long newValue = requests.getLong();
+						AtomicLongArray currentBoard = board;
+						previous = currentBoard != null && index >= 0 &&
+							index < currentBoard.length() ? currentBoard.getAndSet(index,
+								newValue) : -1;
+					}
+					else {
+						requests.get();
+						previous = counter.getAndIncrement();
+					}
+					value.clear();
+					value.putLong(previous).flip();
+					while (value.hasRemaining()) {
+						channel.write(value);
+					}
+				}
+				requests.compact();
+			}
+			catch (IOException exc) {
+				key.cancel();
+				closeQuietly(channel);
+			}
+		}
+
+		void close() {
+			try {
+				selector.close();
+				counterSocket.close();
+			}
+			catch (IOException exc) {
+				// Nothing left to do with it.
+			}
+		}
+	}
+}
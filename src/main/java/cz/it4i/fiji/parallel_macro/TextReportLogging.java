@@ -1,14 +1,25 @@
-
 package cz.it4i.fiji.parallel_macro;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+// The text of every rank goes to report_<rank>.tlog, which is kept open for
+// the whole job. The lines are collected in a buffer that is written once it
+// is full, by a background thread once it is older than the flush interval,
+// at finalise and by a shutdown hook, so a macro that prints a line per file
+// does not open and close the file for each one. The ranks of the shared
+// memory backend are threads of one JVM, so there is a buffer per rank.
 public class TextReportLogging {
 
 	private Logger logger = LoggerFactory.getLogger(ParallelMacro.class);
@@ -16,16 +27,215 @@ public class TextReportLogging {
 	private static final String LOG_FILE_REPORT_PREFIX = "report_";
 	private static final String LOG_FILE_REPORT_POSTFIX = ".tlog";
 
+	// Characters collected before they are written:
+	private final int bufferSize;
+
+	// Maximal time in milliseconds a line waits in the buffer:
+	private final long flushInterval;
+
+	// Lines per second a rank may report, the others are counted and replaced by
+	// a summary line, 0 for no limit:
+	private final long rateLimit;
+
+	// Force the written text to the disk at the checkpoints, i.e. at
+	// checkpoint() and finalise():
+	private final boolean fsync;
+
+	private final Map<Integer, RankReport> reports = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService flusher = null;
+
+	public TextReportLogging() {
+		this((int) Configuration.getLong("report.buffer_size", 8192), Configuration
+			.getLong("report.flush_interval", 1000), Configuration.getLong(
+				"report.rate_limit", 0), Configuration.getBoolean("report.fsync",
+					false));
+	}
+
+	public TextReportLogging(int bufferSize, long flushInterval, long rateLimit,
+		boolean fsync)
+	{
+		this.bufferSize = bufferSize;
+		this.flushInterval = flushInterval;
+		this.rateLimit = rateLimit;
+		this.fsync = fsync;
+	}
+
 	public int reportText(String textToReport, int rank) {
+		RankReport report = report(rank);
+		if (report == null) {
+			return -1;
+		}
+		synchronized (report) {
+			if (report.isRateLimited()) {
+				return 0;
+			}
+			report.buffer.append(textToReport).append(System.lineSeparator());
+			if (report.buffer.length() >= bufferSize) {
+				return report.flush() ? 0 : -1;
+			}
+		}
+		return 0;
+	}
+
+	// Writes the buffered text of the rank and forces it to the disk when the
+	// "report.fsync" setting is on:
+	public int checkpoint(int rank) {
+		RankReport report = reports.get(rank);
+		if (report == null) {
+			return 0;
+		}
+		synchronized (report) {
+			return report.flush() && report.force() ? 0 : -1;
+		}
+	}
+
+	// Checkpoints the text of the rank and closes its file:
+	public int finalise(int rank) {
+		RankReport report = reports.remove(rank);
+		if (report == null) {
+			return 0;
+		}
+		synchronized (report) {
+			boolean written = report.flush() && report.force();
+			report.close();
+			return written ? 0 : -1;
+		}
+	}
+
+	private RankReport report(int rank) {
+		RankReport report = reports.get(rank);
+		if (report != null) {
+			return report;
+		}
 		try {
-			Files.write(Paths.get(LOG_FILE_REPORT_PREFIX + String.valueOf(rank) +
-				LOG_FILE_REPORT_POSTFIX), textToReport.concat(System.lineSeparator())
-					.getBytes(), StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+			report = new RankReport(FileChannel.open(Paths.get(
+				LOG_FILE_REPORT_PREFIX + String.valueOf(rank) +
+					LOG_FILE_REPORT_POSTFIX), StandardOpenOption.APPEND,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE));
 		}
 		catch (IOException exc) {
 			logger.error("Report text error: {} ", exc.getMessage());
-			return -1;
+			return null;
+		}
+		RankReport previous = reports.putIfAbsent(rank, report);
+		if (previous != null) {
+			report.close();
+			return previous;
+		}
+		startFlusher();
+		return report;
+	}
+
+	// The background flushes and the shutdown hook are started with the first
+	// file:
+	private synchronized void startFlusher() {
+		if (flusher != null) {
+			return;
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "text-report-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushAll, flushInterval,
+			flushInterval, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flushAll,
+			"text-report-shutdown"));
+	}
+
+	private void flushAll() {
+		for (RankReport report : reports.values()) {
+			synchronized (report) {
+				report.flush();
+			}
+		}
+	}
+
+	private class RankReport {
+
+		private final FileChannel channel;
+
+		private final StringBuilder buffer = new StringBuilder();
+
+		// Lines of the current second of the rate limit and those left out:
+		private long windowStart = 0;
+		private long linesInWindow = 0;
+		private long suppressedLines = 0;
+
+		private RankReport(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		private boolean isRateLimited() {
+			if (rateLimit <= 0) {
+				return false;
+			}
+			long now = System.currentTimeMillis();
+			if (now - windowStart >= 1000) {
+				appendSuppressedLines();
+				windowStart = now;
+				linesInWindow = 0;
+			}
+			if (linesInWindow >= rateLimit) {
+				suppressedLines++;
+				return true;
+			}
+			linesInWindow++;
+			return false;
+		}
+
+		private void appendSuppressedLines() {
+			if (suppressedLines > 0) {
+				buffer.append(suppressedLines).append(" lines suppressed").append(
+					System.lineSeparator());
+				suppressedLines = 0;
+			}
+		}
+
+		private boolean flush() {
+			if (!channel.isOpen()) {
+				return false;
+			}
+			appendSuppressedLines();
+			if (buffer.length() == 0) {
+				return true;
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(buffer.toString().getBytes());
+			buffer.setLength(0);
+			try {
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+				return true;
+			}
+			catch (IOException exc) {
+				logger.error("Report text error: {} ", exc.getMessage());
+				return false;
+			}
+		}
+
+		private boolean force() {
+			if (!fsync || !channel.isOpen()) {
+				return true;
+			}
+			try {
+				channel.force(false);
+				return true;
+			}
+			catch (IOException exc) {
+				logger.error("Report text error: {} ", exc.getMessage());
+				return false;
+			}
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			}
+			catch (IOException exc) {
+				logger.error("Report text error: {} ", exc.getMessage());
+			}
 		}
-		return 0;
 	}
 }
@@ -0,0 +1,42 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Packs strings into bytes for the byte collectives, each string is its UTF-8
+// length as a big-endian int followed by its UTF-8 bytes. Packed strings can
+// be concatenated, e.g. the parts gathered from all ranks.
+final class Utf8Strings {
+
+	static byte[] encode(String[] strings, int from, int to) {
+		byte[][] encoded = new byte[to - from][];
+		int length = 0;
+		for (int index = from; index < to; index++) {
+			encoded[index - from] = strings[index].getBytes(StandardCharsets.UTF_8);
+			length += Integer.BYTES + encoded[index - from].length;
+		}
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		for (byte[] string : encoded) {
+			bytes.putInt(string.length).put(string);
+		}
+		return bytes.array();
+	}
+
+	static String[] decode(byte[] bytes) {
+		List<String> strings = new ArrayList<>();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.remaining() >= Integer.BYTES) {
+			int length = buffer.getInt();
+			strings.add(new String(bytes, buffer.position(), length,
+				StandardCharsets.UTF_8));
+			buffer.position(buffer.position() + length);
+		}
+		return strings.toArray(new String[strings.size()]);
+	}
+
+	private Utf8Strings() {
+		// Empty private constructor to hide default public one.
+	}
+}
@@ -0,0 +1,71 @@
+package cz.it4i.fiji.parallel_macro;
+
+import java.util.function.LongSupplier;
+
+// Splits the items of a work queue into chunks. Every rank computes the same
+// chunks, so the ranks only have to share the index of the next free chunk and
+// take one chunk at a time from it.
+public class WorkQueue {
+
+	// Start of each chunk, the last element is the number of items:
+	private final int[] chunkStarts;
+
+	private int nextItem = 0;
+	private int chunkEnd = 0;
+	private boolean exhausted = false;
+
+	public WorkQueue(int numberOfItems, int chunkSize, int size,
+		boolean guided)
+	{
+		int minimalChunkSize = Math.max(chunkSize, 1);
+		int[] starts = new int[numberOfItems + 1];
+		int numberOfChunks = 0;
+		int start = 0;
+		while (start < numberOfItems) {
+			starts[numberOfChunks++] = start;
+			int remaining = numberOfItems - start;
+			int length = minimalChunkSize;
+			if (guided) {
+				// Large chunks first and smaller ones towards the end, half of the
+				// remaining items are shared among the ranks:
+				length = Math.max(minimalChunkSize, (remaining + 2 * size - 1) /
+					(2 * size));
+			}
+			start += Math.min(length, remaining);
+		}
+		starts[numberOfChunks] = numberOfItems;
+
+		chunkStarts = new int[numberOfChunks + 1];
+		System.arraycopy(starts, 0, chunkStarts, 0, numberOfChunks + 1);
+	}
+
+	public int getNumberOfChunks() {
+		return chunkStarts.length - 1;
+	}
+
+	public int getChunkStart(int chunk) {
+		return chunkStarts[chunk];
+	}
+
+	public int getChunkEnd(int chunk) {
+		return chunkStarts[chunk + 1];
+	}
+
+	// Returns the next item of this rank or -1 when the queue is empty, the
+	// supplier hands out the index of the next free chunk:
+	public int nextItem(LongSupplier nextChunk) {
+		if (nextItem >= chunkEnd) {
+			if (exhausted) {
+				return -1;
+			}
+			long chunk = nextChunk.getAsLong();
+			if (chunk < 0 || chunk >= getNumberOfChunks()) {
+				exhausted = true;
+				return -1;
+			}
+			nextItem = getChunkStart((int) chunk);
+			chunkEnd = getChunkEnd((int) chunk);
+		}
+		return nextItem++;
+	}
+}
@@ -1,33 +1,37 @@
-
 package cz.it4i.fiji.parallel_macro;
 
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
-import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class XmlProgressLogging extends ProgressLoggingRestrictions implements
 	ProgressLogging
 {
 
+	// Minimal time between two writes of the progress file in milliseconds:
+	private static final long FLUSH_INTERVAL = Configuration.getLong(
+		"progress.flush_interval", 1000);
+
 	private Logger logger = LoggerFactory.getLogger(ParallelMacro.class
 		.getName());
 
@@ -43,85 +47,88 @@ public class XmlProgressLogging extends ProgressLoggingRestrictions implements
 	private boolean timingIsEnabled = false;
 	private Map<Integer, Long> startTime = new HashMap<>();
 
-	private Document openXmlFile(int rank) {
-		String progressFilePath = LOG_FILE_PROGRESS_PREFIX + String.valueOf(rank) +
-			LOG_FILE_PROGRESS_POSTFIX;
-
-		Document document = null;
-
-		try {
-			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-
-			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-			document = dBuilder.parse(progressFilePath);
-		}
-		catch (Exception exc) {
-			logger.error("Error could not open XML file: {} ", exc.getMessage());
-		}
-		return document;
-	}
+	// The progress document is kept in memory and only written to the file
+	// from time to time:
+	private Document document = null;
+	private Map<Integer, Element> taskElements = new HashMap<>();
+	private Map<Integer, Element> progressElements = new HashMap<>();
+	private Element lastUpdatedElement = null;
+	private Transformer transformer = null;
+	private int documentRank;
+	private boolean documentIsDirty = false;
+	private long lastFlushTime = 0;
+
+	// Writes the changes that were kept back by the flush interval, while the
+	// macro computes without reporting:
+	private ScheduledExecutorService flusher = null;
 
 	private Document createXmlFile() {
-		Document document = null;
+		Document newDocument = null;
 
 		try {
 			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+			newDocument = dbFactory.newDocumentBuilder().newDocument();
 
-			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-			document = dBuilder.newDocument();
+			Element rootElement = newDocument.createElement("job");
+			newDocument.appendChild(rootElement);
 
-			Element rootElement = document.createElement("job");
-			document.appendChild(rootElement);
+			transformer = TransformerFactory.newInstance().newTransformer();
 		}
 		catch (Exception exc) {
 			logger.error("Error can not create XML file: {} ", exc.getMessage());
+			return null;
 		}
 
-		return document;
+		return newDocument;
 	}
 
-	private void updateLastUpdatedTimestamp(Document document) {
-		NodeList nodeList = document.getElementsByTagName("lastUpdated");
+	private void updateLastUpdatedTimestamp() {
 		long timestamp = Instant.now().toEpochMilli();
 		// Update the time-stamp if the XML element already exists or create it if
 		// it does not:
-		if (nodeList.getLength() != 0) {
-			Node node = nodeList.item(0);
-			node.setTextContent(Long.toString(timestamp));
-		}
-		else {
-			Node rootNode = document.getElementsByTagName("job").item(0);
-			Element timestampElement = document.createElement("lastUpdated");
-			timestampElement.setTextContent(Long.toString(timestamp));
-			rootNode.appendChild(timestampElement);
+		if (lastUpdatedElement == null) {
+			lastUpdatedElement = document.createElement("lastUpdated");
+			document.getDocumentElement().appendChild(lastUpdatedElement);
 		}
+		lastUpdatedElement.setTextContent(Long.toString(timestamp));
 	}
 
-	private void saveXmlFile(int rank, Document document) {
+	private void saveXmlFile() {
 		// Before saving to a file update the "last updated" time-stamp:
-		updateLastUpdatedTimestamp(document);
-
-		// Save the XML to file:
-		String progressFilePath = LOG_FILE_PROGRESS_PREFIX + String.valueOf(rank) +
-			LOG_FILE_PROGRESS_POSTFIX;
+		updateLastUpdatedTimestamp();
+
+		// Write to a temporary file first and then replace the progress file, so
+		// that a reader never sees a partially written file:
+		Path progressFilePath = Paths.get(LOG_FILE_PROGRESS_PREFIX + String
+			.valueOf(documentRank) + LOG_FILE_PROGRESS_POSTFIX);
+		Path temporaryFilePath = Paths.get(progressFilePath.toString() + ".tmp");
+		long start = Metrics.start();
 		try {
-			// Write the content into XML file:
-			TransformerFactory transformerFactory = TransformerFactory.newInstance();
-
-			Transformer transformer;
-
-			transformer = transformerFactory.newTransformer();
-			DOMSource source = new DOMSource(document);
-			StreamResult result = new StreamResult(new File(progressFilePath));
-			transformer.transform(source, result);
+			transformer.transform(new DOMSource(document), new StreamResult(
+				temporaryFilePath.toFile()));
+			long written = Metrics.isEnabled() ? temporaryFilePath.toFile().length() : 0;
+			try {
+				Files.move(temporaryFilePath, progressFilePath,
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException exc) {
+				Files.move(temporaryFilePath, progressFilePath,
+					StandardCopyOption.REPLACE_EXISTING);
+			}
+			Metrics.record(Metrics.Operation.PROGRESS_WRITE, start, written, 0);
+			// Only a written document is clean, the flusher or finalise() retry
+			// a failed write:
+			documentIsDirty = false;
 		}
 		catch (Exception exc) {
 			logger.error("Error can not save XML file {} ", exc.getMessage());
 		}
+
+		lastFlushTime = System.currentTimeMillis();
 	}
 
 	@Override
-	public int addTask(String description) {
+	public synchronized int addTask(String description) {
 		if (!super.followsAddTaskRestrictions(tasksWereReported)) {
 			return -1;
 		}
@@ -130,22 +137,42 @@ public class XmlProgressLogging extends ProgressLoggingRestrictions implements
 		return numberOfTasks++;
 	}
 
+	private synchronized void flushIfDirty() {
+		if (document != null && documentIsDirty) {
+			saveXmlFile();
+		}
+	}
+
+	private void startFlusher() {
+		if (flusher != null || FLUSH_INTERVAL <= 0) {
+			return;
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "xml-progress-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushIfDirty, FLUSH_INTERVAL,
+			FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
 	@Override
-	public void reportTasks(int rank, int size) {
+	public synchronized void reportTasks(int rank, int size) {
 		if (!super.followsReportTasksRestrictions(tasks, tasksWereReported)) {
 			return;
 		}
 
 		// Create the XML document:
-		Document document = createXmlFile();
+		document = createXmlFile();
 
 		if (document == null) {
 			logger.error("Xml document does not exist!");
 			return;
 		}
+		documentRank = rank;
 
 		// Find the root node of the document:
-		Node rootNode = document.getChildNodes().item(0);
+		Element rootNode = document.getDocumentElement();
 
 		// Add an element that indicates the total number of nodes of the job:
 		Element nodesElement = document.createElement("nodes");
@@ -162,10 +189,13 @@ public class XmlProgressLogging extends ProgressLoggingRestrictions implements
 			taskElement.appendChild(descriptionElement);
 
 			rootNode.appendChild(taskElement);
+			taskElements.put(counter, taskElement);
 		}
 
 		// Save the XML document with the reported tasks:
-		saveXmlFile(rank, document);
+		documentIsDirty = true;
+		saveXmlFile();
+		startFlusher();
 
 		// The tasks should not be reported twice:
 		tasksWereReported = true;
@@ -173,6 +203,13 @@ public class XmlProgressLogging extends ProgressLoggingRestrictions implements
 
 	@Override
 	public int reportProgress(int taskId, int progress, int rank) {
+		return reportProgress(taskId, progress, rank, System.nanoTime());
+	}
+
+	@Override
+	public synchronized int reportProgress(int taskId, int progress, int rank,
+		long reportNanos)
+	{
 		if (!super.followsReportProgressRestrictions(tasks, taskId, progress,
 			lastWrittenTaskPercentage))
 		{
@@ -185,80 +222,68 @@ public class XmlProgressLogging extends ProgressLoggingRestrictions implements
 		}
 
 		lastWrittenTaskPercentage.put(taskId, progress);
-		Document document = openXmlFile(rank);
 
-		if (document == null) {
+		if (document == null || rank != documentRank) {
 			logger.error("XML document does not exist!");
 			return -1;
 		}
 
+		Element taskNode = taskElements.get(taskId);
+		if (taskNode == null) {
+			logger.error("Task with id {} could not be found!", taskId);
+			return -1;
+		}
+
 		// Create or update progress element for specified task:
-		Node progressNode = findNode(document, "//task[@id='" + taskId +
-			"']//progress");
+		Element progressNode = progressElements.get(taskId);
 		if (progressNode == null) {
 			progressNode = document.createElement("progress");
-			progressNode.setTextContent(String.valueOf(progress));
-			Node taskNode = findNode(document, "//task[@id='" + taskId + "']");
-			if (taskNode == null) {
-				logger.error("Task with id {} could not be found!", taskId);
-				return -1;
-			}
 			taskNode.appendChild(progressNode);
+			progressElements.put(taskId, progressNode);
 		}
-		else {
-			progressNode.setTextContent(String.valueOf(progress));
-		}
+		progressNode.setTextContent(String.valueOf(progress));
 
 		// Report duration of task (time from first % noted to 100%).
 		if (timingIsEnabled) {
 			if (progress == 0 || !startTime.containsKey(taskId)) {
 				// Start the timer.
-				startTime.put(taskId, System.nanoTime());
+				startTime.put(taskId, reportNanos);
 			}
 			else if (progress == 100) {
 				// End the timer.
-				Node timingNode = document.createElement("time");
-				timingNode.setTextContent(String.valueOf(System.nanoTime() - startTime
+				Element timingNode = document.createElement("time");
+				timingNode.setTextContent(String.valueOf(reportNanos - startTime
 					.get(taskId)));
-				Node taskNode = findNode(document, "//task[@id='" + taskId + "']");
-				if (taskNode == null) {
-					logger.error("Task with id {} could not be found!", taskId);
-					return -1;
-				}
 				taskNode.appendChild(timingNode);
 			}
 		}
+		documentIsDirty = true;
 
-		// Save the document with the new progress:
-		saveXmlFile(rank, document);
+		// Save the document with the new progress only if enough time has passed
+		// since the last save, finished tasks are always saved right away. The
+		// flusher saves it otherwise:
+		if (progress == 100 || System.currentTimeMillis() -
+			lastFlushTime >= FLUSH_INTERVAL)
+		{
+			saveXmlFile();
+		}
 
 		// success
 		return 0;
 	}
 
-	private Node findNode(Document document, String xpathExpression) {
-		// Create XPathFactory object
-		XPathFactory xpathFactory = XPathFactory.newInstance();
-
-		// Create XPath object
-		XPath xpath = xpathFactory.newXPath();
-
-		Node node = null;
-		try {
-			// Create XPathExpression object:
-			XPathExpression expr = xpath.compile(xpathExpression);
-
-			// Evaluate expression result on XML document:
-			node = (Node) expr.evaluate(document, XPathConstants.NODE);
-		}
-		catch (Exception exc) {
-			logger.error(" Could not find node in XML file. {} ", exc.getMessage());
-		}
-		return node;
+	@Override
+	public synchronized void enableTiming() {
+		this.timingIsEnabled = true;
 	}
 
 	@Override
-	public void enableTiming() {
-		this.timingIsEnabled = true;
+	public synchronized void finalise() {
+		if (flusher != null) {
+			flusher.shutdown();
+			flusher = null;
+		}
+		// Save any progress that has not been written yet:
+		flushIfDirty();
 	}
 }
@@ -3,7 +3,10 @@ package cz.it4i.fiji.parallel_macro.test;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -12,14 +15,6 @@ import cz.it4i.fiji.parallel_macro.MpiReflection;
 
 public class ArrayCommaSeparatedStringConversionTest {
 
-	private static MpiReflection mpiReflection;
-	
-	static {
-		mpiReflection = new MpiReflection();
-		String path = mpiReflection.findMpiJarFile();
-		mpiReflection.loadOpenMpi(path);
-	}
-
 	@Test
 	public void arrayToCommaSeparatedStringShouldWork() {
 		double[] originalArray = { 10.0, 20.0, 30.0 };
@@ -37,9 +32,10 @@ public class ArrayCommaSeparatedStringConversionTest {
 
 		ArrayCommaSeparatedString converter = new ArrayCommaSeparatedString();
 		DoubleBuffer convertedArray = converter.convertCommaSeparatedStringToBuffer(
-			originalString, mpiReflection);
+			originalString,
+			ArrayCommaSeparatedStringConversionTest::newDirectBuffer);
 
-		assertArrayEquals(expectedArray, convertedArray.array(), 0.0);
+		assertArrayEquals(expectedArray, toArray(convertedArray), 0.0);
 	}
 
 	@Test
@@ -55,9 +51,67 @@ public class ArrayCommaSeparatedStringConversionTest {
 		String myBigString = converter.convertBufferToCommaSeparatedString(
 			DoubleBuffer.wrap(myBigArray), size);
 		DoubleBuffer myRecreatedBigArray = converter
-			.convertCommaSeparatedStringToBuffer(myBigString, mpiReflection);
+			.convertCommaSeparatedStringToBuffer(myBigString,
+				ArrayCommaSeparatedStringConversionTest::newDirectBuffer);
+
+		assertArrayEquals(myBigArray, toArray(myRecreatedBigArray), 0.0);
+	}
 
-		assertArrayEquals(myBigArray, myRecreatedBigArray.array(), 0.0);
+	@Test
+	public void buffersWithoutOpenMpiShouldHaveTheRequestedSize() {
+		// Nothing is loaded, so MPI can not allocate the buffers:
+		MpiReflection mpiReflection = new MpiReflection();
+		assertEquals(4, mpiReflection.newDoubleBuffer(4).capacity());
+		assertEquals(3, mpiReflection.newLongBuffer(3).capacity());
+
+		DoubleBuffer convertedArray = new ArrayCommaSeparatedString()
+			.convertCommaSeparatedStringToBuffer("1.0, 2.0", mpiReflection);
+		assertArrayEquals(new double[] { 1.0, 2.0 }, toArray(convertedArray), 0.0);
 	}
 
+	@Test
+	public void conversionsShouldKeepEveryDoubleExact() {
+		Random random = new Random(42);
+		double[] originalArray = new double[10000];
+		for (int i = 0; i < originalArray.length; i++) {
+			originalArray[i] = i % 2 == 0 ? random.nextInt(1000) - 500 : random
+				.nextGaussian() * 1e6;
+		}
+		originalArray[0] = -0.0;
+		originalArray[1] = 1e7;
+
+		ArrayCommaSeparatedString converter = new ArrayCommaSeparatedString();
+		String convertedString = converter.convertBufferToCommaSeparatedString(
+			DoubleBuffer.wrap(originalArray), originalArray.length);
+		assertTrue(convertedString.startsWith("-0.0, 1.0E7, "));
+		assertArrayEquals(originalArray, converter
+			.convertCommaSeparatedStringToArray(convertedString), 0.0);
+	}
+
+	@Test
+	public void integerArraysShouldBeConverted() {
+		int[] originalArray = { -5, 0, 12345 };
+
+		ArrayCommaSeparatedString converter = new ArrayCommaSeparatedString();
+		String convertedString = converter.convertArrayToCommaSeparatedString(
+			originalArray);
+		assertEquals("-5, 0, 12345", convertedString);
+		assertArrayEquals(originalArray, converter
+			.convertCommaSeparatedStringToIntArray(convertedString));
+	}
+
+	// Like the buffers of MPI, without needing it:
+	private static DoubleBuffer newDirectBuffer(int size) {
+		return ByteBuffer.allocateDirect(size * Double.BYTES).order(ByteOrder
+			.nativeOrder()).asDoubleBuffer();
+	}
+
+	// Direct buffers have no accessible array:
+	private static double[] toArray(DoubleBuffer buffer) {
+		double[] array = new double[buffer.capacity()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = buffer.get(i);
+		}
+		return array;
+	}
 }
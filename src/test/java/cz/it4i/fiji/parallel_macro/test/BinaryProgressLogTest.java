@@ -0,0 +1,134 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cz.it4i.fiji.parallel_macro.BinaryProgressLogging;
+import cz.it4i.fiji.parallel_macro.BinaryProgressReader;
+import cz.it4i.fiji.parallel_macro.ProgressLogConverter;
+import cz.it4i.fiji.parallel_macro.ProgressLogging;
+
+public class BinaryProgressLogTest {
+
+	private static final Path BINARY_LOG = Paths.get("progress_0.bplog");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void deleteBinaryLog() throws IOException {
+		Files.deleteIfExists(BINARY_LOG);
+	}
+
+	@Test
+	public void recordsShouldBeSixteenBytes() throws IOException {
+		writeLog(false);
+		long headerLength = 28 + 4 + "A task".length() + 4 + "\u00C9tape"
+			.getBytes("UTF-8").length;
+		assertEquals(headerLength + 4 * 16, Files.size(BINARY_LOG));
+	}
+
+	@Test
+	public void textConversionShouldKeepTheLineFormat() throws Exception {
+		writeLog(true);
+		Path text = folder.getRoot().toPath().resolve("progress_0.plog");
+		ProgressLogConverter.convert(BINARY_LOG, text,
+			ProgressLogConverter.Format.TEXT, false);
+
+		List<String> lines = Files.readAllLines(text);
+		assertEquals(8, lines.size());
+		assertEquals("8", lines.get(0));
+		assertEquals(13, lines.get(1).length());
+		assertEquals("0,A task", lines.get(2));
+		assertEquals("1,\u00C9tape", lines.get(3));
+		assertEquals("0,10", lines.get(4));
+		assertEquals("1,50", lines.get(5));
+		assertTrue(lines.get(6).startsWith("0,100,"));
+		assertEquals("1,100", lines.get(7).substring(0, 5));
+	}
+
+	@Test
+	public void xmlConversionShouldHaveTheLatestProgress() throws Exception {
+		writeLog(true);
+		Path xml = folder.getRoot().toPath().resolve("progress_0.plog");
+		ProgressLogConverter.convert(BINARY_LOG, xml,
+			ProgressLogConverter.Format.XML, false);
+
+		String content = new String(Files.readAllBytes(xml), "UTF-8");
+		assertTrue(content.contains("<nodes>8</nodes>"));
+		assertTrue(content.contains("<description>\u00C9tape</description>"));
+		assertEquals(2, content.split("<progress>100</progress>", -1).length - 1);
+		assertEquals(2, content.split("<time>", -1).length - 1);
+		assertTrue(content.contains("<lastUpdated>"));
+	}
+
+	@Test
+	public void readerShouldOnlyPassCompleteRecords() throws IOException {
+		writeLog(false);
+		byte[] bytes = Files.readAllBytes(BINARY_LOG);
+		Path tail = folder.newFile("tail.bplog").toPath();
+		int[] records = { 0 };
+
+		// The log grows a few bytes at a time, as if it was being written:
+		try (BinaryProgressReader reader = new BinaryProgressReader(tail)) {
+			for (int from = 0; from < bytes.length; from += 7) {
+				Files.write(tail, Arrays.copyOfRange(bytes, from, Math.min(from + 7,
+					bytes.length)), StandardOpenOption.APPEND);
+				records[0] += reader.poll((taskId, progress, duration) -> assertTrue(
+					progress == 10 || progress == 50 || progress == 100));
+			}
+			assertEquals(0, reader.poll(null));
+			assertEquals(4, records[0]);
+			assertEquals(8, reader.getSize());
+			assertEquals(Arrays.asList("A task", "\u00C9tape"), reader.getTasks());
+			assertTrue(reader.allTasksFinished());
+			assertEquals(-1, reader.getDuration(0));
+		}
+	}
+
+	@Test
+	public void pendingRecordsShouldBeWrittenAfterTheFlushInterval()
+		throws Exception
+	{
+		ProgressLogging progressLogging = new BinaryProgressLogging();
+		progressLogging.addTask("A task");
+		progressLogging.reportTasks(0, 8);
+		progressLogging.reportProgress(0, 50, 0);
+		try (BinaryProgressReader reader = new BinaryProgressReader(BINARY_LOG)) {
+			assertEquals(0, reader.poll(null));
+
+			// No more reports, the default interval is a second:
+			Thread.sleep(2000);
+			assertEquals(1, reader.poll(null));
+			assertEquals(50, reader.getProgress(0));
+		}
+		progressLogging.finalise();
+	}
+
+	private static void writeLog(boolean timing) {
+		ProgressLogging progressLogging = new BinaryProgressLogging();
+		if (timing) {
+			progressLogging.enableTiming();
+		}
+		progressLogging.addTask("A task");
+		progressLogging.addTask("\u00C9tape");
+		progressLogging.reportTasks(0, 8);
+		progressLogging.reportProgress(0, 10, 0);
+		progressLogging.reportProgress(1, 50, 0);
+		progressLogging.reportProgress(0, 100, 0);
+		progressLogging.reportProgress(1, 100, 0);
+		progressLogging.finalise();
+	}
+}
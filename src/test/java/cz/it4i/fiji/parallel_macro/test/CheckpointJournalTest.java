@@ -0,0 +1,83 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cz.it4i.fiji.parallel_macro.CheckpointJournal;
+import cz.it4i.fiji.parallel_macro.SharedMemoryParallelism;
+
+public class CheckpointJournalTest {
+
+	@After
+	public void deleteJournals() throws IOException {
+		for (int rank = 0; rank < 3; rank++) {
+			Files.deleteIfExists(journal(rank));
+		}
+	}
+
+	@Test
+	public void itemsDoneByAnEarlierRunShouldBeDone() throws IOException {
+		// The first run has three ranks:
+		SharedMemoryParallelism firstRun = new SharedMemoryParallelism(3);
+		CheckpointJournal firstJournal = new CheckpointJournal(".", false);
+		firstRun.execute(() -> {
+			int rank = firstRun.getRank();
+			firstJournal.initialise(firstRun);
+			assertFalse(firstJournal.isDone("item" + rank));
+			assertEquals(0, firstJournal.markDone("item" + rank, rank));
+			assertTrue(firstJournal.isDone("item" + rank));
+			if (rank == 1) {
+				assertEquals(0, firstJournal.markDone("two\nlines\\", rank));
+			}
+			firstJournal.finalise(rank);
+		});
+
+		// A failure cut the last line of rank 0:
+		Files.write(journal(0), "cut".getBytes(StandardCharsets.UTF_8),
+			StandardOpenOption.APPEND);
+
+		// The next run has two ranks:
+		SharedMemoryParallelism nextRun = new SharedMemoryParallelism(2);
+		CheckpointJournal nextJournal = new CheckpointJournal(".", false);
+		nextRun.execute(() -> {
+			int rank = nextRun.getRank();
+			nextJournal.initialise(nextRun);
+			for (int item = 0; item < 3; item++) {
+				assertTrue(nextJournal.isDone("item" + item));
+			}
+			assertTrue(nextJournal.isDone("two\nlines\\"));
+			assertFalse(nextJournal.isDone("cut"));
+			nextRun.barrier();
+			if (rank == 0) {
+				assertEquals(0, nextJournal.markDone("next", rank));
+			}
+			nextJournal.finalise(rank);
+		});
+		assertEquals("item0\nnext\n", new String(Files.readAllBytes(journal(
+			0)), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void disabledJournalShouldOnlyKeepTheItemsInMemory() {
+		CheckpointJournal journal = new CheckpointJournal(null, false);
+		assertFalse(journal.isEnabled());
+		assertEquals(0, journal.initialise(new SharedMemoryParallelism(1)));
+		assertEquals(0, journal.markDone("item", 0));
+		assertTrue(journal.isDone("item"));
+		journal.finalise(0);
+		assertFalse(Files.exists(journal(0)));
+	}
+
+	private static Path journal(int rank) {
+		return Paths.get("checkpoint_" + rank + ".jnl");
+	}
+}
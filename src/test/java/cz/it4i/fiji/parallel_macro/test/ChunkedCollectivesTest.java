@@ -0,0 +1,147 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import cz.it4i.fiji.parallel_macro.SharedMemoryParallelism;
+
+public class ChunkedCollectivesTest {
+
+	private static final int CHUNK_SIZE = 3;
+
+	// 4 chunks, the last one shorter:
+	private static final int COUNT = 10;
+
+	private final DeferredParallelism parallelism = new DeferredParallelism();
+
+	@Test
+	public void scatterShouldStartTheNextChunkBeforeConsumingTheLast() {
+		double[] all = new double[COUNT];
+		for (int index = 0; index < COUNT; index++) {
+			all[index] = index;
+		}
+		List<String> events = parallelism.events;
+		double[] part = new double[COUNT];
+		assertEquals(0, parallelism.scatterStreaming((rank, offset, chunk) -> chunk
+			.put(all, (int) offset, chunk.remaining()), COUNT, CHUNK_SIZE, (rank,
+				offset, chunk) -> {
+				events.add("consume " + offset / CHUNK_SIZE);
+				chunk.get(part, (int) offset, chunk.remaining());
+			}, 0));
+
+		assertEquals(expectedEvents(), events);
+		assertBuffersAlternate();
+		// A set overwritten before its transfer was waited for would show here:
+		assertArrayEquals(all, part, 0);
+	}
+
+	@Test
+	public void gatherShouldStartTheNextChunkBeforeConsumingTheLast() {
+		double[] part = new double[COUNT];
+		for (int index = 0; index < COUNT; index++) {
+			part[index] = 2 * index;
+		}
+		List<String> events = parallelism.events;
+		double[] gathered = new double[COUNT];
+		assertEquals(0, parallelism.gatherStreaming((rank, offset, chunk) -> chunk
+			.put(part, (int) offset, chunk.remaining()), COUNT, CHUNK_SIZE, (rank,
+				offset, chunk) -> {
+				events.add("consume " + offset / CHUNK_SIZE);
+				chunk.get(gathered, (int) offset, chunk.remaining());
+			}, 0));
+
+		assertEquals(expectedEvents(), events);
+		assertBuffersAlternate();
+		assertArrayEquals(part, gathered, 0);
+	}
+
+	// Chunk c is started before chunk c - 1 is waited for and consumed:
+	private static List<String> expectedEvents() {
+		return Arrays.asList("start 0", "start 1", "wait 0", "consume 0",
+			"start 2", "wait 1", "consume 1", "start 3", "wait 2", "consume 2",
+			"wait 3", "consume 3");
+	}
+
+	private void assertBuffersAlternate() {
+		List<DoubleBuffer[]> sets = parallelism.buffers;
+		assertEquals(4, sets.size());
+		for (int chunk = 1; chunk < sets.size(); chunk++) {
+			for (int buffer = 0; buffer < 2; buffer++) {
+				assertNotSame(sets.get(chunk - 1)[buffer], sets.get(chunk)[buffer]);
+				if (chunk >= 2) {
+					assertSame(sets.get(chunk - 2)[buffer], sets.get(chunk)[buffer]);
+				}
+			}
+		}
+	}
+
+	// A single rank whose non-blocking transfers only happen when they are
+	// waited for, as a slow network would do:
+	private static class DeferredParallelism extends SharedMemoryParallelism {
+
+		private final List<String> events = new ArrayList<>();
+
+		// The send and receive buffer of every started chunk:
+		private final List<DoubleBuffer[]> buffers = new ArrayList<>();
+
+		private DeferredParallelism() {
+			super(1);
+		}
+
+		@Override
+		protected Object iScatterBuffer(DoubleBuffer sendBuffer, int sendCount,
+			DoubleBuffer receiveBuffer, int receiveCount, int root)
+		{
+			return start(sendBuffer, receiveBuffer, () -> scatterBuffer(sendBuffer,
+				sendCount, receiveBuffer, receiveCount, root));
+		}
+
+		@Override
+		protected Object iGatherBuffer(DoubleBuffer sendBuffer, int sendCount,
+			DoubleBuffer receiveBuffer, int receiveCount, int root)
+		{
+			return start(sendBuffer, receiveBuffer, () -> gatherBuffer(sendBuffer,
+				sendCount, receiveBuffer, receiveCount, root));
+		}
+
+		private Object start(DoubleBuffer sendBuffer, DoubleBuffer receiveBuffer,
+			Runnable transfer)
+		{
+			int chunk = buffers.size();
+			events.add("start " + chunk);
+			buffers.add(new DoubleBuffer[] { sendBuffer, receiveBuffer });
+			return new DeferredRequest(chunk, transfer);
+		}
+
+		@Override
+		protected boolean testRequest(Object request) {
+			return false;
+		}
+
+		@Override
+		protected int waitForRequest(Object request) {
+			DeferredRequest deferred = (DeferredRequest) request;
+			events.add("wait " + deferred.chunk);
+			deferred.transfer.run();
+			return 0;
+		}
+	}
+
+	private static class DeferredRequest {
+
+		private final int chunk;
+
+		private final Runnable transfer;
+
+		private DeferredRequest(int chunk, Runnable transfer) {
+			this.chunk = chunk;
+			this.transfer = transfer;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cz.it4i.fiji.parallel_macro.FileSet;
+
+public class FileSetTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File createFile(String path, int size) throws IOException {
+		File file = new File(folder.getRoot(), path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), new byte[size]);
+		return file;
+	}
+
+	@Test
+	public void scanShouldFindMatchingFilesInAllSubdirectories()
+		throws IOException
+	{
+		File first = createFile("a/b/first.tif", 10);
+		File second = createFile("a/second.tif", 20);
+		File third = createFile("c/d/e/third.tif", 30);
+		createFile("a/notes.txt", 40);
+
+		FileSet fileSet = FileSet.scan(folder.getRoot().toPath(), "*.tif", 3);
+		assertArrayEquals(new String[] { first.getPath(), second.getPath(), third
+			.getPath() }, fileSet.getPaths());
+		assertArrayEquals(new long[] { 10, 20, 30 }, fileSet.getSizes());
+
+		assertEquals(4, FileSet.scan(folder.getRoot().toPath(), "", 1)
+			.getPaths().length);
+	}
+}
@@ -0,0 +1,25 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import java.io.File;
+
+// Runs a job in another JVM with the class path of the tests, for what holds
+// for a whole JVM, e.g. the backend of ParallelMacro or a job that ends the
+// JVM. The arguments follow the class path, i.e. the settings and the class:
+final class ForkedJvm {
+
+	static int run(File directory, String... arguments) throws Exception {
+		String[] command = new String[arguments.length + 3];
+		command[0] = System.getProperty("java.home") + File.separator + "bin" +
+			File.separator + "java";
+		command[1] = "-cp";
+		command[2] = System.getProperty("java.class.path");
+		System.arraycopy(arguments, 0, command, 3, arguments.length);
+		Process process = new ProcessBuilder(command).directory(directory)
+			.inheritIO().start();
+		return process.waitFor();
+	}
+
+	private ForkedJvm() {
+		// Empty private constructor to hide default public one.
+	}
+}
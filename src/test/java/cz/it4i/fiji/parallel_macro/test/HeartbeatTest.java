@@ -0,0 +1,102 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cz.it4i.fiji.parallel_macro.Heartbeat;
+import cz.it4i.fiji.parallel_macro.SharedMemoryParallelism;
+
+public class HeartbeatTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void disableHeartbeat() throws IOException {
+		Heartbeat.setInterval(0);
+		for (int rank = 0; rank < 3; rank++) {
+			Files.deleteIfExists(Paths.get("heartbeat_" + rank + ".hb"));
+		}
+	}
+
+	@Test
+	public void heartbeatShouldShowTheCollectiveOfTheRank() throws Exception {
+		Heartbeat.setInterval(100);
+		Job.run(new SharedMemoryParallelism(3));
+		for (int rank = 0; rank < 3; rank++) {
+			String[] fields = heartbeat("heartbeat_" + rank + ".hb");
+			assertEquals("1", fields[1]);
+			assertEquals("finalised", fields[2]);
+		}
+	}
+
+	// The timeout ends the JVM, so the job runs in another one, in the
+	// temporary folder:
+	@Test
+	public void timeoutShouldEndTheJob() throws Exception {
+		assertEquals(1, ForkedJvm.run(folder.getRoot(),
+			"-Dparallel_macro.heartbeat.interval=100",
+			"-Dparallel_macro.heartbeat.timeout=300",
+			"-Dparallel_macro.heartbeat.abort=true", Job.class.getName()));
+	}
+
+	private static String[] heartbeat(String path) throws Exception {
+		return new String(Files.readAllBytes(Paths.get(path)),
+			StandardCharsets.UTF_8).trim().split(",");
+	}
+
+	public static class Job {
+
+		public static void main(String[] args) {
+			// A failed check ends with 2, the timeout with 1:
+			SharedMemoryParallelism parallelism = new SharedMemoryParallelism(3);
+			try {
+				run(parallelism);
+			}
+			catch (RuntimeException | AssertionError exc) {
+				exc.printStackTrace();
+				System.exit(2);
+			}
+			System.exit(0);
+		}
+
+		private static void run(SharedMemoryParallelism parallelism) {
+			parallelism.execute(() -> {
+				int rank = parallelism.getRank();
+				Heartbeat.start(rank, parallelism.getSize());
+				if (rank == 2) {
+					// The others wait in the barrier meanwhile:
+					sleep(1000);
+					try {
+						String[] fields = heartbeat("heartbeat_0.hb");
+						assertEquals("1", fields[1]);
+						assertEquals("barrier", fields[2]);
+					}
+					catch (Exception exc) {
+						throw new IllegalStateException(exc);
+					}
+				}
+				parallelism.barrier();
+				Heartbeat.stop();
+			});
+		}
+
+		private static void sleep(long milliseconds) {
+			try {
+				Thread.sleep(milliseconds);
+			}
+			catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cz.it4i.fiji.parallel_macro.ImbalanceProfiler;
+import cz.it4i.fiji.parallel_macro.SharedMemoryParallelism;
+
+public class ImbalanceProfilerTest {
+
+	@After
+	public void disableProfile() throws IOException {
+		ImbalanceProfiler.setEnabled(false);
+		Files.deleteIfExists(Paths.get("imbalance.txt"));
+	}
+
+	@Test
+	public void reportShouldShowTheImbalanceOfEveryPhase() throws Exception {
+		ImbalanceProfiler.setEnabled(true);
+		SharedMemoryParallelism parallelism = new SharedMemoryParallelism(3);
+		parallelism.execute(() -> {
+			ImbalanceProfiler.start();
+			ImbalanceProfiler.setLabel("load");
+			sleep(100 * (parallelism.getRank() + 1));
+			parallelism.barrier();
+
+			ImbalanceProfiler.setLabel(null);
+			parallelism.barrier();
+			parallelism.barrier();
+			ImbalanceProfiler.report(parallelism);
+		});
+
+		List<String> report = Files.readAllLines(Paths.get("imbalance.txt"),
+			StandardCharsets.UTF_8);
+		assertEquals("ranks 3", report.get(0));
+
+		// The ranks compute for 100, 200 and 300 ms, 1.5 times the mean at most:
+		String[] load = phase(report, "load");
+		assertEquals("1", load[1]);
+		double imbalance = Double.parseDouble(load[4]);
+		assertTrue("Imbalance " + imbalance, imbalance > 1.3 && imbalance < 1.7);
+		double maximumWait = Double.parseDouble(load[5]);
+		assertTrue("Wait " + maximumWait, maximumWait > 0.15);
+
+		// Phases without a label are named by the collective:
+		assertEquals("2", phase(report, "barrier")[1]);
+	}
+
+	private static String[] phase(List<String> report, String name) {
+		for (String line : report) {
+			String[] fields = line.trim().split(" +");
+			if (fields[0].equals(name)) {
+				return fields;
+			}
+		}
+		fail("No phase " + name);
+		return null;
+	}
+
+	private static void sleep(long milliseconds) {
+		try {
+			Thread.sleep(milliseconds);
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
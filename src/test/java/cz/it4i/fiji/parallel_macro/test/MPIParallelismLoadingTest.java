@@ -0,0 +1,32 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import cz.it4i.fiji.parallel_macro.Configuration;
+import cz.it4i.fiji.parallel_macro.MPIParallelism;
+import cz.it4i.fiji.parallel_macro.MpiJarLocator;
+
+public class MPIParallelismLoadingTest {
+
+	@Test
+	public void rankBeforeInitialisationShouldComeFromTheLauncher() {
+		MPIParallelism parallelism = new MPIParallelism();
+		assertEquals(Configuration.getLauncherRank(), parallelism.getRank());
+		assertEquals(Configuration.getLauncherSize(), parallelism.getSize());
+		assertEquals(0, parallelism.finalise());
+	}
+
+	@Test
+	public void missingOpenMpiShouldBeReportedAsAnErrorCode() {
+		assumeTrue(MpiJarLocator.find() == null);
+
+		MPIParallelism parallelism = new MPIParallelism();
+		assertEquals(-1, parallelism.initialise());
+		// The failed search is not repeated:
+		assertEquals(-1, new MPIParallelism().initialise());
+		assertEquals(-1, parallelism.barrier());
+	}
+}
@@ -3,18 +3,23 @@ package cz.it4i.fiji.parallel_macro.test;
 import static org.junit.Assert.*;
 
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
-import cz.it4i.fiji.parallel_macro.MPIParallelism;
 import cz.it4i.fiji.parallel_macro.Parallelism;
+import cz.it4i.fiji.parallel_macro.ParallelismFactory;
+import cz.it4i.fiji.parallel_macro.SharedMemoryParallelism;
 
 public class MPIParallelizationTest {
-	private static Parallelism parallelism = new MPIParallelism();
+	private static Parallelism parallelism = ParallelismFactory.create();
 	
+	// Without OpenMPI the tests are skipped instead of failing on the zeros
+	// returned by the failed calls:
 	@BeforeClass
 	public static void initializeMPI() {
-		parallelism.initialise();
+		Assume.assumeTrue("The parallelism could not be initialised.",
+			parallelism.initialise() == 0);
 	}
 	
 	@AfterClass
@@ -22,25 +27,80 @@ public class MPIParallelizationTest {
 		parallelism.finalise();
 	}
 	
+	// The ranks of MPI are the processes started by mpirun, those of the shared
+	// memory backend (-Dparallel_macro.backend=shared) are threads that are
+	// started here, "shared.ranks" of them:
+	private static void onAllRanks(Runnable checks) {
+		if (parallelism instanceof SharedMemoryParallelism) {
+			((SharedMemoryParallelism) parallelism).execute(checks);
+		}
+		else {
+			checks.run();
+		}
+	}
+
 	@Test
 	public void getRankAndSizeTest() {
-		int rank = parallelism.getRank();
-		int size = parallelism.getSize();
-		assertTrue(rank >= 0 && size >= 1);
+		onAllRanks(() -> {
+			int rank = parallelism.getRank();
+			int size = parallelism.getSize();
+			assertTrue(rank >= 0 && rank < size);
+		});
 	}
 
 	@Test
 	public void scatterShouldWorkWithNumbersStringAndBooleanTest() {
-		int rank = parallelism.getRank();
-		
-		// Numbers:
-		String sendString = "0, 1, 2, 3";
-		String receivedString = parallelism.scatter(sendString, 1, 1, 0);
-		assertTrue((rank+".0").equals(receivedString));
-		
-		// String:
+		onAllRanks(() -> {
+			int rank = parallelism.getRank();
+
+			// Numbers, one per rank:
+			StringBuilder sendString = new StringBuilder("0");
+			for (int index = 1; index < parallelism.getSize(); index++) {
+				sendString.append(", ").append(index);
+			}
+			String receivedString = parallelism.scatter(sendString.toString(), 1, 1,
+				0);
+			assertEquals(rank + ".0", receivedString);
+
+			// String:
 
-		// Boolean:
+			// Boolean:
+		});
 	}
 
+	@Test
+	public void allReduceShouldCombineTheValuesOfAllRanks() {
+		onAllRanks(() -> {
+			int size = parallelism.getSize();
+
+			String sum = parallelism.allReduce("1, 2", "sum");
+			assertEquals(size + ".0, " + 2 * size + ".0", sum);
+
+			String maximum = parallelism.allReduce(String.valueOf(parallelism
+				.getRank()), "max");
+			assertEquals((size - 1) + ".0", maximum);
+		});
+	}
+
+	@Test
+	public void broadcastShouldSendTheArrayOfTheRootToAllRanks() {
+		onAllRanks(() -> {
+			int[] received = parallelism.broadcast(new int[] { 4, 2 }, 2, 0);
+			assertArrayEquals(new int[] { 4, 2 }, received);
+		});
+	}
+
+	@Test
+	public void nonBlockingAllReduceShouldCompleteOnWait() {
+		onAllRanks(() -> {
+			int size = parallelism.getSize();
+
+			int handle = parallelism.iAllReduce("1", "sum");
+			int barrier = parallelism.iBarrier();
+			assertEquals(0, parallelism.waitAll());
+			assertTrue(parallelism.test(barrier));
+			assertEquals(size + ".0", parallelism.waitFor(handle));
+			assertEquals("", parallelism.waitFor(barrier));
+		});
+	}
 }
@@ -0,0 +1,104 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cz.it4i.fiji.parallel_macro.AsynchronousProgressLogging;
+import cz.it4i.fiji.parallel_macro.FileProgressLogging;
+import cz.it4i.fiji.parallel_macro.Metrics;
+import cz.it4i.fiji.parallel_macro.ProgressLogging;
+import cz.it4i.fiji.parallel_macro.SharedMemoryParallelism;
+
+public class MetricsTest {
+
+	@After
+	public void disableMetrics() throws IOException {
+		Metrics.setEnabled(false);
+		for (int rank = 0; rank < 3; rank++) {
+			Files.deleteIfExists(Paths.get("metrics_" + rank + ".txt"));
+			Files.deleteIfExists(Paths.get("progress_" + rank + ".plog"));
+		}
+		Files.deleteIfExists(Paths.get("metrics_summary.txt"));
+	}
+
+	@Test
+	public void disabledMetricsShouldWriteNothing() {
+		assertFalse(Metrics.isEnabled());
+		Metrics.report(new SharedMemoryParallelism(1));
+		assertFalse(new File("metrics_0.txt").exists());
+	}
+
+	@Test
+	public void finaliseShouldWriteTheRankFileAndTheSummary() throws Exception {
+		Metrics.setEnabled(true);
+		ProgressLogging progressLogging = new FileProgressLogging();
+		progressLogging.addTask("task");
+		progressLogging.reportTasks(0, 1);
+		for (int progress = 1; progress <= 3; progress++) {
+			progressLogging.reportProgress(0, progress, 0);
+		}
+		progressLogging.finalise();
+		Metrics.report(new SharedMemoryParallelism(1));
+
+		List<String> rankFile = Files.readAllLines(Paths.get("metrics_0.txt"),
+			StandardCharsets.UTF_8);
+		assertTrue(rankFile.get(0).startsWith("operation"));
+		String[] progressWrites = rankFile.get(1).trim().split(" +");
+		assertEquals("progress_write", progressWrites[0]);
+		assertEquals("3", progressWrites[1]);
+
+		List<String> summary = Files.readAllLines(Paths.get(
+			"metrics_summary.txt"), StandardCharsets.UTF_8);
+		assertEquals("ranks 1", summary.get(0));
+		assertTrue(summary.stream().anyMatch(line -> Arrays.asList(line.trim()
+			.split(" +")).equals(Arrays.asList("progress_write", "calls", "3.00000",
+				"3.00000", "3.00000"))));
+	}
+
+	@Test
+	public void everyRankShouldCountItsOwnCalls() throws Exception {
+		Metrics.setEnabled(true);
+		SharedMemoryParallelism parallelism = new SharedMemoryParallelism(3);
+		parallelism.execute(() -> {
+			// Rank r writes r + 1 records, on the background writer of its log:
+			int rank = parallelism.getRank();
+			ProgressLogging progressLogging = new AsynchronousProgressLogging(
+				new FileProgressLogging(), 16,
+				AsynchronousProgressLogging.Backpressure.BLOCK);
+			for (int task = 0; task <= rank; task++) {
+				progressLogging.addTask("task " + task);
+			}
+			progressLogging.reportTasks(rank, 3);
+			for (int task = 0; task <= rank; task++) {
+				progressLogging.reportProgress(task, 100, rank);
+			}
+			progressLogging.finalise();
+			Metrics.report(parallelism);
+		});
+
+		for (int rank = 0; rank < 3; rank++) {
+			List<String> rankFile = Files.readAllLines(Paths.get("metrics_" + rank +
+				".txt"), StandardCharsets.UTF_8);
+			String[] progressWrites = rankFile.get(1).trim().split(" +");
+			assertEquals("progress_write", progressWrites[0]);
+			assertEquals(String.valueOf(rank + 1), progressWrites[1]);
+		}
+
+		List<String> summary = Files.readAllLines(Paths.get(
+			"metrics_summary.txt"), StandardCharsets.UTF_8);
+		assertEquals("ranks 3", summary.get(0));
+		assertTrue(summary.stream().anyMatch(line -> Arrays.asList(line.trim()
+			.split(" +")).equals(Arrays.asList("progress_write", "calls", "1.00000",
+				"2.00000", "3.00000"))));
+	}
+}
@@ -0,0 +1,75 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cz.it4i.fiji.parallel_macro.MpiJarLocator;
+
+public class MpiJarLocatorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File createJar(String directory) throws IOException {
+		File jar = new File(folder.getRoot(), directory + "/mpi.jar");
+		jar.getParentFile().mkdirs();
+		jar.createNewFile();
+		return jar;
+	}
+
+	private File cacheFile() {
+		return new File(folder.getRoot(), "cache/mpi-jar.cache");
+	}
+
+	@Test
+	public void overrideShouldWinOverTheLibraryPath() throws IOException {
+		File override = createJar("override");
+		createJar("openmpi/lib");
+		assertEquals(override.getPath(), MpiJarLocator.find(override.getPath(),
+			folder.getRoot() + "/openmpi/lib", "", cacheFile(), 4));
+	}
+
+	@Test
+	public void jarShouldBeFoundInTheLibSiblingOfPathEntries()
+		throws IOException
+	{
+		File jar = createJar("openmpi/lib");
+		new File(folder.getRoot(), "openmpi/lib64").mkdirs();
+		new File(folder.getRoot(), "openmpi/bin").mkdirs();
+
+		assertEquals(jar.getPath(), MpiJarLocator.find(null, folder.getRoot() +
+			"/openmpi/lib64", "", cacheFile(), 0));
+		assertEquals(jar.getPath(), MpiJarLocator.find(null, "", folder.getRoot() +
+			"/openmpi/bin", new File(folder.getRoot(), "other.cache"), 0));
+	}
+
+	@Test
+	public void walkShouldStopAtTheSearchDepth() throws IOException {
+		createJar("libraries/a/b/c/d/e");
+		String libraryPath = folder.getRoot() + "/libraries";
+
+		assertNull(MpiJarLocator.find(null, libraryPath, "", cacheFile(), 3));
+		assertNotNull(MpiJarLocator.find(null, libraryPath, "", cacheFile(), 6));
+	}
+
+	@Test
+	public void cacheShouldBeUsedUntilTheJarChanges() throws IOException {
+		File jar = createJar("libraries/a/b");
+		String libraryPath = folder.getRoot() + "/libraries";
+		assertEquals(jar.getPath(), MpiJarLocator.find(null, libraryPath, "",
+			cacheFile(), 4));
+
+		// Found in the cache although the walk would not reach it:
+		assertEquals(jar.getPath(), MpiJarLocator.find(null, libraryPath, "",
+			cacheFile(), 0));
+
+		assertTrue(jar.setLastModified(jar.lastModified() - 60000));
+		assertNull(MpiJarLocator.find(null, libraryPath, "", cacheFile(), 0));
+	}
+}
@@ -0,0 +1,63 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import cz.it4i.fiji.parallel_macro.PartitionSchedule;
+import cz.it4i.fiji.parallel_macro.Partitioner;
+
+public class PartitionerTest {
+
+	@Test
+	public void balancedBlocksShouldDifferByOneItemAtMost() {
+		// 9 views on 8 ranks:
+		assertArrayEquals(new int[] { 0, 1 }, Partitioner.items(9, 0, 8,
+			PartitionSchedule.BLOCK, 1));
+		for (int rank = 1; rank < 8; rank++) {
+			assertArrayEquals(new int[] { rank + 1 }, Partitioner.items(9, rank, 8,
+				PartitionSchedule.BLOCK, 1));
+		}
+	}
+
+	@Test
+	public void cyclicScheduleShouldDealItemsInTurn() {
+		assertArrayEquals(new int[] { 1, 4, 7 }, Partitioner.items(9, 1, 3,
+			PartitionSchedule.CYCLIC, 1));
+		assertArrayEquals(new int[] { 2, 3, 6, 7 }, Partitioner.items(10, 1, 2,
+			PartitionSchedule.BLOCK_CYCLIC, 2));
+		assertEquals(PartitionSchedule.BLOCK_CYCLIC, PartitionSchedule.fromName(
+			"block-cyclic"));
+	}
+
+	@Test
+	public void weightedScheduleShouldBalanceTheCosts() {
+		double[] costs = { 50, 50, 50, 50, 5000, 50, 50 };
+		assertArrayEquals(new int[] { 0, 1, 2, 3 }, Partitioner.weightedItems(
+			costs, 0, 2));
+		assertArrayEquals(new int[] { 4, 5, 6 }, Partitioner.weightedItems(costs,
+			1, 2));
+
+		// Every item belongs to exactly one rank:
+		int assigned = 0;
+		for (int rank = 0; rank < 4; rank++) {
+			assigned += Partitioner.weightedItems(costs, rank, 4).length;
+		}
+		assertEquals(costs.length, assigned);
+	}
+
+	@Test
+	public void longestProcessingTimeShouldBalanceTheBytes() {
+		// Two large files in a row would end up on the same rank by count:
+		double[] costs = { 50, 5000, 50, 50, 5000, 50 };
+		int[] owners = Partitioner.longestProcessingTimeOwners(costs, 2);
+		assertArrayEquals(new int[] { 0, 0, 1, 0, 1, 1 }, owners);
+		assertEquals(1, Partitioner.imbalance(costs, owners, 2), 1e-9);
+
+		// A single file on one of 3 ranks is 3 times the mean:
+		owners = Partitioner.longestProcessingTimeOwners(new double[] { 6 }, 3);
+		assertArrayEquals(new int[] { 0 }, owners);
+		assertEquals(3, Partitioner.imbalance(new double[] { 6 }, owners, 3),
+			1e-9);
+	}
+}
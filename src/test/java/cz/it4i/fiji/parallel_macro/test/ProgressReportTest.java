@@ -1,10 +1,25 @@
 package cz.it4i.fiji.parallel_macro.test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import cz.it4i.fiji.parallel_macro.AggregatedProgressLogging;
+import cz.it4i.fiji.parallel_macro.AsynchronousProgressLogging;
+import cz.it4i.fiji.parallel_macro.FileProgressLogging;
 import cz.it4i.fiji.parallel_macro.ProgressLogging;
+import cz.it4i.fiji.parallel_macro.SharedMemoryParallelism;
 import cz.it4i.fiji.parallel_macro.XmlProgressLogging;
 
 public class ProgressReportTest {
@@ -59,4 +74,303 @@ public class ProgressReportTest {
 		int id = progressLogging.addTask("Task three.");
 		assertEquals(2, id);
 	}
+
+	@Test
+	public void pendingProgressShouldBeWrittenOnFinalise() throws IOException {
+		int rank = 0;
+		int size = 8;
+
+		int id = progressLogging.addTask("A task");
+		progressLogging.reportTasks(rank, size);
+		progressLogging.reportProgress(id, 10, rank);
+		progressLogging.reportProgress(id, 50, rank);
+		progressLogging.finalise();
+
+		String content = new String(Files.readAllBytes(Paths.get(
+			"progress_0.plog")));
+		assertTrue(content.contains("<progress>50</progress>"));
+	}
+
+	@Test
+	public void failedWriteShouldBeRetriedOnFinalise() throws IOException {
+		int rank = 0;
+		int size = 8;
+
+		int id = progressLogging.addTask("A task");
+		progressLogging.reportTasks(rank, size);
+
+		// A directory in place of the progress file makes the write fail:
+		Path progressFile = Paths.get("progress_0.plog");
+		Files.delete(progressFile);
+		Files.createDirectory(progressFile);
+		Files.createFile(progressFile.resolve("blocker"));
+		progressLogging.reportProgress(id, 100, rank);
+		Files.delete(progressFile.resolve("blocker"));
+		Files.delete(progressFile);
+		progressLogging.finalise();
+
+		String content = new String(Files.readAllBytes(progressFile));
+		assertTrue(content.contains("<progress>100</progress>"));
+	}
+
+	@Test
+	public void pendingProgressShouldBeWrittenAfterTheFlushInterval()
+		throws Exception
+	{
+		int rank = 0;
+		int size = 8;
+
+		int id = progressLogging.addTask("A task");
+		progressLogging.reportTasks(rank, size);
+		progressLogging.reportProgress(id, 50, rank);
+		String content = new String(Files.readAllBytes(Paths.get(
+			"progress_0.plog")));
+		assertFalse(content.contains("<progress>50</progress>"));
+
+		// No more reports, the default interval is a second:
+		Thread.sleep(2000);
+		content = new String(Files.readAllBytes(Paths.get("progress_0.plog")));
+		assertTrue(content.contains("<progress>50</progress>"));
+		progressLogging.finalise();
+	}
+
+	@Test
+	public void asynchronousProgressShouldKeepTheLatestPercentage()
+		throws IOException
+	{
+		int rank = 0;
+		int size = 8;
+
+		ProgressLogging asynchronousLogging = new AsynchronousProgressLogging(
+			new XmlProgressLogging(), 1,
+			AsynchronousProgressLogging.Backpressure.DROP);
+		int first = asynchronousLogging.addTask("First task");
+		int second = asynchronousLogging.addTask("Second task");
+		asynchronousLogging.reportTasks(rank, size);
+		for (int progress = 0; progress <= 100; progress++) {
+			asynchronousLogging.reportProgress(first, progress, rank);
+			asynchronousLogging.reportProgress(second, progress, rank);
+		}
+		asynchronousLogging.finalise();
+
+		// Intermediate updates may be dropped but never the finished ones:
+		String content = new String(Files.readAllBytes(Paths.get(
+			"progress_0.plog")));
+		assertEquals(2, content.split("<progress>100</progress>", -1).length -
+			1);
+	}
+
+	@Test
+	public void fileProgressLogShouldKeepItsLineFormat() throws IOException {
+		int rank = 0;
+		int size = 8;
+
+		ProgressLogging fileProgressLogging = new FileProgressLogging();
+		int id = fileProgressLogging.addTask("A task");
+		fileProgressLogging.reportTasks(rank, size);
+		fileProgressLogging.reportProgress(id, 10, rank);
+		fileProgressLogging.reportProgress(id, 100, rank);
+		fileProgressLogging.finalise();
+
+		List<String> lines = Files.readAllLines(Paths.get("progress_0.plog"));
+		assertEquals(5, lines.size());
+		assertEquals("8", lines.get(0));
+		assertEquals(13, lines.get(1).length());
+		assertEquals("0,A task", lines.get(2));
+		assertEquals("0,10", lines.get(3));
+		assertEquals("0,100", lines.get(4));
+	}
+
+	@Test
+	public void aggregatedProgressLogShouldHaveALinePerRank()
+		throws IOException
+	{
+		SharedMemoryParallelism parallelism = new SharedMemoryParallelism(3);
+		parallelism.execute(() -> {
+			int rank = parallelism.getRank();
+			ProgressLogging aggregatedLogging = new AggregatedProgressLogging(
+				parallelism);
+			int first = aggregatedLogging.addTask("First task");
+			aggregatedLogging.addTask("Second task");
+			aggregatedLogging.reportTasks(rank, parallelism.getSize());
+			aggregatedLogging.reportProgress(first, 10, rank);
+			aggregatedLogging.reportProgress(first, 10 * (rank + 1), rank);
+			aggregatedLogging.finalise();
+		});
+
+		// Tasks without a report yet are -1:
+		List<String> lines = Files.readAllLines(Paths.get("progress_job.plog"));
+		Files.delete(Paths.get("progress_job.plog"));
+		assertEquals(7, lines.size());
+		assertEquals("3", lines.get(0));
+		assertEquals("0,First task", lines.get(2));
+		assertEquals("1,Second task", lines.get(3));
+		assertEquals("0,10,-1", lines.get(4));
+		assertEquals("1,20,-1", lines.get(5));
+		assertEquals("2,30,-1", lines.get(6));
+	}
+
+	@Test
+	public void aggregatedProgressLogShouldHandleUnequalNumbersOfTasks()
+		throws IOException
+	{
+		SharedMemoryParallelism parallelism = new SharedMemoryParallelism(3);
+		parallelism.execute(() -> {
+			int rank = parallelism.getRank();
+			ProgressLogging aggregatedLogging = new AggregatedProgressLogging(
+				parallelism);
+
+			// Rank r has r + 1 tasks:
+			for (int task = 0; task <= rank; task++) {
+				aggregatedLogging.addTask("Task " + task + " of rank " + rank);
+			}
+			aggregatedLogging.reportTasks(rank, parallelism.getSize());
+			for (int task = 0; task <= rank; task++) {
+				assertEquals(0, aggregatedLogging.reportProgress(task, 10 * rank +
+					task, rank));
+			}
+			aggregatedLogging.finalise();
+		});
+
+		List<String> lines = Files.readAllLines(Paths.get("progress_job.plog"));
+		Files.delete(Paths.get("progress_job.plog"));
+		assertEquals(8, lines.size());
+		assertEquals("0,Task 0 of rank 0", lines.get(2));
+		assertEquals("1,Task 1 of rank 1", lines.get(3));
+		assertEquals("2,Task 2 of rank 2", lines.get(4));
+		assertEquals("0,0,-1,-1", lines.get(5));
+		assertEquals("1,10,11,-1", lines.get(6));
+		assertEquals("2,20,21,22", lines.get(7));
+	}
+
+	@Test
+	public void aggregatedProgressLogShouldNotWaitForARankWithoutTasks()
+		throws IOException
+	{
+		SharedMemoryParallelism parallelism = new SharedMemoryParallelism(3);
+		parallelism.execute(() -> {
+			int rank = parallelism.getRank();
+			ProgressLogging aggregatedLogging = new AggregatedProgressLogging(
+				parallelism);
+			if (rank != 1) {
+				int task = aggregatedLogging.addTask("A task");
+				aggregatedLogging.reportTasks(rank, parallelism.getSize());
+				aggregatedLogging.reportProgress(task, 50, rank);
+			}
+			else {
+				aggregatedLogging.reportTasks(rank, parallelism.getSize());
+				assertEquals(-1, aggregatedLogging.reportProgress(0, 50, rank));
+			}
+			aggregatedLogging.finalise();
+		});
+
+		List<String> lines = Files.readAllLines(Paths.get("progress_job.plog"));
+		Files.delete(Paths.get("progress_job.plog"));
+		assertEquals(6, lines.size());
+		assertEquals("0,A task", lines.get(2));
+		assertEquals("0,50", lines.get(3));
+		assertEquals("1,-1", lines.get(4));
+		assertEquals("2,50", lines.get(5));
+	}
+
+	@Test
+	public void asynchronousProgressLogShouldReturnTheSynchronousCodes() {
+		int rank = 0;
+		int size = 8;
+
+		ProgressLogging asynchronousLogging = new AsynchronousProgressLogging(
+			new XmlProgressLogging(), 16,
+			AsynchronousProgressLogging.Backpressure.BLOCK);
+		int id = asynchronousLogging.addTask("A task");
+		assertEquals(-1, asynchronousLogging.reportProgress(id, 10, rank));
+		asynchronousLogging.reportTasks(rank, size);
+		assertEquals(-1, asynchronousLogging.reportProgress(id + 1, 10, rank));
+		assertEquals(0, asynchronousLogging.reportProgress(id, 10, rank));
+		assertEquals(-1, asynchronousLogging.reportProgress(id, 10, rank));
+		assertEquals(10, asynchronousLogging.reportProgress(id, 101, rank));
+		asynchronousLogging.finalise();
+	}
+
+	@Test
+	public void asynchronousProgressLogShouldKeepTheStartOfATimedTask()
+		throws InterruptedException
+	{
+		int rank = 0;
+		int size = 8;
+
+		// Holds the writer in the first task until the second one is finished:
+		RecordingProgressLogging recording = new RecordingProgressLogging();
+		ProgressLogging asynchronousLogging = new AsynchronousProgressLogging(
+			recording, 16, AsynchronousProgressLogging.Backpressure.BLOCK);
+		asynchronousLogging.enableTiming();
+		int first = asynchronousLogging.addTask("First task");
+		int second = asynchronousLogging.addTask("Second task");
+		asynchronousLogging.reportTasks(rank, size);
+		asynchronousLogging.reportProgress(first, 0, rank);
+		recording.writing.await();
+		long beforeStart = System.nanoTime();
+		asynchronousLogging.reportProgress(second, 0, rank);
+		long afterStart = System.nanoTime();
+		asynchronousLogging.reportProgress(second, 100, rank);
+		recording.release.countDown();
+		asynchronousLogging.finalise();
+
+		// The start is written with the time it was reported:
+		assertEquals(3, recording.reports.size());
+		assertArrayEquals(new long[] { second, 0 }, new long[] { recording.reports
+			.get(1)[0], recording.reports.get(1)[1] });
+		assertTrue(recording.reports.get(1)[2] >= beforeStart);
+		assertTrue(recording.reports.get(1)[2] <= afterStart);
+		assertArrayEquals(new long[] { second, 100 }, new long[] {
+			recording.reports.get(2)[0], recording.reports.get(2)[1] });
+	}
+
+	// Records the task, progress and report time of every written update:
+	private static class RecordingProgressLogging implements ProgressLogging {
+
+		private final List<long[]> reports = new ArrayList<>();
+		private final CountDownLatch writing = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		private int numberOfTasks = 0;
+
+		@Override
+		public int addTask(String description) {
+			return numberOfTasks++;
+		}
+
+		@Override
+		public void reportTasks(int rank, int size) {
+			// Nothing to write.
+		}
+
+		@Override
+		public int reportProgress(int taskId, int progress, int rank) {
+			return reportProgress(taskId, progress, rank, System.nanoTime());
+		}
+
+		@Override
+		public int reportProgress(int taskId, int progress, int rank,
+			long reportNanos)
+		{
+			reports.add(new long[] { taskId, progress, reportNanos });
+			writing.countDown();
+			try {
+				release.await();
+			}
+			catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			}
+			return 0;
+		}
+
+		@Override
+		public void enableTiming() {
+			// The report times are always recorded.
+		}
+
+		@Override
+		public void finalise() {
+			// Nothing to close.
+		}
+	}
 }
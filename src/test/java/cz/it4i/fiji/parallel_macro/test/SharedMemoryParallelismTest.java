@@ -0,0 +1,296 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.DoubleBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cz.it4i.fiji.parallel_macro.ParallelMacro;
+import cz.it4i.fiji.parallel_macro.ReductionOperation;
+import cz.it4i.fiji.parallel_macro.SharedMemoryLauncher;
+import cz.it4i.fiji.parallel_macro.SharedMemoryParallelism;
+
+public class SharedMemoryParallelismTest {
+
+	private static final int SIZE = 4;
+
+	private SharedMemoryParallelism parallelism = new SharedMemoryParallelism(
+		SIZE);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void threadOutsideOfExecuteShouldBeASingleRank() {
+		assertEquals(0, parallelism.getRank());
+		assertEquals(1, parallelism.getSize());
+		assertEquals("1.0, 2.0", parallelism.allReduce("1, 2", "sum"));
+	}
+
+	@Test
+	public void scatterAndGatherShouldHandOverTheParts() {
+		parallelism.execute(() -> {
+			int rank = parallelism.getRank();
+			double[] sendBuffer = null;
+			if (rank == 0) {
+				sendBuffer = new double[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+			}
+
+			// The remainder goes one element per rank to the first ranks:
+			double[] part = parallelism.scatterEqually(sendBuffer, 10, 0);
+			assertEquals(rank < 2 ? 3 : 2, part.length);
+
+			double[] gathered = parallelism.gatherEqually(part, 10, 0);
+			if (rank == 0) {
+				assertArrayEquals(sendBuffer, gathered, 0);
+			}
+			else {
+				assertEquals(0, gathered.length);
+			}
+
+			assertEquals(rank + ".0", parallelism.scatter("0, 1, 2, 3", 1, 1, 0));
+		});
+	}
+
+	@Test
+	public void collectivesShouldCombineAllRanks() {
+		parallelism.execute(() -> {
+			int rank = parallelism.getRank();
+
+			assertArrayEquals(new int[] { 6, 4 }, parallelism.allReduce(new int[] {
+				rank, 1 }, ReductionOperation.SUM));
+			assertEquals("3.0", parallelism.allReduce(String.valueOf(rank), "max"));
+			assertArrayEquals(new int[] { 7, 8 }, parallelism.broadcast(
+				new int[] { 7, 8 }, 2, 2));
+
+			// Rank r sends r elements:
+			int[] sendBuffer = new int[rank];
+			for (int index = 0; index < rank; index++) {
+				sendBuffer[index] = rank;
+			}
+			assertArrayEquals(new int[] { 1, 2, 2, 3, 3, 3 }, parallelism
+				.allGatherv(sendBuffer, rank));
+
+			// Element i of every rank goes to rank i:
+			int[] received = parallelism.allToAll(new int[] { rank * 10, rank * 10 +
+				1, rank * 10 + 2, rank * 10 + 3 }, 1);
+			assertArrayEquals(new int[] { rank, 10 + rank, 20 + rank, 30 + rank },
+				received);
+		});
+	}
+
+	@Test
+	public void waitAllShouldNotKeepTheTransfersWithoutAResult() {
+		parallelism.execute(() -> {
+			for (int iteration = 0; iteration < 100; iteration++) {
+				parallelism.iBarrier();
+				int sum = parallelism.iAllReduce(DoubleBuffer.wrap(new double[] {
+					1 }), ReductionOperation.SUM);
+				assertEquals(0, parallelism.waitAll());
+
+				// Only the result of the reduction is waiting to be collected:
+				assertEquals(1, parallelism.numberOfPendingTransfers());
+				assertEquals(SIZE, parallelism.waitForBuffer(sum).get(0), 0);
+				assertEquals(0, parallelism.numberOfPendingTransfers());
+			}
+		});
+	}
+
+	@Test
+	public void stringsShouldKeepTheirLengthAndEncoding() {
+		parallelism.execute(() -> {
+			int rank = parallelism.getRank();
+			String[] files = null;
+			if (rank == 1) {
+				files = new String[] { "a.tif", "b c.tif", "", "\u010D\u00E1p.tif",
+					"e.tif", "f.tif" };
+			}
+
+			// Blocks of 2, 2, 1 and 1 strings:
+			String[] mine = parallelism.scatterStrings(files, 1);
+			assertEquals(rank < 2 ? 2 : 1, mine.length);
+
+			String[] gathered = parallelism.gatherStrings(mine, 1);
+			if (rank == 1) {
+				assertArrayEquals(files, gathered);
+			}
+			else {
+				assertEquals(0, gathered.length);
+			}
+
+			String[] broadcasted = parallelism.broadcastStrings(files, 1);
+			assertEquals("\u010D\u00E1p.tif", broadcasted[3]);
+
+			// Any number of strings per rank:
+			String[] counted = parallelism.scattervStrings(files, new int[] { 0, 3,
+				1, 2 }, 1);
+			assertEquals(new int[] { 0, 3, 1, 2 }[rank], counted.length);
+			if (rank == 3) {
+				assertArrayEquals(new String[] { "e.tif", "f.tif" }, counted);
+			}
+
+			// Rank r sends r bytes:
+			byte[] bytes = parallelism.gatherBytes(new byte[rank], 0);
+			assertEquals(rank == 0 ? 6 : 0, bytes.length);
+
+			// A root without a buffer broadcasts an empty one:
+			assertEquals(0, parallelism.broadcastBytes(null, 2).length);
+			assertEquals(0, parallelism.broadcastStrings(null, 2).length);
+		});
+	}
+
+	@Test
+	public void workQueueShouldHandOutEveryItemOnce() {
+		AtomicInteger[] taken = new AtomicInteger[100];
+		for (int item = 0; item < taken.length; item++) {
+			taken[item] = new AtomicInteger();
+		}
+		parallelism.execute(() -> {
+			assertEquals(0, parallelism.queueInitialise(taken.length, 2));
+			int item = parallelism.nextItem();
+			while (item >= 0) {
+				taken[item].incrementAndGet();
+				item = parallelism.nextItem();
+			}
+		});
+		for (AtomicInteger count : taken) {
+			assertEquals(1, count.get());
+		}
+	}
+
+	@Test
+	public void boardShouldKeepTheLastValueOfEverySlot() {
+		parallelism.execute(() -> {
+			int rank = parallelism.getRank();
+			assertEquals(0, parallelism.boardInitialise(2 * SIZE));
+			assertEquals(0, parallelism.boardPut(2 * rank, 10));
+			assertEquals(0, parallelism.boardPut(2 * rank, 20 + rank));
+			parallelism.barrier();
+			long[] board = parallelism.boardRead();
+			if (rank == 0) {
+				for (int index = 0; index < SIZE; index++) {
+					assertEquals(20 + index, board[2 * index]);
+					assertEquals(-1, board[2 * index + 1]);
+				}
+			}
+			else {
+				assertNull(board);
+			}
+		});
+	}
+
+	@Test
+	public void chunkedScatterAndGatherShouldHandOverTheParts() {
+		parallelism.execute(() -> {
+			int rank = parallelism.getRank();
+			// Chunks of 3 do not divide the parts of 10:
+			double[] all = new double[10 * SIZE];
+			for (int index = 0; index < all.length; index++) {
+				all[index] = index;
+			}
+			double[] part = parallelism.scatterChunked(rank == 0 ? all : null, 10, 3,
+				0);
+			for (int index = 0; index < part.length; index++) {
+				assertEquals(10 * rank + index, part[index], 0);
+			}
+
+			double[] gathered = parallelism.gatherChunked(part, 3, 0);
+			if (rank == 0) {
+				assertArrayEquals(all, gathered, 0);
+			}
+			else {
+				assertEquals(0, gathered.length);
+			}
+
+			// Rank r sends 7 times r, the root consumes every chunk of every rank:
+			long[] sums = new long[SIZE];
+			assertEquals(0, parallelism.gatherStreaming((source, offset,
+				chunk) -> {
+				while (chunk.hasRemaining()) {
+					chunk.put(source);
+				}
+			}, 7, 2, (source, offset, chunk) -> {
+				assertEquals(offset == 6 ? 1 : 2, chunk.remaining());
+				while (chunk.hasRemaining()) {
+					sums[source] += (long) chunk.get();
+				}
+			}, 0));
+			if (rank == 0) {
+				for (int source = 0; source < SIZE; source++) {
+					assertEquals(7 * source, sums[source]);
+				}
+			}
+			assertEquals(-1, parallelism.scatterStreaming(null, 7, 0, null, 0));
+		});
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void failureOfARankShouldNotHangTheOthers() {
+		parallelism.execute(() -> {
+			if (parallelism.getRank() == 1) {
+				throw new IllegalArgumentException("Failed rank");
+			}
+			parallelism.barrier();
+		});
+	}
+
+	@Test
+	public void collectiveAfterAFailureShouldNotTouchTheBuffers() {
+		AtomicInteger errors = new AtomicInteger();
+		try {
+			parallelism.execute(() -> {
+				int rank = parallelism.getRank();
+				if (rank == 1) {
+					throw new IllegalArgumentException("Failed rank");
+				}
+				// Rank 1 has published no buffer:
+				try {
+					double[] all = parallelism.allGather(new double[] { rank }, 1);
+					assertArrayEquals(new double[SIZE], all, 0);
+				}
+				catch (RuntimeException exc) {
+					errors.incrementAndGet();
+				}
+			});
+			fail();
+		}
+		catch (IllegalStateException exc) {
+			assertTrue(exc.getCause() instanceof IllegalArgumentException);
+		}
+		assertEquals(0, errors.get());
+	}
+
+	// The launcher sets the backend of ParallelMacro for the whole JVM, so the
+	// job runs in another one, in the temporary folder:
+	@Test
+	public void launcherShouldRunTheJobOnEveryRank() throws Exception {
+		assertEquals(0, ForkedJvm.run(folder.getRoot(),
+			"-Dparallel_macro.shared.ranks=3", SharedMemoryLauncher.class.getName(),
+			Job.class.getName()));
+		for (int rank = 0; rank < 3; rank++) {
+			assertTrue(new File(folder.getRoot(), "progress_" + rank + ".plog")
+				.exists());
+		}
+	}
+
+	public static class Job {
+
+		public static void main(String[] args) {
+			assertEquals(0, ParallelMacro.initialise());
+			assertEquals(3, ParallelMacro.getSize());
+			assertEquals("3.0", ParallelMacro.allReduce(String.valueOf(ParallelMacro
+				.getRank()), "sum"));
+
+			// Every rank has its own progress log:
+			int task = ParallelMacro.addTask("Job");
+			ParallelMacro.reportTasks();
+			assertEquals(0, ParallelMacro.reportProgress(task, 100));
+			assertEquals(0, ParallelMacro.finalise());
+		}
+	}
+}
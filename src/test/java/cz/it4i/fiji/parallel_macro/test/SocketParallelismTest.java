@@ -0,0 +1,124 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import cz.it4i.fiji.parallel_macro.Parallelism;
+import cz.it4i.fiji.parallel_macro.ParallelismFactory;
+import cz.it4i.fiji.parallel_macro.ReductionOperation;
+import cz.it4i.fiji.parallel_macro.SocketLauncher;
+
+public class SocketParallelismTest {
+
+	// Not a power of two, so that some subtrees of the binomial trees are cut:
+	private static final int SIZE = 5;
+
+	@Test
+	public void collectivesShouldWorkBetweenJvmsOnLoopback() throws Exception {
+		assertEquals(0, SocketLauncher.launch(SIZE, Ranks.class.getName()));
+	}
+
+	// The code of every rank, a failed assertion ends its JVM with exit code 1:
+	public static class Ranks {
+
+		public static void main(String[] args) {
+			Parallelism parallelism = ParallelismFactory.create();
+			int exitCode = 1;
+			try {
+				assertEquals(0, parallelism.initialise());
+				checkCollectives(parallelism);
+				exitCode = parallelism.finalise();
+			}
+			catch (Throwable exc) {
+				exc.printStackTrace();
+			}
+			System.exit(exitCode);
+		}
+
+		private static void checkCollectives(Parallelism parallelism) {
+			int rank = parallelism.getRank();
+			int size = parallelism.getSize();
+			assertEquals(SIZE, size);
+
+			double[] sendBuffer = null;
+			if (rank == 0) {
+				sendBuffer = new double[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+			}
+			double[] part = parallelism.scatterEqually(sendBuffer, 12, 0);
+			assertEquals(rank < 2 ? 3 : 2, part.length);
+			double[] gathered = parallelism.gatherEqually(part, 12, 0);
+			if (rank == 0) {
+				assertArrayEquals(sendBuffer, gathered, 0);
+			}
+			assertEquals(rank + ".0", parallelism.scatter("0, 1, 2, 3, 4", 1, 1,
+				0));
+
+			// A root other than rank 0:
+			assertArrayEquals(new int[] { 7, 8 }, parallelism.broadcast(new int[] {
+				7 * (rank == 3 ? 1 : 0), 8 * (rank == 3 ? 1 : 0) }, 2, 3));
+			int[] reduced = parallelism.reduce(new int[] { rank, 1 },
+				ReductionOperation.SUM, 2);
+			if (rank == 2) {
+				assertArrayEquals(new int[] { 10, 5 }, reduced);
+			}
+			assertArrayEquals(new int[] { 10, 5 }, parallelism.allReduce(new int[] {
+				rank, 1 }, ReductionOperation.SUM));
+			assertEquals("4.0", parallelism.allReduce(String.valueOf(rank), "max"));
+
+			// Rank r sends r elements:
+			int[] elements = new int[rank];
+			for (int index = 0; index < rank; index++) {
+				elements[index] = rank;
+			}
+			assertArrayEquals(new int[] { 1, 2, 2, 3, 3, 3, 4, 4, 4, 4 }, parallelism
+				.allGatherv(elements, rank));
+
+			// Element i of every rank goes to rank i:
+			int[] allToAllSend = new int[size];
+			int[] expected = new int[size];
+			for (int index = 0; index < size; index++) {
+				allToAllSend[index] = rank * 10 + index;
+				expected[index] = index * 10 + rank;
+			}
+			assertArrayEquals(expected, parallelism.allToAll(allToAllSend, 1));
+
+			// Strings of different lengths from a root other than rank 0:
+			String[] files = null;
+			if (rank == 2) {
+				files = new String[] { "a.tif", "bb.tif", "", "d\u00E9.tif", "e.tif",
+					"f.tif", "g.tif" };
+			}
+			String[] mine = parallelism.scatterStrings(files, 2);
+			assertEquals(rank < 2 ? 2 : 1, mine.length);
+			String[] gatheredFiles = parallelism.gatherStrings(mine, 2);
+			if (rank == 2) {
+				assertArrayEquals(files, gatheredFiles);
+			}
+			assertEquals("d\u00E9.tif", parallelism.broadcastStrings(files, 2)[3]);
+
+			assertEquals(0, parallelism.barrier());
+
+			// Every item of the work queue once, summed over the ranks:
+			assertEquals(0, parallelism.queueInitialise(100, 3));
+			int sum = 0;
+			int item = parallelism.nextItem();
+			while (item >= 0) {
+				sum += item;
+				item = parallelism.nextItem();
+			}
+			assertArrayEquals(new int[] { 4950 }, parallelism.allReduce(new int[] {
+				sum }, ReductionOperation.SUM));
+
+			// The board of rank 0 is written without rank 0 taking part:
+			assertEquals(0, parallelism.boardInitialise(size));
+			assertEquals(0, parallelism.boardPut(rank, 1));
+			assertEquals(0, parallelism.boardPut(rank, rank * 100));
+			assertEquals(0, parallelism.barrier());
+			if (rank == 0) {
+				assertArrayEquals(new long[] { 0, 100, 200, 300, 400 }, parallelism
+					.boardRead());
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cz.it4i.fiji.parallel_macro.TextReportLogging;
+
+public class TextReportLoggingTest {
+
+	// A rank no other test writes:
+	private static final int RANK = 97;
+
+	private static final Path REPORT = Paths.get("report_" + RANK + ".tlog");
+
+	@After
+	public void deleteReport() throws IOException {
+		Files.deleteIfExists(REPORT);
+	}
+
+	@Test
+	public void textShouldBeBufferedUntilTheCheckpoint() throws IOException {
+		TextReportLogging textReportLogging = new TextReportLogging();
+		assertEquals(0, textReportLogging.reportText("first", RANK));
+		assertEquals(0, textReportLogging.reportText("second", RANK));
+		assertEquals(0, Files.size(REPORT));
+
+		assertEquals(0, textReportLogging.checkpoint(RANK));
+		assertEquals(2, Files.readAllLines(REPORT).size());
+
+		// The file is appended to after it was closed:
+		assertEquals(0, textReportLogging.reportText("third", RANK));
+		assertEquals(0, textReportLogging.finalise(RANK));
+		assertEquals(0, textReportLogging.reportText("fourth", RANK));
+		assertEquals(0, textReportLogging.finalise(RANK));
+		List<String> lines = Files.readAllLines(REPORT);
+		assertEquals(4, lines.size());
+		assertEquals("fourth", lines.get(3));
+	}
+
+	@Test
+	public void linesOverTheRateLimitShouldBeSummarised() throws IOException {
+		TextReportLogging textReportLogging = new TextReportLogging(8192, 1000, 10,
+			false);
+		for (int line = 0; line < 100; line++) {
+			textReportLogging.reportText("line " + line, RANK);
+		}
+		textReportLogging.finalise(RANK);
+
+		List<String> lines = Files.readAllLines(REPORT);
+		assertEquals(11, lines.size());
+		assertEquals("line 9", lines.get(9));
+		assertEquals("90 lines suppressed", lines.get(10));
+	}
+}
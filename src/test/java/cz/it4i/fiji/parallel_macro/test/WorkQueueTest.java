@@ -0,0 +1,77 @@
+package cz.it4i.fiji.parallel_macro.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import cz.it4i.fiji.parallel_macro.WorkQueue;
+
+public class WorkQueueTest {
+
+	@Test
+	public void everyItemShouldBeTakenExactlyOnce() {
+		int numberOfItems = 1000;
+		int size = 4;
+
+		// One queue per rank sharing a single counter:
+		AtomicLong counter = new AtomicLong();
+		WorkQueue[] queues = new WorkQueue[size];
+		for (int rank = 0; rank < size; rank++) {
+			queues[rank] = new WorkQueue(numberOfItems, 3, size, true);
+		}
+
+		int[] taken = new int[numberOfItems];
+		int finishedRanks = 0;
+		boolean[] finished = new boolean[size];
+		while (finishedRanks < size) {
+			for (int rank = 0; rank < size; rank++) {
+				if (finished[rank]) {
+					continue;
+				}
+				int item = queues[rank].nextItem(counter::getAndIncrement);
+				if (item < 0) {
+					finished[rank] = true;
+					finishedRanks++;
+				}
+				else {
+					taken[item]++;
+				}
+			}
+		}
+
+		for (int item = 0; item < numberOfItems; item++) {
+			assertEquals(1, taken[item]);
+		}
+	}
+
+	@Test
+	public void guidedChunksShouldShrinkToTheMinimalSize() {
+		WorkQueue queue = new WorkQueue(100, 2, 4, true);
+		int previousLength = Integer.MAX_VALUE;
+		for (int chunk = 0; chunk < queue.getNumberOfChunks(); chunk++) {
+			int length = queue.getChunkEnd(chunk) - queue.getChunkStart(chunk);
+			assertTrue(length <= previousLength);
+			assertTrue(length >= 2);
+			previousLength = length;
+		}
+		assertEquals(2, previousLength);
+		assertEquals(100, queue.getChunkEnd(queue.getNumberOfChunks() - 1));
+	}
+
+	@Test
+	public void fixedChunksShouldHaveTheGivenSize() {
+		WorkQueue queue = new WorkQueue(10, 4, 2, false);
+		assertEquals(3, queue.getNumberOfChunks());
+		assertEquals(4, queue.getChunkEnd(0));
+		assertEquals(8, queue.getChunkEnd(1));
+		assertEquals(10, queue.getChunkEnd(2));
+	}
+
+	@Test
+	public void emptyQueueShouldReturnNoItem() {
+		WorkQueue queue = new WorkQueue(0, 1, 2, true);
+		assertEquals(-1, queue.nextItem(() -> 0));
+	}
+}